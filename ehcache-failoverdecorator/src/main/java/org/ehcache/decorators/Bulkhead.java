@@ -0,0 +1,99 @@
+package org.ehcache.decorators;
+
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Caps the number of application threads that can be inside a delegated cache call at the same time,
+ * so that a slow cluster cannot capture the whole request pool.
+ * A thread that cannot get a permit within the acquire timeout is rejected: the caller then either serves from the local tier only,
+ * or fails fast, depending on the configured fallback.
+ * Disabled (no limit) unless bulkheadMaxConcurrentCalls is set.
+ */
+public class Bulkhead {
+	private static final Logger log = LoggerFactory.getLogger(Bulkhead.class);
+
+	public static final String PROPNAME_BULKHEADMAXCALLS = "bulkheadMaxConcurrentCalls";
+	public static final String PROPNAME_BULKHEADTIMEOUT = "bulkheadAcquireTimeoutInMilliSeconds";
+	public static final String PROPNAME_BULKHEADFALLBACK = "bulkheadFallback";
+	private static final long BULKHEADTIMEOUTDEFAULT = 5L;
+
+	/**
+	 * What to do with a call that could not enter the bulkhead
+	 */
+	public enum Fallback {
+		LOCAL, FAIL;
+	}
+
+	private final Semaphore permits;
+	private final long acquireTimeoutMillis;
+	private final Fallback fallback;
+	private final AtomicLong rejectedCount = new AtomicLong(0L);
+
+	public Bulkhead(Properties properties) {
+		int maxCalls = PropertyUtils.getIntProperty(properties, PROPNAME_BULKHEADMAXCALLS, 0, 0);
+		this.permits = (maxCalls > 0) ? new Semaphore(maxCalls) : null;
+		this.acquireTimeoutMillis = PropertyUtils.getLongProperty(properties, PROPNAME_BULKHEADTIMEOUT, BULKHEADTIMEOUTDEFAULT, 0L);
+
+		Fallback parsedFallback = Fallback.LOCAL;
+		String fallbackValue = properties.getProperty(PROPNAME_BULKHEADFALLBACK);
+		if(null != fallbackValue) {
+			try {
+				parsedFallback = Fallback.valueOf(fallbackValue.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				log.warn(String.format("%s value is not valid...reverting to default: %s", PROPNAME_BULKHEADFALLBACK, Fallback.LOCAL));
+			}
+		}
+		this.fallback = parsedFallback;
+	}
+
+	public boolean isEnabled() {
+		return null != permits;
+	}
+
+	/*
+	 * @return true if the caller may proceed with the delegated call, in which case exit() must be called once done
+	 */
+	public boolean tryEnter() {
+		if(null == permits)
+			return true;
+
+		try {
+			if(permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS))
+				return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		rejectedCount.incrementAndGet();
+		return false;
+	}
+
+	public void exit() {
+		if(null != permits)
+			permits.release();
+	}
+
+	public boolean isFailFast() {
+		return fallback == Fallback.FAIL;
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public int getAvailablePermits() {
+		return (null != permits) ? permits.availablePermits() : Integer.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Bulkhead [enabled=%s, available=%d, rejected=%d, fallback=%s]",
+				isEnabled(), (isEnabled()) ? getAvailablePermits() : -1, getRejectedCount(), fallback);
+	}
+}
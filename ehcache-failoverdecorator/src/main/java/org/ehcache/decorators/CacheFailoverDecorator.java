@@ -2,18 +2,24 @@ package org.ehcache.decorators;
 
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.ehcache.CacheException;
 import net.sf.ehcache.Ehcache;
@@ -24,6 +30,7 @@ import net.sf.ehcache.search.Attribute;
 import net.sf.ehcache.search.Query;
 import net.sf.ehcache.search.Result;
 import net.sf.ehcache.search.Results;
+import net.sf.ehcache.search.SearchException;
 import net.sf.ehcache.search.expression.Criteria;
 
 import org.slf4j.Logger;
@@ -35,12 +42,58 @@ public class CacheFailoverDecorator extends EhcacheDelegateAdapter {
 	private static final String PROPNAME_SYNCPOOLSIZE = "syncPoolSize";
 	private static final String PROPNAME_REFRESHINTERVAL = "refreshIntervalInMilliSeconds";
 	private static final String PROPNAME_PARTITIONID = "partitionId";
+	private static final String PROPNAME_MIRRORMODE = "mirrorMode";
+	private static final String PROPNAME_MIRRORSEGMENTS = "mirrorSegments";
+	private static final String PROPNAME_MIRRORCHUNKSIZE = "mirrorChunkSize";
+	private static final int MIRRORCHUNKSIZEDEFAULT = 500;
+	private static final String PROPNAME_HOTSETMAXENTRIES = "hotSetMaxEntries";
+	private static final String PROPNAME_HOTSETMAXBYTES = "hotSetMaxBytes";
+	private static final int HOTSETMAXENTRIESDEFAULT = 10000;
+	private static final String PROPNAME_LOCALSEARCHFALLBACK = "localSearchFallback";
+	private static final String PROPNAME_SEARCHLATENCYBUDGET = "searchLatencyBudgetInMilliSeconds";
 	private static final int POOLSIZEDEFAULT = 10;
 	private static final long REFRESHINTERVALDEFAULT = 5000L;
 	
+	/**
+	 * What gets mirrored in the local tier
+	 */
+	public enum MirrorMode {
+		//entries of the partition identified by partitionId (requires a partitionId search attribute on the delegated cache)
+		PARTITION,
+		//the whole delegated cache, enumerated by key
+		FULL,
+		//only the most frequently read keys, up to hotSetMaxEntries / hotSetMaxBytes
+		HOT;
+	}
+
+	private final MirrorMode mirrorMode;
 	private final int partitionId;
+	private final int mirrorSegments;
+	private final int mirrorChunkSize;
+	private final int hotSetMaxEntries;
+	private final long hotSetMaxBytes;
+	private volatile HotSetSync hotSetSync = null;
+	private volatile DelegateRouter delegateRouter = null;
 	private final ScheduledExecutorService cacheTimerService;
 	private final ExecutorService cacheSyncService;
+	private final ExecutorService hedgingService;
+	private final HedgedFetcher hedgedFetcher;
+	private final Bulkhead bulkhead;
+	private final StaleWhileRevalidate staleWhileRevalidate;
+	private final Map<TimeBudgets.Operation, ExecutorService> budgetServices = new EnumMap<TimeBudgets.Operation, ExecutorService>(TimeBudgets.Operation.class);
+	private final TimeBudgets timeBudgets;
+	private final CircuitBreaker circuitBreaker;
+	private final FailbackController failbackController;
+	private volatile Runnable refreshSyncOp = null;
+
+	//searches go to the local index when the circuit is open, or when the recent p95 of remote searches is over budget
+	//(except for one search every SEARCH_PROBE_INTERVAL, which keeps measuring the delegated cache)
+	private static final int SEARCH_PROBE_INTERVAL = 20;
+	private final boolean localSearchFallback;
+	private final long searchLatencyBudgetNanos;
+	private final LatencyTracker searchLatencyTracker = new LatencyTracker(256, 0.95D);
+	private final AtomicLong searchCounter = new AtomicLong(0L);
+	private volatile LocalSearchIndex localSearchIndex = null;
 
 	//instanciated at init() time
 	private volatile boolean initialized = false;
@@ -52,7 +105,20 @@ public class CacheFailoverDecorator extends EhcacheDelegateAdapter {
 		super(underlyingCache, properties);
 		
 		this.partitionId = Integer.parseInt(properties.getProperty(PROPNAME_PARTITIONID, "-1"));
-		if(partitionId == -1)
+
+		//without a partition, the whole delegated cache is mirrored
+		String mode = properties.getProperty(PROPNAME_MIRRORMODE);
+		if(null != mode) {
+			try {
+				this.mirrorMode = MirrorMode.valueOf(mode.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new CacheException("Decorator on " + underlyingCache.getName() + " has an invalid value for property " + PROPNAME_MIRRORMODE + ": " + mode);
+			}
+		} else {
+			this.mirrorMode = (partitionId == -1) ? MirrorMode.FULL : MirrorMode.PARTITION;
+		}
+
+		if(mirrorMode == MirrorMode.PARTITION && partitionId == -1)
 			throw new CacheException("Decorator on " + underlyingCache.getName() + " should be configured with a value for property " + PROPNAME_PARTITIONID);
 		
 		int syncPoolSize;
@@ -79,9 +145,44 @@ public class CacheFailoverDecorator extends EhcacheDelegateAdapter {
 		}
 
 		cacheSyncService = Executors.newFixedThreadPool(syncPoolSize, new NamedThreadFactory("Sync Cache Pool"));
+
+		mirrorSegments = PropertyUtils.getIntProperty(properties, PROPNAME_MIRRORSEGMENTS, syncPoolSize, 1);
+		mirrorChunkSize = PropertyUtils.getIntProperty(properties, PROPNAME_MIRRORCHUNKSIZE, MIRRORCHUNKSIZEDEFAULT, 1);
+		hotSetMaxEntries = PropertyUtils.getIntProperty(properties, PROPNAME_HOTSETMAXENTRIES, HOTSETMAXENTRIESDEFAULT, 1);
+		hotSetMaxBytes = PropertyUtils.getLongProperty(properties, PROPNAME_HOTSETMAXBYTES, 0L, 0L);
 		
 		//setup the timer thread pool for every 5 seconds
 		cacheTimerService = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Sync Timer Cache Pool"));
+
+		//pool used to run the hedged calls to the delegated cache
+		int hedgingPoolSize = PropertyUtils.getIntProperty(properties, HedgedFetcher.PROPNAME_HEDGINGPOOLSIZE, HedgedFetcher.HEDGINGPOOLSIZEDEFAULT, 1);
+		hedgingService = Executors.newFixedThreadPool(hedgingPoolSize, new NamedThreadFactory("Hedging Cache Pool"));
+		hedgedFetcher = new HedgedFetcher(properties, hedgingService);
+
+		bulkhead = new Bulkhead(properties);
+
+		staleWhileRevalidate = new StaleWhileRevalidate(properties);
+
+		//pool used to run the calls to the delegated cache that have a time budget, so they can be abandoned when it is exhausted
+		//bounded, so that the calls to a delegated cache that stopped answering are rejected (and served locally) instead of queueing up
+		int timeoutPoolSize = PropertyUtils.getIntProperty(properties, TimeBudgets.PROPNAME_TIMEOUTPOOLSIZE, TimeBudgets.TIMEOUTPOOLSIZEDEFAULT, 1);
+		int timeoutQueueSize = PropertyUtils.getIntProperty(properties, TimeBudgets.PROPNAME_TIMEOUTQUEUESIZE, TimeBudgets.TIMEOUTQUEUESIZEDEFAULT, 1);
+		for(TimeBudgets.Operation operation : TimeBudgets.Operation.values()) {
+			budgetServices.put(operation, new ThreadPoolExecutor(timeoutPoolSize, timeoutPoolSize, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(timeoutQueueSize), new NamedThreadFactory("Timeout " + operation + " Cache Pool")));
+		}
+		timeBudgets = new TimeBudgets(properties, budgetServices);
+
+		circuitBreaker = new CircuitBreaker(underlyingCache.getName(), properties);
+		failbackController = new FailbackController(properties, circuitBreaker, new Runnable() {
+			public void run() {
+				catchUp();
+			}
+		});
+		circuitBreaker.setListener(failbackController);
+
+		localSearchFallback = PropertyUtils.getBooleanProperty(properties, PROPNAME_LOCALSEARCHFALLBACK, true);
+		searchLatencyBudgetNanos = TimeUnit.MILLISECONDS.toNanos(PropertyUtils.getLongProperty(properties, PROPNAME_SEARCHLATENCYBUDGET, 0L, 0L));
 	}
 
 	/*
@@ -96,12 +197,46 @@ public class CacheFailoverDecorator extends EhcacheDelegateAdapter {
 					if(delegatedCache == null)
 						throw new CacheException("Delegated cache does not exist...");
 					
-					final Attribute<Integer> partitionSearchAttribute = delegatedCache.getSearchAttribute(PROPNAME_PARTITIONID);
-					if(null == partitionSearchAttribute)
-						throw new CacheException("Delegated cache should have a searchable attribute named " + PROPNAME_PARTITIONID);
-					
+					//reads are spread over the delegates when several are configured
+					delegateRouter = new DelegateRouter(delegatedCaches);
+
+					if(mirrorMode == MirrorMode.PARTITION) {
+						final Attribute<Integer> partitionSearchAttribute = delegatedCache.getSearchAttribute(PROPNAME_PARTITIONID);
+						if(null == partitionSearchAttribute)
+							throw new CacheException("Delegated cache should have a searchable attribute named " + PROPNAME_PARTITIONID);
+
+						refreshSyncOp = new TimedRefreshSyncOp(partitionSearchAttribute, this.partitionId);
+					} else if(mirrorMode == MirrorMode.HOT) {
+						hotSetSync = new HotSetSync(delegatedCache, underlyingCache, circuitBreaker, timeBudgets, hotSetMaxEntries, hotSetMaxBytes, mirrorChunkSize);
+						refreshSyncOp = hotSetSync;
+					} else {
+						refreshSyncOp = new FullMirrorSync(delegatedCache, underlyingCache, cacheSyncService, circuitBreaker, timeBudgets, mirrorSegments, mirrorChunkSize);
+					}
+
 					//schedule the timer pool to execute a cache search every 5 seconds...which in turn will execute the cache sync operations
-					cacheTimerService.scheduleAtFixedRate(new TimedRefreshSyncOp(partitionSearchAttribute, this.partitionId), 0L, refreshInterval, refreshIntervalUnit);
+					cacheTimerService.scheduleAtFixedRate(refreshSyncOp, 0L, refreshInterval, refreshIntervalUnit);
+
+					//keep the entries expiring from the local tier around so they can be served while being revalidated
+					if(staleWhileRevalidate.isEnabled()) {
+						underlyingCache.getCacheEventNotificationService().registerListener(staleWhileRevalidate);
+						cacheTimerService.scheduleAtFixedRate(new Runnable() {
+							public void run() {
+								staleWhileRevalidate.evictTooStale();
+							}
+						}, staleWhileRevalidate.getMaxStaleMillis(), staleWhileRevalidate.getMaxStaleMillis(), TimeUnit.MILLISECONDS);
+					}
+
+					//index the search attributes of the mirrored entries so that searches can be served locally
+					if(localSearchFallback && delegatedCache.getCacheConfiguration().isSearchable()) {
+						LocalSearchIndex index = new LocalSearchIndex(underlyingCache, delegatedCache.getCacheConfiguration().getSearchAttributes());
+						underlyingCache.getCacheEventNotificationService().registerListener(index);
+						for(Object key : underlyingCache.getKeys()) {
+							Element mirrored = underlyingCache.getQuiet(key);
+							if(null != mirrored)
+								index.notifyElementPut(underlyingCache, mirrored);
+						}
+						localSearchIndex = index;
+					}
 					
 					initialized = true;
 				}
@@ -115,10 +250,66 @@ public class CacheFailoverDecorator extends EhcacheDelegateAdapter {
 	 */
 	@Override
 	public Element get(Object key) throws IllegalStateException, CacheException {
+		return get(key, hedgedFetcher.isEnabled());
+	}
+
+	/*
+	 * Same as get(Object), but lets the caller opt in (or out) of hedging the fault to the delegated cache for this call.
+	 * @see org.ehcache.decorators.HedgedFetcher
+	 */
+	public Element get(final Object key, final boolean hedged) throws IllegalStateException, CacheException {
 		init();
 		Element e = underlyingCache.get(key);
+		if(null != hotSetSync)
+			hotSetSync.recordAccess(key, e != null);
+
+		if(e == null && staleWhileRevalidate.isEnabled()) {
+			e = staleWhileRevalidate.getStale(key);
+			if(e != null) {
+				revalidate(key);
+				return e;
+			}
+		}
+
 		if(e == null) {
-			e = delegatedCache.get(key);
+			if(!circuitBreaker.allowRequest()) {
+				if(log.isDebugEnabled())
+					log.debug("Circuit is open - serving local miss for key " + key);
+				return null;
+			}
+
+			//failing back after an outage: only a growing share of the misses go to the delegated cache
+			if(!failbackController.routeRemotely()) {
+				if(log.isDebugEnabled())
+					log.debug("Failing back - serving local miss for key " + key);
+				return null;
+			}
+
+			if(!bulkhead.tryEnter())
+				return rejectedByBulkhead(key);
+
+			long start = System.nanoTime();
+			try {
+				e = timeBudgets.call(TimeBudgets.Operation.GET, new Callable<Element>() {
+					public Element call() {
+						return fetchFromDelegates(key, hedged);
+					}
+				});
+				circuitBreaker.recordSuccess();
+				failbackController.recordOutcome(true, System.nanoTime() - start);
+			} catch (TimeoutException te) {
+				//slow rather than unavailable: the circuit is left alone, and the local tier (which missed) serves the call
+				failbackController.recordOutcome(true, System.nanoTime() - start);
+				if(log.isDebugEnabled())
+					log.debug(te.getMessage() + " - serving local miss for key " + key);
+				return null;
+			} catch (RuntimeException re) {
+				circuitBreaker.recordFailure();
+				failbackController.recordOutcome(false, System.nanoTime() - start);
+				throw re;
+			} finally {
+				bulkhead.exit();
+			}
 			if(log.isDebugEnabled()) {
 				log.debug("----> get Timestamp " + System.currentTimeMillis() +  " - Faulting entry with key =" + key);
 			}
@@ -126,6 +317,83 @@ public class CacheFailoverDecorator extends EhcacheDelegateAdapter {
 		return e;
 	}
 
+	/*
+	 * Fetches the fresh value of a key served stale, unless a revalidation of that key is already in flight
+	 */
+	private void revalidate(Object key) {
+		if(staleWhileRevalidate.startRevalidation(key)) {
+			try {
+				cacheSyncService.submit(new RevalidateOp(key));
+			} catch (RejectedExecutionException ree) {
+				staleWhileRevalidate.finishRevalidation(key);
+				log.warn("Could not schedule the revalidation of key " + key, ree);
+			}
+		}
+	}
+
+	/*
+	 * Reads the key from the best delegate at the moment, falling back down the list of delegates on failure
+	 */
+	private Element fetchFromDelegates(Object key, boolean hedged) {
+		DelegateRouter router = delegateRouter;
+		if(router.size() == 1)
+			return hedgedFetcher.fetch(delegatedCache, key, hedged);
+
+		RuntimeException lastFailure = null;
+		for(int index : router.route()) {
+			long start = System.nanoTime();
+			try {
+				Element e = hedgedFetcher.fetch(router.getDelegate(index), key, hedged);
+				router.recordSuccess(index, System.nanoTime() - start);
+				return e;
+			} catch (RuntimeException re) {
+				router.recordFailure(index);
+				if(log.isDebugEnabled())
+					log.debug("Delegated cache " + router.getDelegate(index).getName() + " failed to get key " + key + " - trying the next one", re);
+				lastFailure = re;
+			}
+		}
+		throw lastFailure;
+	}
+
+	/*
+	 * Circuit just closed: refresh the local mirror on the timer thread (so never concurrently with a periodic refresh)
+	 * before the failback ramp starts
+	 */
+	private void catchUp() {
+		final Runnable catchUpOp = refreshSyncOp;
+		if(null == catchUpOp) {
+			failbackController.catchUpDone();
+			return;
+		}
+
+		try {
+			cacheTimerService.execute(new Runnable() {
+				public void run() {
+					try {
+						catchUpOp.run();
+					} finally {
+						failbackController.catchUpDone();
+					}
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			failbackController.catchUpDone();
+		}
+	}
+
+	/*
+	 * Too many threads are already waiting on the delegated cache: either fail fast, or serve from the local tier only (which missed)
+	 */
+	private Element rejectedByBulkhead(Object key) {
+		if(bulkhead.isFailFast())
+			throw new CacheException("Too many concurrent calls to delegated cache " + delegatedCache.getName() + " - rejected get for key " + key);
+
+		if(log.isDebugEnabled())
+			log.debug("Too many concurrent calls to delegated cache - serving local miss for key " + key);
+		return null;
+	}
+
 	/*
 	 * Performs get operation: first check in underlying cache, then if not found, in delegated cache.
 	 * @see org.terracotta.utils.EhcacheDelegatedDecoratorAdapter#get(java.io.Serializable)
@@ -135,6 +403,87 @@ public class CacheFailoverDecorator extends EhcacheDelegateAdapter {
 		return this.get((Object)key);
 	}
 
+	/*
+	 * The returned query is routed at execute() time: to the delegated cache when it is healthy,
+	 * or to the local search index of the mirrored entries when the circuit is open or remote searches are over their latency budget.
+	 * @see org.ehcache.decorators.EhcacheDelegateAdapter#createQuery()
+	 */
+	@Override
+	public Query createQuery() {
+		init();
+		return new FailoverQuery(this);
+	}
+
+	/*
+	 * Attributes are resolved against the search configuration of the delegated cache, without any remote call
+	 * @see org.ehcache.decorators.EhcacheDelegateAdapter#getSearchAttribute(java.lang.String)
+	 */
+	@Override
+	public <T> Attribute<T> getSearchAttribute(String attributeName) throws CacheException {
+		init();
+		if(null != localSearchIndex) {
+			if(!localSearchIndex.getAttributeNames().contains(attributeName))
+				throw new CacheException("No such search attribute: " + attributeName);
+			return new Attribute<T>(attributeName);
+		}
+		return delegatedCache.getSearchAttribute(attributeName);
+	}
+
+	@Override
+	public boolean isSearchable() {
+		init();
+		return delegatedCache.getCacheConfiguration().isSearchable();
+	}
+
+	Results executeQuery(final FailoverQuery query) throws SearchException {
+		init();
+		LocalSearchIndex index = localSearchIndex;
+		if(null != index && isRemoteSearchOverBudget()) {
+			if(log.isDebugEnabled())
+				log.debug("Remote searches are over their latency budget - searching the local index");
+			return index.execute(query);
+		}
+
+		if(!circuitBreaker.allowRequest()) {
+			if(null == index)
+				throw new SearchException("Delegated cache " + delegatedCache.getName() + " is unavailable and there is no local search index");
+			return index.execute(query);
+		}
+
+		long start = System.nanoTime();
+		try {
+			Results results = timeBudgets.call(TimeBudgets.Operation.SEARCH, new Callable<Results>() {
+				public Results call() {
+					return query.toQuery(delegatedCache).execute();
+				}
+			});
+			searchLatencyTracker.record(System.nanoTime() - start);
+			circuitBreaker.recordSuccess();
+			return results;
+		} catch (TimeoutException te) {
+			searchLatencyTracker.record(System.nanoTime() - start);
+			if(null == index)
+				throw new SearchException(te.getMessage() + " on delegated cache " + delegatedCache.getName() + " and there is no local search index");
+			if(log.isDebugEnabled())
+				log.debug(te.getMessage() + " - searching the local index");
+			return index.execute(query);
+		} catch (RuntimeException re) {
+			circuitBreaker.recordFailure();
+			if(null == index)
+				throw re;
+			log.warn("Search on delegated cache " + delegatedCache.getName() + " failed - falling back to the local search index", re);
+			return index.execute(query);
+		}
+	}
+
+	private boolean isRemoteSearchOverBudget() {
+		if(searchLatencyBudgetNanos <= 0 || searchLatencyTracker.getQuantileNanos() <= searchLatencyBudgetNanos)
+			return false;
+
+		//let a few searches through anyway, otherwise the latency would never be measured again
+		return searchCounter.incrementAndGet() % SEARCH_PROBE_INTERVAL != 0;
+	}
+
 	/*
 	 * Performs bulk get using mutli-threaded service on @see org.terracotta.utils.CachePartitionDecorator#get(java.io.Serializable)
 	 * @see org.terracotta.utils.EhcacheDelegatedDecoratorAdapter#getAll(java.util.Collection)
@@ -144,16 +493,28 @@ public class CacheFailoverDecorator extends EhcacheDelegateAdapter {
 		init();
 		Map<Object, Element> result = new HashMap<Object, Element>();
 		Iterator<?> it = keys.iterator();
+		Object keysArray[] = new Object[keys.size()];
 		Future<Element> futs[] = new Future[keys.size()];
 		int count = 0;
 		while(it.hasNext()) {
-			futs[count++] = cacheSyncService.submit(new GetOp(it.next()));
+			keysArray[count] = it.next();
+			futs[count] = cacheSyncService.submit(new GetOp(keysArray[count]));
+			count++;
 		}
 
+		//one budget for the whole bulk get: the keys still pending when it is exhausted are served from the local tier only
+		long remainingNanos = timeBudgets.remainingNanos(TimeBudgets.Operation.BULK_GET);
+		long deadline = System.nanoTime() + remainingNanos;
 		for(int i = 0; i < count; i++) {
 			Element el = null;
 			try {
-				el = futs[i].get();
+				if(remainingNanos < 0)
+					el = futs[i].get();
+				else
+					el = futs[i].get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException te) {
+				futs[i].cancel(true);
+				el = underlyingCache.getQuiet(keysArray[i]);
 			}catch(Exception e) {
 				log.warn("Error while getting the data from cache", e);
 			}
@@ -179,7 +540,20 @@ public class CacheFailoverDecorator extends EhcacheDelegateAdapter {
 		}
 
 		public void run() {
-			List keys = searchPartitionKeys(query);
+			//nothing to refresh from while the delegated cache is unavailable
+			if(!circuitBreaker.allowRequest())
+				return;
+
+			List keys;
+			try {
+				keys = searchPartitionKeys(query);
+				circuitBreaker.recordSuccess();
+			} catch (RuntimeException re) {
+				circuitBreaker.recordFailure();
+				log.warn("Could not search the delegated cache for the keys to refresh", re);
+				return;
+			}
+
 			Future futs[] = new Future[keys.size()];
 			int count = 0;
 			for(Object key: keys){
@@ -198,7 +572,18 @@ public class CacheFailoverDecorator extends EhcacheDelegateAdapter {
 			LinkedList<Object> keys = new LinkedList<Object>();
 			System.out.println("Starting search...");
 			long startTime = System.currentTimeMillis();
-			Results results = query.execute();
+			Results results;
+			try {
+				results = timeBudgets.call(TimeBudgets.Operation.SEARCH, new Callable<Results>() {
+					public Results call() {
+						return query.execute();
+					}
+				});
+			} catch (TimeoutException te) {
+				//skip this refresh cycle, the local tier keeps serving what it has until the next one
+				log.warn(te.getMessage() + " - skipping the refresh of partition " + partitionId);
+				return keys;
+			}
 			if(log.isDebugEnabled())
 				log.debug(String.format("Search time: %d ms", System.currentTimeMillis() - startTime));
 
@@ -225,15 +610,24 @@ public class CacheFailoverDecorator extends EhcacheDelegateAdapter {
 
 		public void run() {
 			try {
-				final Element replacementElement = delegatedCache.getQuiet(keyToUpdate);
+				final Element replacementElement = timeBudgets.call(TimeBudgets.Operation.REFRESH, new Callable<Element>() {
+					public Element call() {
+						return delegatedCache.getQuiet(keyToUpdate);
+					}
+				});
 				if (replacementElement == null) {
 					if (log.isDebugEnabled()) {
 						log.debug(delegatedCache.getName() + ": entry with key " + keyToUpdate + " has been removed - skipping it");
 					}
 					underlyingCache.remove(keyToUpdate);
 				} else {
-					underlyingCache.put(replacementElement);
+					//copy the element so that the local time to live counts from now rather than from the creation in the delegated cache
+					underlyingCache.put(new Element(replacementElement.getObjectKey(), replacementElement.getObjectValue(), replacementElement.getVersion()));
 				}
+			} catch (TimeoutException te) {
+				//keep the local copy as it is, it will be refreshed on the next cycle
+				if (log.isDebugEnabled())
+					log.debug(te.getMessage() + " - keeping the local copy of " + keyToUpdate);
 			} catch (final Exception e) {
 				// Collect the exception and keep going.
 				log.warn(getName() + "Could not refresh element " + keyToUpdate, e);
@@ -241,6 +635,27 @@ public class CacheFailoverDecorator extends EhcacheDelegateAdapter {
 		}
 	}
 
+	/*
+	 * Refreshes a key that was served stale, then lets the next stale read trigger a new revalidation if needed
+	 */
+	private class RevalidateOp extends RefreshOp {
+		private Object keyToRevalidate;
+
+		public RevalidateOp(Object key) {
+			super(key);
+			this.keyToRevalidate = key;
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				staleWhileRevalidate.finishRevalidation(keyToRevalidate);
+			}
+		}
+	}
+
 	/*
 	 * Performs get operation: first check in underlying cache, then if not found, in delegated cache.
 	 */
@@ -262,6 +677,69 @@ public class CacheFailoverDecorator extends EhcacheDelegateAdapter {
 		log.info("Shutting down Cache Service");
 		shutdownAndAwaitTermination(cacheTimerService);
 		shutdownAndAwaitTermination(cacheSyncService);
+		shutdownAndAwaitTermination(hedgingService);
+		for(ExecutorService budgetService : budgetServices.values()) {
+			shutdownAndAwaitTermination(budgetService);
+		}
+		log.info(hedgedFetcher.toString());
+		log.info(bulkhead.toString());
+		log.info(staleWhileRevalidate.toString());
+		log.info(timeBudgets.toString());
+		log.info(circuitBreaker.toString());
+		if(null != refreshSyncOp)
+			log.info(refreshSyncOp.toString());
+		if(null != delegateRouter)
+			log.info(delegateRouter.toString());
+		log.info(failbackController.toString());
+	}
+
+	/*
+	 * @return the hedging counters (how often the delegated cache fault was hedged, and how often the hedge won)
+	 */
+	public HedgedFetcher getHedgedFetcher() {
+		return hedgedFetcher;
+	}
+
+	/*
+	 * @return the bulkhead guarding the calls to the delegated cache (available permits, rejections)
+	 */
+	public Bulkhead getBulkhead() {
+		return bulkhead;
+	}
+
+	/*
+	 * @return the stale-while-revalidate counters (stale hits, revalidations)
+	 */
+	public StaleWhileRevalidate getStaleWhileRevalidate() {
+		return staleWhileRevalidate;
+	}
+
+	/*
+	 * @return the time budgets of the calls to the delegated cache, and how often they got exhausted
+	 */
+	public TimeBudgets getTimeBudgets() {
+		return timeBudgets;
+	}
+
+	/*
+	 * @return the circuit breaker tracking the availability of the delegated cache
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/*
+	 * @return the controller ramping the traffic back to the delegated cache after an outage
+	 */
+	public FailbackController getFailbackController() {
+		return failbackController;
+	}
+
+	/*
+	 * @return the per-delegate latency and error rate used to route the reads (null until the decorator is initialized)
+	 */
+	public DelegateRouter getDelegateRouter() {
+		return delegateRouter;
 	}
 
 	/*
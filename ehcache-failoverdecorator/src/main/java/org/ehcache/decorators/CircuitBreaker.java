@@ -0,0 +1,139 @@
+package org.ehcache.decorators;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Tracks the health of the delegated cache from the outcome of the calls made to it.
+ * After circuitFailureThreshold consecutive failures the circuit opens and the decorator serves from the local tier only.
+ * Once circuitOpenIntervalInMilliSeconds has elapsed, the circuit is half-open: a single trial call is let through at a time,
+ * and its outcome closes the circuit again or re-opens it.
+ */
+public class CircuitBreaker {
+	private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	public static final String PROPNAME_CIRCUITFAILURETHRESHOLD = "circuitFailureThreshold";
+	public static final String PROPNAME_CIRCUITOPENINTERVAL = "circuitOpenIntervalInMilliSeconds";
+	private static final int CIRCUITFAILURETHRESHOLDDEFAULT = 5;
+	private static final long CIRCUITOPENINTERVALDEFAULT = 10000L;
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN;
+	}
+
+	/**
+	 * Notified of the transitions of the circuit, on the thread that caused them
+	 */
+	public interface Listener {
+		void circuitOpened();
+
+		void circuitClosed();
+	}
+
+	private final String name;
+	private final int failureThreshold;
+	private final long openIntervalMillis;
+
+	private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+	private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+	private final AtomicLong openedAt = new AtomicLong(0L);
+	private final AtomicLong trialStartedAt = new AtomicLong(0L);
+	private final AtomicLong openCount = new AtomicLong(0L);
+	private volatile Listener listener = null;
+
+	public CircuitBreaker(String name, Properties properties) {
+		this.name = name;
+		this.failureThreshold = PropertyUtils.getIntProperty(properties, PROPNAME_CIRCUITFAILURETHRESHOLD, CIRCUITFAILURETHRESHOLDDEFAULT, 1);
+		this.openIntervalMillis = PropertyUtils.getLongProperty(properties, PROPNAME_CIRCUITOPENINTERVAL, CIRCUITOPENINTERVALDEFAULT, 1L);
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/*
+	 * @return true if a call to the delegated cache may be attempted
+	 */
+	public boolean allowRequest() {
+		long now = System.currentTimeMillis();
+		switch (state.get()) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if(now - openedAt.get() < openIntervalMillis)
+				return false;
+			if(state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+				log.info("Circuit to " + name + " is half-open - trying the delegated cache again");
+				trialStartedAt.set(now);
+				return true;
+			}
+			return false;
+		case HALF_OPEN:
+			//only one trial at a time, but do not wait forever on a trial that never reported back
+			long trialStart = trialStartedAt.get();
+			return now - trialStart >= openIntervalMillis && trialStartedAt.compareAndSet(trialStart, now);
+		default:
+			return false;
+		}
+	}
+
+	public void recordSuccess() {
+		consecutiveFailures.set(0);
+		if(state.get() != State.CLOSED && state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+			log.info("Circuit to " + name + " is closed - delegated cache is available again");
+			Listener currentListener = listener;
+			if(null != currentListener)
+				currentListener.circuitClosed();
+		}
+	}
+
+	public void recordFailure() {
+		if(state.get() == State.HALF_OPEN) {
+			if(state.compareAndSet(State.HALF_OPEN, State.OPEN))
+				open();
+		} else if(consecutiveFailures.incrementAndGet() >= failureThreshold && state.compareAndSet(State.CLOSED, State.OPEN)) {
+			open();
+		}
+	}
+
+	/*
+	 * Opens the circuit whatever its state, e.g. when the delegated cache regresses right after closing
+	 */
+	public void forceOpen() {
+		State current = state.get();
+		if(current != State.OPEN && state.compareAndSet(current, State.OPEN))
+			open();
+	}
+
+	private void open() {
+		openedAt.set(System.currentTimeMillis());
+		openCount.incrementAndGet();
+		log.warn("Circuit to " + name + " is open - serving from the local tier only for the next " + openIntervalMillis + " ms");
+		Listener currentListener = listener;
+		if(null != currentListener)
+			currentListener.circuitOpened();
+	}
+
+	public State getState() {
+		return state.get();
+	}
+
+	public boolean isClosed() {
+		return state.get() == State.CLOSED;
+	}
+
+	public long getOpenCount() {
+		return openCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CircuitBreaker [name=%s, state=%s, consecutiveFailures=%d, opened=%d]",
+				name, getState(), consecutiveFailures.get(), getOpenCount());
+	}
+}
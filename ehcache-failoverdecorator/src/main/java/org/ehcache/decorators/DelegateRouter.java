@@ -0,0 +1,149 @@
+package org.ehcache.decorators;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.Ehcache;
+
+/*
+ * Routes the reads across several delegated caches holding the same data (e.g. replicated into clusters in different racks).
+ * Latency and error rate are measured per delegate as exponentially weighted moving averages; each read goes first to a delegate
+ * picked at random with a weight favouring the fast and healthy ones, then falls back to the others in configured order.
+ * Every delegate keeps a minimum share of the traffic so that its measurements stay current.
+ */
+public class DelegateRouter {
+	//weight of the newest sample in the moving averages
+	private static final double EWMA_ALPHA = 0.1D;
+	//latency assumed for a delegate that was never measured
+	private static final double DEFAULT_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+	//share of the traffic guaranteed to every delegate, whatever its weight
+	private static final double MIN_SHARE = 0.01D;
+
+	private final List<Ehcache> delegates;
+	private final List<DelegateStats> stats;
+	private final Random random = new Random();
+
+	public DelegateRouter(List<? extends Ehcache> delegates) {
+		this.delegates = new ArrayList<Ehcache>(delegates);
+		this.stats = new ArrayList<DelegateStats>(delegates.size());
+		for(int i = 0; i < delegates.size(); i++) {
+			stats.add(new DelegateStats());
+		}
+	}
+
+	public int size() {
+		return delegates.size();
+	}
+
+	public Ehcache getDelegate(int index) {
+		return delegates.get(index);
+	}
+
+	/*
+	 * @return the indexes of the delegates in the order they should be tried for the next read
+	 */
+	public int[] route() {
+		int count = delegates.size();
+		int[] order = new int[count];
+		if(count == 1)
+			return order;
+
+		double[] weights = new double[count];
+		double total = 0.0D;
+		for(int i = 0; i < count; i++) {
+			weights[i] = stats.get(i).weight();
+			total += weights[i];
+		}
+
+		double floor = total * MIN_SHARE;
+		double flooredTotal = 0.0D;
+		for(int i = 0; i < count; i++) {
+			weights[i] = Math.max(weights[i], floor);
+			flooredTotal += weights[i];
+		}
+
+		double pick = random.nextDouble() * flooredTotal;
+		int first = count - 1;
+		for(int i = 0; i < count; i++) {
+			pick -= weights[i];
+			if(pick < 0) {
+				first = i;
+				break;
+			}
+		}
+
+		order[0] = first;
+		int position = 1;
+		for(int i = 0; i < count; i++) {
+			if(i != first)
+				order[position++] = i;
+		}
+		return order;
+	}
+
+	public void recordSuccess(int index, long latencyNanos) {
+		stats.get(index).record(false, latencyNanos);
+	}
+
+	public void recordFailure(int index) {
+		stats.get(index).record(true, 0L);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("DelegateRouter [");
+		for(int i = 0; i < delegates.size(); i++) {
+			if(i > 0)
+				sb.append(", ");
+			DelegateStats delegateStats = stats.get(i);
+			sb.append(String.format("%s: latency=%d us, errorRate=%.3f, reads=%d",
+					delegates.get(i).getName(), TimeUnit.NANOSECONDS.toMicros((long)delegateStats.getLatencyNanos()),
+					delegateStats.getErrorRate(), delegateStats.getReadCount()));
+		}
+		return sb.append("]").toString();
+	}
+
+	private static class DelegateStats {
+		private final AtomicLong latencyBits = new AtomicLong(Double.doubleToLongBits(-1.0D));
+		private final AtomicLong errorRateBits = new AtomicLong(Double.doubleToLongBits(0.0D));
+		private final AtomicLong readCount = new AtomicLong(0L);
+
+		void record(boolean failed, long latencyNanos) {
+			readCount.incrementAndGet();
+			update(errorRateBits, (failed) ? 1.0D : 0.0D);
+			if(!failed)
+				update(latencyBits, latencyNanos);
+		}
+
+		private static void update(AtomicLong bits, double sample) {
+			long current;
+			double next;
+			do {
+				current = bits.get();
+				double average = Double.longBitsToDouble(current);
+				next = (average < 0) ? sample : average + EWMA_ALPHA * (sample - average);
+			} while(!bits.compareAndSet(current, Double.doubleToLongBits(next)));
+		}
+
+		double getLatencyNanos() {
+			double latency = Double.longBitsToDouble(latencyBits.get());
+			return (latency < 0) ? DEFAULT_LATENCY_NANOS : latency;
+		}
+
+		double getErrorRate() {
+			return Double.longBitsToDouble(errorRateBits.get());
+		}
+
+		long getReadCount() {
+			return readCount.get();
+		}
+
+		double weight() {
+			double health = 1.0D - getErrorRate();
+			return (health * health) / Math.max(1.0D, getLatencyNanos());
+		}
+	}
+}
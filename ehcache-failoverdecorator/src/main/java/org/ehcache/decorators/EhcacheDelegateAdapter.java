@@ -2,7 +2,9 @@ package org.ehcache.decorators;
 
 import java.beans.PropertyChangeListener;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -40,19 +42,33 @@ public class EhcacheDelegateAdapter extends EhcacheDecoratorAdapter {
 	private static final Logger log = LoggerFactory.getLogger(EhcacheDelegateAdapter.class);
 	
 	private static final String PROPNAME_DELEGATECACHENAME = "delegateCacheName";
+
+	//several delegates can be listed in order of preference, e.g. delegateCacheName=RackA;RackB
+	//(',' being the default property separator of the decorator factory, the names are separated by ';' or '|')
+	private static final String DELEGATECACHENAME_SEPARATORS = "[;|]";
 	
-	private final String delegatedCacheName;
+	private final List<String> delegatedCacheNames;
 	
 	//these are accessed/populated at init() time on purpose...as delegatedCache is not available at constructor time
 	private volatile boolean initialized = false;
 	protected Cache delegatedCache = null;
+	protected List<Cache> delegatedCaches = Collections.emptyList();
 
 	public EhcacheDelegateAdapter(Ehcache underlyingCache, Properties properties) {
 		super(underlyingCache);
 		
-		this.delegatedCacheName = properties.getProperty(PROPNAME_DELEGATECACHENAME);
+		String delegatedCacheName = properties.getProperty(PROPNAME_DELEGATECACHENAME);
 		if(delegatedCacheName == null || "".equals(delegatedCacheName))
 			throw new CacheException("Decorator on " + underlyingCache.getName() + " should be configured with a terracotta cache specified by property " + PROPNAME_DELEGATECACHENAME);
+
+		List<String> names = new ArrayList<String>();
+		for(String name : delegatedCacheName.split(DELEGATECACHENAME_SEPARATORS)) {
+			if(!"".equals(name.trim()))
+				names.add(name.trim());
+		}
+		if(names.isEmpty())
+			throw new CacheException("Decorator on " + underlyingCache.getName() + " should be configured with a terracotta cache specified by property " + PROPNAME_DELEGATECACHENAME);
+		this.delegatedCacheNames = Collections.unmodifiableList(names);
 	}
 
 	//init should be called once only when any method in that cache is called
@@ -60,9 +76,17 @@ public class EhcacheDelegateAdapter extends EhcacheDecoratorAdapter {
 		if(!initialized) {
 			synchronized (this) {
 				if(!initialized){
-					delegatedCache = underlyingCache.getCacheManager().getCache(delegatedCacheName);
-					if(delegatedCache == null)
-						throw new CacheException("Cache " + delegatedCacheName + " configured through cache decorator property '" + PROPNAME_DELEGATECACHENAME + "' doesn't exist");
+					List<Cache> caches = new ArrayList<Cache>(delegatedCacheNames.size());
+					for(String delegatedCacheName : delegatedCacheNames) {
+						Cache cache = underlyingCache.getCacheManager().getCache(delegatedCacheName);
+						if(cache == null)
+							throw new CacheException("Cache " + delegatedCacheName + " configured through cache decorator property '" + PROPNAME_DELEGATECACHENAME + "' doesn't exist");
+						caches.add(cache);
+					}
+
+					//the first delegate is the primary one: it is used for everything but the reads that can be routed
+					delegatedCaches = Collections.unmodifiableList(caches);
+					delegatedCache = caches.get(0);
 					initialized = true;
 				}
 			}
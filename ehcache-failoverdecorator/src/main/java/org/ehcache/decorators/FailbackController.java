@@ -0,0 +1,158 @@
+package org.ehcache.decorators;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Controls how traffic swings back to the delegated cache once the circuit closes again.
+ * The catch-up of the local mirror (a full refresh cycle) runs first, then the share of local misses routed remotely
+ * ramps linearly from failbackInitialShare to 100% over failbackRampInMilliSeconds.
+ * If the error rate or the p95 latency of the remote calls regresses during the ramp, the failback is aborted and the circuit re-opened.
+ * Disabled (traffic swings back at once) unless failbackRampInMilliSeconds is set.
+ */
+public class FailbackController implements CircuitBreaker.Listener {
+	private static final Logger log = LoggerFactory.getLogger(FailbackController.class);
+
+	public static final String PROPNAME_FAILBACKRAMP = "failbackRampInMilliSeconds";
+	public static final String PROPNAME_FAILBACKINITIALSHARE = "failbackInitialShare";
+	public static final String PROPNAME_FAILBACKMAXERRORRATE = "failbackMaxErrorRate";
+	public static final String PROPNAME_FAILBACKMAXLATENCY = "failbackMaxLatencyInMilliSeconds";
+	private static final double FAILBACKINITIALSHAREDEFAULT = 0.01D;
+	private static final double FAILBACKMAXERRORRATEDEFAULT = 0.1D;
+
+	//no abort decision until the ramp has seen enough remote calls
+	private static final int MIN_SAMPLES = 20;
+
+	private static final long NOT_RAMPING = -1L;
+	private static final long CATCHING_UP = 0L;
+
+	private final CircuitBreaker circuitBreaker;
+	private final Runnable catchUp;
+	private final long rampMillis;
+	private final double initialShare;
+	private final double maxErrorRate;
+	private final long maxLatencyNanos;
+
+	private volatile long rampStartedAt = NOT_RAMPING;
+	private final AtomicLong routingCounter = new AtomicLong(0L);
+	private final AtomicLong rampCalls = new AtomicLong(0L);
+	private final AtomicLong rampFailures = new AtomicLong(0L);
+	private volatile LatencyTracker rampLatency;
+	private final AtomicLong abortCount = new AtomicLong(0L);
+
+	/*
+	 * @param catchUp run when the circuit closes: it should schedule the catch-up asynchronously and call catchUpDone() once finished
+	 */
+	public FailbackController(Properties properties, CircuitBreaker circuitBreaker, Runnable catchUp) {
+		this.circuitBreaker = circuitBreaker;
+		this.catchUp = catchUp;
+		this.rampMillis = PropertyUtils.getLongProperty(properties, PROPNAME_FAILBACKRAMP, 0L, 0L);
+		this.initialShare = PropertyUtils.getDoubleProperty(properties, PROPNAME_FAILBACKINITIALSHARE, FAILBACKINITIALSHAREDEFAULT, 0.0D, 1.0D);
+		this.maxErrorRate = PropertyUtils.getDoubleProperty(properties, PROPNAME_FAILBACKMAXERRORRATE, FAILBACKMAXERRORRATEDEFAULT, 0.0D, 1.0D);
+		this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(PropertyUtils.getLongProperty(properties, PROPNAME_FAILBACKMAXLATENCY, 0L, 0L));
+	}
+
+	public boolean isEnabled() {
+		return rampMillis > 0;
+	}
+
+	public boolean isRamping() {
+		return rampStartedAt != NOT_RAMPING;
+	}
+
+	public void circuitOpened() {
+		rampStartedAt = NOT_RAMPING;
+	}
+
+	public void circuitClosed() {
+		if(!isEnabled())
+			return;
+
+		rampCalls.set(0L);
+		rampFailures.set(0L);
+		rampLatency = new LatencyTracker(256, 0.95D);
+		rampStartedAt = CATCHING_UP;
+		log.info("Failing back to the delegated cache - catching up first, then ramping over " + rampMillis + " ms");
+		catchUp.run();
+	}
+
+	/*
+	 * The local mirror caught up: start ramping the remote traffic
+	 */
+	public void catchUpDone() {
+		if(rampStartedAt == CATCHING_UP)
+			rampStartedAt = System.currentTimeMillis();
+	}
+
+	/*
+	 * @return the share (0 to 1) of the local misses that should currently go to the delegated cache
+	 */
+	public double getRemoteShare() {
+		long startedAt = rampStartedAt;
+		if(startedAt == NOT_RAMPING)
+			return 1.0D;
+		if(startedAt == CATCHING_UP)
+			return initialShare;
+
+		double elapsedRatio = (double)(System.currentTimeMillis() - startedAt) / rampMillis;
+		if(elapsedRatio >= 1.0D) {
+			rampStartedAt = NOT_RAMPING;
+			log.info("Failback to the delegated cache completed");
+			return 1.0D;
+		}
+		return initialShare + (1.0D - initialShare) * elapsedRatio;
+	}
+
+	/*
+	 * Spreads the remote calls evenly: the n-th call goes remote whenever n * share crosses an integer
+	 */
+	public boolean routeRemotely() {
+		if(!isRamping())
+			return true;
+
+		double share = getRemoteShare();
+		long n = routingCounter.incrementAndGet();
+		return (long)(n * share) != (long)((n - 1) * share);
+	}
+
+	/*
+	 * Outcome of a remote call: aborts the failback if the delegated cache regresses while ramping
+	 */
+	public void recordOutcome(boolean success, long latencyNanos) {
+		if(!isRamping())
+			return;
+
+		long calls = rampCalls.incrementAndGet();
+		long failures = (success) ? rampFailures.get() : rampFailures.incrementAndGet();
+		LatencyTracker latency = rampLatency;
+		if(success && null != latency)
+			latency.record(latencyNanos);
+
+		if(calls < MIN_SAMPLES)
+			return;
+
+		boolean tooManyErrors = (double)failures / calls > maxErrorRate;
+		boolean tooSlow = maxLatencyNanos > 0 && null != latency && latency.getQuantileNanos() > maxLatencyNanos;
+		if(tooManyErrors || tooSlow) {
+			log.warn(String.format("Aborting failback to the delegated cache: %d failures out of %d calls, p95=%d ms",
+					failures, calls, (null != latency) ? TimeUnit.NANOSECONDS.toMillis(latency.getQuantileNanos()) : -1L));
+			abortCount.incrementAndGet();
+			rampStartedAt = NOT_RAMPING;
+			circuitBreaker.forceOpen();
+		}
+	}
+
+	public long getAbortCount() {
+		return abortCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("FailbackController [enabled=%s, ramping=%s, remoteShare=%.2f, aborted=%d]",
+				isEnabled(), isRamping(), getRemoteShare(), getAbortCount());
+	}
+}
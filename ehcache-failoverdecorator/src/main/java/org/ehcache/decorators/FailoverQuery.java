@@ -0,0 +1,168 @@
+package org.ehcache.decorators;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.search.Attribute;
+import net.sf.ehcache.search.Direction;
+import net.sf.ehcache.search.Query;
+import net.sf.ehcache.search.Results;
+import net.sf.ehcache.search.SearchException;
+import net.sf.ehcache.search.aggregator.Aggregator;
+import net.sf.ehcache.search.expression.Criteria;
+
+/*
+ * Query returned by CacheFailoverDecorator#createQuery(): it only records what is asked,
+ * so that at execute() time the decorator can run it either against the delegated cache or against the local search index.
+ */
+public class FailoverQuery implements Query {
+	private final CacheFailoverDecorator decorator;
+
+	private boolean includeKeys = false;
+	private boolean includeValues = false;
+	private final Set<Attribute<?>> includedAttributes = new LinkedHashSet<Attribute<?>>();
+	private final List<Aggregator> aggregators = new ArrayList<Aggregator>();
+	private final List<Attribute<?>> groupBys = new ArrayList<Attribute<?>>();
+	private final List<Attribute<?>> orderByAttributes = new ArrayList<Attribute<?>>();
+	private final List<Direction> orderByDirections = new ArrayList<Direction>();
+	private final List<Criteria> criteria = new ArrayList<Criteria>();
+	private int maxResults = -1;
+	private volatile boolean frozen = false;
+
+	FailoverQuery(CacheFailoverDecorator decorator) {
+		this.decorator = decorator;
+	}
+
+	public Query includeKeys() {
+		checkFrozen();
+		includeKeys = true;
+		return this;
+	}
+
+	public Query includeValues() {
+		checkFrozen();
+		includeValues = true;
+		return this;
+	}
+
+	public Query includeAttribute(Attribute<?>... attributes) {
+		checkFrozen();
+		for(Attribute<?> attribute : attributes) {
+			includedAttributes.add(attribute);
+		}
+		return this;
+	}
+
+	public Query includeAggregator(Aggregator... aggregatorsToInclude) {
+		checkFrozen();
+		for(Aggregator aggregator : aggregatorsToInclude) {
+			aggregators.add(aggregator);
+		}
+		return this;
+	}
+
+	public Query addOrderBy(Attribute<?> attribute, Direction direction) {
+		checkFrozen();
+		orderByAttributes.add(attribute);
+		orderByDirections.add(direction);
+		return this;
+	}
+
+	public Query addGroupBy(Attribute<?>... attributes) {
+		checkFrozen();
+		for(Attribute<?> attribute : attributes) {
+			groupBys.add(attribute);
+		}
+		return this;
+	}
+
+	public Query maxResults(int maxResults) {
+		checkFrozen();
+		this.maxResults = maxResults;
+		return this;
+	}
+
+	public Query addCriteria(Criteria criteria) {
+		checkFrozen();
+		this.criteria.add(criteria);
+		return this;
+	}
+
+	public Query end() {
+		frozen = true;
+		return this;
+	}
+
+	public Results execute() throws SearchException {
+		return decorator.executeQuery(this);
+	}
+
+	private void checkFrozen() {
+		if(frozen)
+			throw new SearchException("Query is frozen and cannot be mutated");
+	}
+
+	/*
+	 * Replays the recorded query on the given cache
+	 */
+	Query toQuery(Ehcache cache) {
+		Query query = cache.createQuery();
+		if(includeKeys)
+			query.includeKeys();
+		if(includeValues)
+			query.includeValues();
+		if(!includedAttributes.isEmpty())
+			query.includeAttribute(includedAttributes.toArray(new Attribute<?>[includedAttributes.size()]));
+		if(!aggregators.isEmpty())
+			query.includeAggregator(aggregators.toArray(new Aggregator[aggregators.size()]));
+		if(!groupBys.isEmpty())
+			query.addGroupBy(groupBys.toArray(new Attribute<?>[groupBys.size()]));
+		for(int i = 0; i < orderByAttributes.size(); i++) {
+			query.addOrderBy(orderByAttributes.get(i), orderByDirections.get(i));
+		}
+		for(Criteria c : criteria) {
+			query.addCriteria(c);
+		}
+		if(maxResults >= 0)
+			query.maxResults(maxResults);
+		if(frozen)
+			query.end();
+		return query;
+	}
+
+	boolean isIncludeKeys() {
+		return includeKeys;
+	}
+
+	boolean isIncludeValues() {
+		return includeValues;
+	}
+
+	Set<Attribute<?>> getIncludedAttributes() {
+		return Collections.unmodifiableSet(includedAttributes);
+	}
+
+	boolean hasAggregatorsOrGroupBys() {
+		return !aggregators.isEmpty() || !groupBys.isEmpty();
+	}
+
+	List<Attribute<?>> getOrderByAttributes() {
+		return Collections.unmodifiableList(orderByAttributes);
+	}
+
+	List<Direction> getOrderByDirections() {
+		return Collections.unmodifiableList(orderByDirections);
+	}
+
+	List<Criteria> getCriteria() {
+		return Collections.unmodifiableList(criteria);
+	}
+
+	int getMaxResults() {
+		return maxResults;
+	}
+}
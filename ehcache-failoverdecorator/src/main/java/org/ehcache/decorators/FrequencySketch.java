@@ -0,0 +1,63 @@
+package org.ehcache.decorators;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * Count-min sketch estimating how often keys are accessed, in a fixed amount of memory (no per-key object).
+ * Each key increments one counter in each of DEPTH rows; its frequency is the minimum of those counters, which can only over-estimate.
+ * Calling halve() periodically ages the counts, so that the estimate follows the current working set.
+ */
+public class FrequencySketch {
+	private static final int DEPTH = 4;
+	private static final int[] SEEDS = { 0x97cb3127, 0x0a5b3c41, 0x3b6b5a9d, 0x7c2a1f55 };
+
+	private final AtomicIntegerArray counters;
+	private final int rowMask;
+
+	/*
+	 * @param expectedKeys number of distinct keys to tell apart, the sketch uses about 16 bytes per expected key
+	 */
+	public FrequencySketch(int expectedKeys) {
+		int width = Integer.highestOneBit(Math.max(16, expectedKeys) - 1) << 1;
+		this.rowMask = width - 1;
+		this.counters = new AtomicIntegerArray(width * DEPTH);
+	}
+
+	public void increment(Object key) {
+		int hash = spread(key.hashCode());
+		for(int row = 0; row < DEPTH; row++) {
+			int index = indexOf(hash, row);
+			if(counters.get(index) < Integer.MAX_VALUE)
+				counters.incrementAndGet(index);
+		}
+	}
+
+	public int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int min = Integer.MAX_VALUE;
+		for(int row = 0; row < DEPTH; row++) {
+			min = Math.min(min, counters.get(indexOf(hash, row)));
+		}
+		return min;
+	}
+
+	/*
+	 * Divides all counts by two (not atomic as a whole: concurrent increments may be halved or not)
+	 */
+	public void halve() {
+		for(int i = 0; i < counters.length(); i++) {
+			counters.set(i, counters.get(i) >>> 1);
+		}
+	}
+
+	private int indexOf(int hash, int row) {
+		int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+		h ^= (h >>> 16);
+		return row * (rowMask + 1) + (h & rowMask);
+	}
+
+	private static int spread(int h) {
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+}
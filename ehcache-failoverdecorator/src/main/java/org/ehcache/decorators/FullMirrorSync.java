@@ -0,0 +1,213 @@
+package org.ehcache.decorators;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Mirrors the whole delegated cache into the local tier, without needing any search attribute.
+ * The keys are split into segments by key hash, copied in parallel on the sync pool: each segment task walks the key set of the delegated cache
+ * (which clustered caches page through lazily), and streams the keys of its segment in chunks (one bulk get and one bulk put per chunk),
+ * so that only a chunk of keys per segment in flight is held in memory, never the whole key set.
+ * The cursor of a pass is the set of segments already copied: an interrupted sync resumes with the other segments (a segment interrupted half-way is copied again,
+ * so more mirrorSegments make for less work redone), and only when every segment is done does the next run start a new pass.
+ * The local keys that were not copied since the start of the pass are then gone from the delegated cache, and are pruned.
+ * The cursor lives in memory, as does the local tier: a restarted node starts a new pass.
+ * Each segment enumerates the whole key set to find its keys: the enumeration costs mirrorSegments walks of the keys (but no values) per pass.
+ * Each chunk is fetched within the refresh time budget: a segment that exhausts it stops there, and is copied again on the next run.
+ */
+public class FullMirrorSync implements Runnable {
+	private static final Logger log = LoggerFactory.getLogger(FullMirrorSync.class);
+
+	private final Ehcache delegatedCache;
+	private final Ehcache localCache;
+	private final ExecutorService syncService;
+	private final CircuitBreaker circuitBreaker;
+	private final TimeBudgets timeBudgets;
+	private final int segments;
+	private final int chunkSize;
+
+	//resumable cursor, only accessed by the timer thread and the segment tasks it waits for
+	private final boolean[] segmentDone;
+	//0 until a pass starts
+	private long passStartTime = 0L;
+	private final AtomicLong passCount = new AtomicLong(0L);
+	private volatile long lastPassCompletedAt = 0L;
+
+	public FullMirrorSync(Ehcache delegatedCache, Ehcache localCache, ExecutorService syncService, CircuitBreaker circuitBreaker, TimeBudgets timeBudgets,
+			int segments, int chunkSize) {
+		this.delegatedCache = delegatedCache;
+		this.localCache = localCache;
+		this.syncService = syncService;
+		this.circuitBreaker = circuitBreaker;
+		this.timeBudgets = timeBudgets;
+		this.segments = segments;
+		this.chunkSize = chunkSize;
+		this.segmentDone = new boolean[segments];
+	}
+
+	public void run() {
+		if(!circuitBreaker.allowRequest())
+			return;
+
+		if(passStartTime == 0L)
+			passStartTime = System.currentTimeMillis();
+
+		long startTime = System.currentTimeMillis();
+		List<Future<?>> futs = new ArrayList<Future<?>>(segments);
+		for(int segment = 0; segment < segments; segment++) {
+			if(!segmentDone[segment])
+				futs.add(syncService.submit(new SegmentSyncOp(segment)));
+		}
+		for(Future<?> fut : futs) {
+			try {
+				fut.get();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				log.warn("Error while mirroring a segment of delegated cache " + delegatedCache.getName(), e);
+			}
+		}
+		if(log.isDebugEnabled())
+			log.debug(String.format("Mirror time for %d segments: %d ms", futs.size(), System.currentTimeMillis() - startTime));
+
+		for(int segment = 0; segment < segments; segment++) {
+			if(!segmentDone[segment]) {
+				if(log.isDebugEnabled())
+					log.debug("Mirror pass of " + delegatedCache.getName() + " interrupted - will resume on next run");
+				return;
+			}
+		}
+
+		pruneRemovedKeys(passStartTime);
+		for(int segment = 0; segment < segments; segment++) {
+			segmentDone[segment] = false;
+		}
+		passStartTime = 0L;
+		passCount.incrementAndGet();
+		lastPassCompletedAt = System.currentTimeMillis();
+	}
+
+	private int segmentFor(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % segments;
+	}
+
+	/*
+	 * Local entries that were not copied since the start of the pass are gone from the delegated cache
+	 */
+	@SuppressWarnings("unchecked")
+	private void pruneRemovedKeys(long passStartTime) {
+		for(Object localKey : (List<Object>)localCache.getKeys()) {
+			Element local = localCache.getQuiet(localKey);
+			if(null != local && local.getLatestOfCreationAndUpdateTime() < passStartTime)
+				localCache.remove(localKey);
+		}
+	}
+
+	public long getPassCount() {
+		return passCount.get();
+	}
+
+	public long getLastPassCompletedAt() {
+		return lastPassCompletedAt;
+	}
+
+	@Override
+	public String toString() {
+		int done = 0;
+		for(boolean segment : segmentDone) {
+			if(segment)
+				done++;
+		}
+		return String.format("FullMirrorSync [segments=%d, segmentsDoneInCurrentPass=%d, completedPasses=%d]", segments, done, getPassCount());
+	}
+
+	/*
+	 * Copies one segment chunk by chunk, walking the key set of the delegated cache for the keys of the segment
+	 */
+	private class SegmentSyncOp implements Runnable {
+		private final int segment;
+
+		public SegmentSyncOp(int segment) {
+			this.segment = segment;
+		}
+
+		@SuppressWarnings("unchecked")
+		public void run() {
+			List<Object> keys;
+			try {
+				keys = delegatedCache.getKeys();
+			} catch (RuntimeException re) {
+				circuitBreaker.recordFailure();
+				throw re;
+			}
+
+			List<Object> chunk = new ArrayList<Object>(chunkSize);
+			for(Object key : keys) {
+				if(segmentFor(key) != segment)
+					continue;
+				chunk.add(key);
+				if(chunk.size() >= chunkSize) {
+					if(!copyChunk(chunk))
+						return;
+					chunk = new ArrayList<Object>(chunkSize);
+				}
+			}
+			if(!chunk.isEmpty() && !copyChunk(chunk))
+				return;
+			segmentDone[segment] = true;
+		}
+
+		/*
+		 * @return false if the refresh budget got exhausted, in which case the local copies of the chunk are left as they are
+		 */
+		private boolean copyChunk(final List<Object> chunk) {
+			Map<Object, Element> fetched;
+			try {
+				fetched = timeBudgets.call(TimeBudgets.Operation.REFRESH, new Callable<Map<Object, Element>>() {
+					public Map<Object, Element> call() {
+						return delegatedCache.getAll(chunk);
+					}
+				});
+				circuitBreaker.recordSuccess();
+			} catch (TimeoutException te) {
+				//slow rather than unavailable: the circuit is left alone, and the segment is copied again on the next run
+				if(log.isDebugEnabled())
+					log.debug(te.getMessage() + " - segment " + segment + " of " + delegatedCache.getName() + " will resume on next run");
+				return false;
+			} catch (RuntimeException re) {
+				circuitBreaker.recordFailure();
+				throw re;
+			}
+
+			Collection<Element> toPut = new ArrayList<Element>(fetched.size());
+			for(Object key : chunk) {
+				Element element = fetched.get(key);
+				if(null == element) {
+					localCache.remove(key);
+				} else {
+					//copy the element so that the local time to live counts from now
+					toPut.add(new Element(element.getObjectKey(), element.getObjectValue(), element.getVersion()));
+				}
+			}
+			if(!toPut.isEmpty())
+				localCache.putAll(toPut);
+			return true;
+		}
+	}
+}
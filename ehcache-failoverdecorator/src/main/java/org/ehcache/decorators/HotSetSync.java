@@ -0,0 +1,164 @@
+package org.ehcache.decorators;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Mirrors only the hottest keys of the delegated cache in the local tier.
+ * Reads are counted in a frequency sketch, and the keys that missed locally are kept as candidates.
+ * On each run, the current hot set and the candidates are ranked by estimated frequency: the top hotSetMaxEntries
+ * (within hotSetMaxBytes if set) are fetched in chunks and mirrored, the keys falling out of the top are removed locally,
+ * and the sketch is aged so that the hot set follows the working set as it shifts.
+ * Each chunk is fetched within the refresh time budget: a run that exhausts it leaves the hot set as it is until the next run.
+ */
+public class HotSetSync implements Runnable {
+	private static final Logger log = LoggerFactory.getLogger(HotSetSync.class);
+
+	private final Ehcache delegatedCache;
+	private final Ehcache localCache;
+	private final CircuitBreaker circuitBreaker;
+	private final TimeBudgets timeBudgets;
+	private final int maxEntries;
+	private final long maxBytes;
+	private final int chunkSize;
+	private final FrequencySketch sketch;
+
+	//mirrored keys and their size in bytes (0 when no byte budget is configured)
+	private final ConcurrentMap<Object, Long> hotKeys = new ConcurrentHashMap<Object, Long>();
+	private final ConcurrentMap<Object, Boolean> candidates = new ConcurrentHashMap<Object, Boolean>();
+	private volatile long hotBytes = 0L;
+	private final AtomicLong admittedCount = new AtomicLong(0L);
+	private final AtomicLong droppedCount = new AtomicLong(0L);
+
+	public HotSetSync(Ehcache delegatedCache, Ehcache localCache, CircuitBreaker circuitBreaker, TimeBudgets timeBudgets, int maxEntries, long maxBytes, int chunkSize) {
+		this.delegatedCache = delegatedCache;
+		this.localCache = localCache;
+		this.circuitBreaker = circuitBreaker;
+		this.timeBudgets = timeBudgets;
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.chunkSize = chunkSize;
+		this.sketch = new FrequencySketch(maxEntries * 4);
+	}
+
+	/*
+	 * Called on every read: counts the access and remembers the keys that are not mirrored yet
+	 */
+	public void recordAccess(Object key, boolean localHit) {
+		sketch.increment(key);
+		if(!localHit && candidates.size() < maxEntries && !hotKeys.containsKey(key))
+			candidates.putIfAbsent(key, Boolean.TRUE);
+	}
+
+	public void run() {
+		if(!circuitBreaker.allowRequest())
+			return;
+
+		List<Object> ranked = new ArrayList<Object>(hotKeys.keySet());
+		for(Object candidate : candidates.keySet()) {
+			if(!hotKeys.containsKey(candidate))
+				ranked.add(candidate);
+		}
+		candidates.clear();
+
+		final Map<Object, Integer> frequencies = new HashMap<Object, Integer>(ranked.size());
+		for(Object key : ranked) {
+			frequencies.put(key, sketch.frequency(key));
+		}
+		Collections.sort(ranked, new Comparator<Object>() {
+			public int compare(Object k1, Object k2) {
+				return frequencies.get(k2).compareTo(frequencies.get(k1));
+			}
+		});
+
+		Map<Object, Long> selected = new HashMap<Object, Long>();
+		long selectedBytes = 0L;
+		try {
+			for(int start = 0; start < ranked.size() && selected.size() < maxEntries; start += chunkSize) {
+				final List<Object> chunk = ranked.subList(start, Math.min(ranked.size(), start + chunkSize));
+				Map<Object, Element> fetched = timeBudgets.call(TimeBudgets.Operation.REFRESH, new Callable<Map<Object, Element>>() {
+					public Map<Object, Element> call() {
+						return delegatedCache.getAll(chunk);
+					}
+				});
+				for(Object key : chunk) {
+					Element element = fetched.get(key);
+					if(null == element || selected.size() >= maxEntries)
+						continue;
+
+					long size = (maxBytes > 0) ? element.getSerializedSize() : 0L;
+					if(maxBytes > 0 && selectedBytes + size > maxBytes)
+						continue;
+
+					selectedBytes += size;
+					selected.put(key, size);
+					if(!hotKeys.containsKey(key))
+						admittedCount.incrementAndGet();
+					//copy the element so that the local time to live counts from now
+					localCache.put(new Element(element.getObjectKey(), element.getObjectValue(), element.getVersion()));
+				}
+			}
+			circuitBreaker.recordSuccess();
+		} catch (TimeoutException te) {
+			//slow rather than unavailable: the hot set (and what was already copied of it) stays mirrored until the next run
+			if(log.isDebugEnabled())
+				log.debug(te.getMessage() + " - keeping the hot set of " + delegatedCache.getName() + " as it is");
+			return;
+		} catch (RuntimeException re) {
+			circuitBreaker.recordFailure();
+			log.warn("Could not refresh the hot set from delegated cache " + delegatedCache.getName(), re);
+			return;
+		}
+
+		for(Object key : hotKeys.keySet()) {
+			if(!selected.containsKey(key)) {
+				localCache.remove(key);
+				hotKeys.remove(key);
+				droppedCount.incrementAndGet();
+			}
+		}
+		hotKeys.putAll(selected);
+		hotBytes = selectedBytes;
+		sketch.halve();
+
+		if(log.isDebugEnabled())
+			log.debug(toString());
+	}
+
+	public int getHotSetSize() {
+		return hotKeys.size();
+	}
+
+	public long getHotSetBytes() {
+		return hotBytes;
+	}
+
+	public long getAdmittedCount() {
+		return admittedCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("HotSetSync [hotKeys=%d/%d, hotBytes=%d/%d, admitted=%d, dropped=%d]",
+				getHotSetSize(), maxEntries, getHotSetBytes(), maxBytes, getAdmittedCount(), getDroppedCount());
+	}
+}
@@ -0,0 +1,303 @@
+package org.ehcache.decorators;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.SearchAttribute;
+import net.sf.ehcache.event.CacheEventListener;
+import net.sf.ehcache.search.Attribute;
+import net.sf.ehcache.search.Direction;
+import net.sf.ehcache.search.Query;
+import net.sf.ehcache.search.Result;
+import net.sf.ehcache.search.Results;
+import net.sf.ehcache.search.SearchException;
+import net.sf.ehcache.search.attribute.AttributeExtractor;
+import net.sf.ehcache.search.attribute.AttributeExtractorException;
+import net.sf.ehcache.search.expression.Criteria;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * In-memory index of the search attributes of the entries mirrored in the local tier.
+ * The attributes are extracted (with the extractors configured on the delegated cache) when an entry is put locally,
+ * so that a query can be evaluated against the index without touching the delegated cache nor re-extracting anything.
+ * Supports the criteria of the ehcache search API (equality, ranges, in, and/or/not...), key/value/attribute projections, ordering and max results.
+ * Aggregators and group-bys are not supported.
+ */
+public class LocalSearchIndex implements CacheEventListener {
+	private static final Logger log = LoggerFactory.getLogger(LocalSearchIndex.class);
+
+	private static final String KEY_ATTRIBUTE = Query.KEY.getAttributeName();
+	private static final String VALUE_ATTRIBUTE = Query.VALUE.getAttributeName();
+
+	private final Ehcache localCache;
+	private final Map<String, AttributeExtractor> extractors = new HashMap<String, AttributeExtractor>();
+	private final Map<String, AttributeExtractor> indexReaders = new HashMap<String, AttributeExtractor>();
+	private final ConcurrentMap<Object, Map<String, Object>> index = new ConcurrentHashMap<Object, Map<String, Object>>();
+
+	public LocalSearchIndex(Ehcache localCache, Map<String, SearchAttribute> searchAttributes) {
+		this.localCache = localCache;
+		for(SearchAttribute searchAttribute : searchAttributes.values()) {
+			String name = searchAttribute.getName();
+			if(KEY_ATTRIBUTE.equals(name) || VALUE_ATTRIBUTE.equals(name))
+				continue;
+			extractors.put(name, searchAttribute.constructExtractor());
+		}
+
+		IndexReader reader = new IndexReader();
+		for(String name : extractors.keySet()) {
+			indexReaders.put(name, reader);
+		}
+		indexReaders.put(KEY_ATTRIBUTE, reader);
+		indexReaders.put(VALUE_ATTRIBUTE, reader);
+	}
+
+	public Set<String> getAttributeNames() {
+		return Collections.unmodifiableSet(indexReaders.keySet());
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	/*
+	 * Evaluates the recorded query against the index
+	 */
+	public Results execute(FailoverQuery query) throws SearchException {
+		if(query.hasAggregatorsOrGroupBys())
+			throw new SearchException("Aggregators and group-bys are not supported by the local search index");
+
+		List<Criteria> criteria = query.getCriteria();
+		List<LocalResult> matches = new ArrayList<LocalResult>();
+		for(Map.Entry<Object, Map<String, Object>> entry : index.entrySet()) {
+			Element indexed = new Element(entry.getKey(), entry.getValue());
+			boolean matching = true;
+			for(int i = 0; matching && i < criteria.size(); i++) {
+				matching = criteria.get(i).execute(indexed, indexReaders);
+			}
+			if(matching)
+				matches.add(new LocalResult(query, entry.getKey(), entry.getValue()));
+		}
+
+		if(!query.getOrderByAttributes().isEmpty())
+			Collections.sort(matches, new ResultComparator(query.getOrderByAttributes(), query.getOrderByDirections()));
+
+		if(query.getMaxResults() >= 0 && matches.size() > query.getMaxResults())
+			matches = new ArrayList<LocalResult>(matches.subList(0, query.getMaxResults()));
+
+		//projection of the values is only resolved for the results that are kept
+		if(query.isIncludeValues()) {
+			for(LocalResult match : matches) {
+				Element local = localCache.getQuiet(match.key);
+				match.value = (null != local) ? local.getObjectValue() : null;
+			}
+		}
+
+		return new LocalResults(query, matches);
+	}
+
+	private void index(Element element) {
+		if(null == element || null == element.getObjectKey())
+			return;
+
+		Map<String, Object> attributes = new HashMap<String, Object>(extractors.size());
+		for(Map.Entry<String, AttributeExtractor> extractor : extractors.entrySet()) {
+			try {
+				Object value = extractor.getValue().attributeFor(element, extractor.getKey());
+				if(null != value)
+					attributes.put(extractor.getKey(), value);
+			} catch (AttributeExtractorException e) {
+				if(log.isDebugEnabled())
+					log.debug("Could not extract attribute " + extractor.getKey() + " for key " + element.getObjectKey(), e);
+			}
+		}
+		index.put(element.getObjectKey(), attributes);
+	}
+
+	private void unindex(Element element) {
+		if(null != element && null != element.getObjectKey())
+			index.remove(element.getObjectKey());
+	}
+
+	public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+		index(element);
+	}
+
+	public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+		index(element);
+	}
+
+	public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+		unindex(element);
+	}
+
+	public void notifyElementExpired(Ehcache cache, Element element) {
+		unindex(element);
+	}
+
+	public void notifyElementEvicted(Ehcache cache, Element element) {
+		unindex(element);
+	}
+
+	public void notifyRemoveAll(Ehcache cache) {
+		index.clear();
+	}
+
+	public void dispose() {
+		index.clear();
+	}
+
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		throw new CloneNotSupportedException("LocalSearchIndex is bound to a single decorator");
+	}
+
+	/*
+	 * Reads the attributes from the indexed element (key = cache key, value = extracted attributes),
+	 * the value attribute being resolved from the local tier
+	 */
+	private class IndexReader implements AttributeExtractor {
+		private static final long serialVersionUID = 1L;
+
+		@SuppressWarnings("unchecked")
+		public Object attributeFor(Element indexed, String attributeName) throws AttributeExtractorException {
+			if(KEY_ATTRIBUTE.equals(attributeName))
+				return indexed.getObjectKey();
+			if(VALUE_ATTRIBUTE.equals(attributeName)) {
+				Element local = localCache.getQuiet(indexed.getObjectKey());
+				return (null != local) ? local.getObjectValue() : null;
+			}
+			return ((Map<String, Object>)indexed.getObjectValue()).get(attributeName);
+		}
+	}
+
+	private static class LocalResult implements Result {
+		private final FailoverQuery query;
+		private final Object key;
+		private final Map<String, Object> attributes;
+		private Object value;
+
+		public LocalResult(FailoverQuery query, Object key, Map<String, Object> attributes) {
+			this.query = query;
+			this.key = key;
+			this.attributes = attributes;
+		}
+
+		public Object getKey() throws SearchException {
+			if(!query.isIncludeKeys())
+				throw new SearchException("keys not included in query");
+			return key;
+		}
+
+		public Object getValue() throws SearchException {
+			if(!query.isIncludeValues())
+				throw new SearchException("values not included in query");
+			return value;
+		}
+
+		@SuppressWarnings("unchecked")
+		public <T> T getAttribute(Attribute<T> attribute) throws SearchException {
+			if(!query.getIncludedAttributes().contains(attribute))
+				throw new SearchException("Attribute " + attribute.getAttributeName() + " not included in query");
+			if(KEY_ATTRIBUTE.equals(attribute.getAttributeName()))
+				return (T)key;
+			return (T)attributes.get(attribute.getAttributeName());
+		}
+
+		public List<Object> getAggregatorResults() throws SearchException {
+			throw new SearchException("No aggregators present in query");
+		}
+
+		private Object orderingValue(Attribute<?> attribute) {
+			if(KEY_ATTRIBUTE.equals(attribute.getAttributeName()))
+				return key;
+			return attributes.get(attribute.getAttributeName());
+		}
+	}
+
+	private static class LocalResults implements Results {
+		private final FailoverQuery query;
+		private final List<Result> results;
+
+		public LocalResults(FailoverQuery query, List<LocalResult> matches) {
+			this.query = query;
+			this.results = Collections.<Result>unmodifiableList(matches);
+		}
+
+		public void discard() {
+		}
+
+		public List<Result> all() throws SearchException {
+			return results;
+		}
+
+		public List<Result> range(int start, int count) throws SearchException, IndexOutOfBoundsException {
+			if(start < 0 || count < 0)
+				throw new IllegalArgumentException("start and count should be positive");
+			if(start >= results.size())
+				return Collections.emptyList();
+			return results.subList(start, Math.min(results.size(), start + count));
+		}
+
+		public int size() {
+			return results.size();
+		}
+
+		public boolean hasKeys() {
+			return query.isIncludeKeys();
+		}
+
+		public boolean hasValues() {
+			return query.isIncludeValues();
+		}
+
+		public boolean hasAttributes() {
+			return !query.getIncludedAttributes().isEmpty();
+		}
+
+		public boolean hasAggregators() {
+			return false;
+		}
+	}
+
+	private static class ResultComparator implements Comparator<LocalResult> {
+		private final List<Attribute<?>> attributes;
+		private final List<Direction> directions;
+
+		public ResultComparator(List<Attribute<?>> attributes, List<Direction> directions) {
+			this.attributes = attributes;
+			this.directions = directions;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public int compare(LocalResult r1, LocalResult r2) {
+			for(int i = 0; i < attributes.size(); i++) {
+				Object v1 = r1.orderingValue(attributes.get(i));
+				Object v2 = r2.orderingValue(attributes.get(i));
+				int cmp;
+				if(v1 == null || v2 == null) {
+					//nulls last, whatever the direction
+					cmp = (v1 == null) ? ((v2 == null) ? 0 : 1) : -1;
+					if(cmp != 0)
+						return cmp;
+				} else {
+					cmp = ((Comparable)v1).compareTo(v2);
+					if(cmp != 0)
+						return (directions.get(i) == Direction.DESCENDING) ? -cmp : cmp;
+				}
+			}
+			return 0;
+		}
+	}
+}
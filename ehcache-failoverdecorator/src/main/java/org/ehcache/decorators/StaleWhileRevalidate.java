@@ -0,0 +1,163 @@
+package org.ehcache.decorators;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Keeps the entries that just expired from the local tier so that they can still be served for a bounded time (max-stale window)
+ * while a single asynchronous revalidation fetches the fresh value from the delegated cache.
+ * Expired entries are captured through the expiry notifications of the local tier,
+ * and dropped as soon as the key is written or removed again, or once they are older than the max-stale window.
+ * Disabled unless staleWhileRevalidateMaxStaleInMilliSeconds is set.
+ */
+public class StaleWhileRevalidate implements CacheEventListener {
+	private static final Logger log = LoggerFactory.getLogger(StaleWhileRevalidate.class);
+
+	public static final String PROPNAME_MAXSTALE = "staleWhileRevalidateMaxStaleInMilliSeconds";
+	public static final String PROPNAME_MAXSTALEENTRIES = "staleWhileRevalidateMaxEntries";
+	private static final int MAXSTALEENTRIESDEFAULT = 10000;
+
+	private final long maxStaleMillis;
+	private final int maxStaleEntries;
+	private final ConcurrentMap<Object, Element> staleEntries = new ConcurrentHashMap<Object, Element>();
+	private final ConcurrentMap<Object, Boolean> revalidating = new ConcurrentHashMap<Object, Boolean>();
+
+	private final AtomicLong staleHitCount = new AtomicLong(0L);
+	private final AtomicLong revalidationCount = new AtomicLong(0L);
+
+	public StaleWhileRevalidate(Properties properties) {
+		this.maxStaleMillis = PropertyUtils.getLongProperty(properties, PROPNAME_MAXSTALE, 0L, 0L);
+		this.maxStaleEntries = PropertyUtils.getIntProperty(properties, PROPNAME_MAXSTALEENTRIES, MAXSTALEENTRIESDEFAULT, 1);
+	}
+
+	public boolean isEnabled() {
+		return maxStaleMillis > 0;
+	}
+
+	public long getMaxStaleMillis() {
+		return maxStaleMillis;
+	}
+
+	/*
+	 * @return the expired entry for that key if it expired less than max-stale ago, null otherwise
+	 */
+	public Element getStale(Object key) {
+		Element stale = staleEntries.get(key);
+		if(null == stale)
+			return null;
+
+		if(isTooStale(stale, System.currentTimeMillis())) {
+			staleEntries.remove(key, stale);
+			return null;
+		}
+
+		staleHitCount.incrementAndGet();
+		return stale;
+	}
+
+	/*
+	 * @return true if the caller should revalidate the key, false if a revalidation is already in flight
+	 */
+	public boolean startRevalidation(Object key) {
+		if(null == revalidating.putIfAbsent(key, Boolean.TRUE)) {
+			revalidationCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	public void finishRevalidation(Object key) {
+		revalidating.remove(key);
+	}
+
+	/*
+	 * Drops the entries that are past the max-stale window
+	 */
+	public void evictTooStale() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<Object, Element>> it = staleEntries.entrySet().iterator();
+		while(it.hasNext()) {
+			if(isTooStale(it.next().getValue(), now))
+				it.remove();
+		}
+	}
+
+	private boolean isTooStale(Element stale, long now) {
+		return now - stale.getExpirationTime() > maxStaleMillis;
+	}
+
+	public long getStaleHitCount() {
+		return staleHitCount.get();
+	}
+
+	public long getRevalidationCount() {
+		return revalidationCount.get();
+	}
+
+	public int getStaleEntryCount() {
+		return staleEntries.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("StaleWhileRevalidate [maxStale=%d ms, staleEntries=%d, staleHits=%d, revalidations=%d]",
+				maxStaleMillis, getStaleEntryCount(), getStaleHitCount(), getRevalidationCount());
+	}
+
+	public void notifyElementExpired(Ehcache cache, Element element) {
+		if(null == element || null == element.getObjectKey())
+			return;
+
+		if(staleEntries.size() >= maxStaleEntries) {
+			if(log.isDebugEnabled())
+				log.debug("Too many stale entries kept already - not keeping expired key " + element.getObjectKey());
+			return;
+		}
+		staleEntries.put(element.getObjectKey(), element);
+	}
+
+	public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+		if(null != element)
+			staleEntries.remove(element.getObjectKey());
+	}
+
+	public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+		if(null != element)
+			staleEntries.remove(element.getObjectKey());
+	}
+
+	public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+		if(null != element)
+			staleEntries.remove(element.getObjectKey());
+	}
+
+	public void notifyElementEvicted(Ehcache cache, Element element) {
+		//evicted for space, not for age: nothing to serve stale
+	}
+
+	public void notifyRemoveAll(Ehcache cache) {
+		staleEntries.clear();
+	}
+
+	public void dispose() {
+		staleEntries.clear();
+		revalidating.clear();
+	}
+
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		throw new CloneNotSupportedException("StaleWhileRevalidate is bound to a single decorator");
+	}
+}
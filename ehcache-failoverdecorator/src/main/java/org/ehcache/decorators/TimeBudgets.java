@@ -0,0 +1,175 @@
+package org.ehcache.decorators;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.CacheException;
+
+/*
+ * Time budgets for the calls to the delegated cache, independent from the cache-wide nonstop timeout.
+ * A budget can be set per class of operation (timeoutGetInMilliSeconds, timeoutBulkGetInMilliSeconds, timeoutRefreshInMilliSeconds,
+ * timeoutSearchInMilliSeconds), and per call with a thread-local deadline (setDeadline / clearDeadline); the tightest one applies.
+ * A call with a budget runs on the budget pool of its class of operation, and the caller falls back to the local tier once the budget is exhausted.
+ * The call is then abandoned rather than interrupted (the clustered client should not be interrupted mid-operation): it keeps its pool thread
+ * until the delegated cache answers, which is why every class of operation has its own pool of timeoutPoolSize threads, so that slow refreshes
+ * or searches cannot hold up the gets.
+ * A pool queues at most timeoutQueueSize calls: past that, the calls are rejected and fall back to the local tier as if their budget was exhausted,
+ * rather than piling up behind a delegated cache that stopped answering.
+ */
+public class TimeBudgets {
+	public static final String PROPNAME_TIMEOUTPOOLSIZE = "timeoutPoolSize";
+	public static final int TIMEOUTPOOLSIZEDEFAULT = 10;
+	public static final String PROPNAME_TIMEOUTQUEUESIZE = "timeoutQueueSize";
+	public static final int TIMEOUTQUEUESIZEDEFAULT = 100;
+
+	/**
+	 * The classes of operations that get their own budget
+	 */
+	public enum Operation {
+		GET("timeoutGetInMilliSeconds"),
+		BULK_GET("timeoutBulkGetInMilliSeconds"),
+		REFRESH("timeoutRefreshInMilliSeconds"),
+		SEARCH("timeoutSearchInMilliSeconds");
+
+		private final String propertyName;
+
+		private Operation(String propertyName) {
+			this.propertyName = propertyName;
+		}
+
+		public String getPropertyName() {
+			return propertyName;
+		}
+	}
+
+	private static final ThreadLocal<Long> deadline = new ThreadLocal<Long>();
+
+	private final long[] budgetNanos = new long[Operation.values().length];
+	private final ExecutorService[] budgetServices = new ExecutorService[Operation.values().length];
+	private final AtomicLong[] exhaustedCount = new AtomicLong[Operation.values().length];
+	private final AtomicLong[] rejectedCount = new AtomicLong[Operation.values().length];
+
+	/*
+	 * @param budgetServices the budget pool of every class of operation, which should reject the calls it cannot queue
+	 */
+	public TimeBudgets(Properties properties, Map<Operation, ExecutorService> budgetServices) {
+		for(Operation operation : Operation.values()) {
+			this.budgetServices[operation.ordinal()] = budgetServices.get(operation);
+			budgetNanos[operation.ordinal()] = TimeUnit.MILLISECONDS.toNanos(PropertyUtils.getLongProperty(properties, operation.getPropertyName(), 0L, 0L));
+			exhaustedCount[operation.ordinal()] = new AtomicLong(0L);
+			rejectedCount[operation.ordinal()] = new AtomicLong(0L);
+		}
+	}
+
+	/*
+	 * Sets a deadline for the calls made to the decorators by the current thread, until clearDeadline() is called
+	 */
+	public static void setDeadline(long timeout, TimeUnit unit) {
+		deadline.set(System.nanoTime() + unit.toNanos(timeout));
+	}
+
+	public static void clearDeadline() {
+		deadline.remove();
+	}
+
+	/*
+	 * @return the time left for that operation on the current thread, or -1 if it has no budget
+	 */
+	public long remainingNanos(Operation operation) {
+		long remaining = budgetNanos[operation.ordinal()];
+		if(remaining <= 0)
+			remaining = -1L;
+
+		Long threadDeadline = deadline.get();
+		if(null != threadDeadline) {
+			long threadRemaining = Math.max(0L, threadDeadline.longValue() - System.nanoTime());
+			remaining = (remaining < 0) ? threadRemaining : Math.min(remaining, threadRemaining);
+		}
+		return remaining;
+	}
+
+	/*
+	 * Runs the call within the budget of the operation: directly if there is no budget, otherwise on the budget pool.
+	 * @throws TimeoutException if the budget got exhausted, in which case the call is abandoned, or if the budget pool is full
+	 */
+	public <T> T call(Operation operation, Callable<T> callable) throws TimeoutException {
+		return call(operation, callable, remainingNanos(operation));
+	}
+
+	/*
+	 * Same as call(Operation, Callable), with the remaining budget computed beforehand (e.g. on another thread)
+	 */
+	public <T> T call(Operation operation, Callable<T> callable, long remainingNanos) throws TimeoutException {
+		if(remainingNanos < 0)
+			return callDirectly(callable);
+
+		if(remainingNanos == 0)
+			throw exhausted(operation);
+
+		Future<T> future;
+		try {
+			future = budgetServices[operation.ordinal()].submit(callable);
+		} catch (RejectedExecutionException ree) {
+			rejectedCount[operation.ordinal()].incrementAndGet();
+			throw new TimeoutException("Time budget pool full for operation " + operation);
+		}
+
+		try {
+			return future.get(remainingNanos, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException te) {
+			future.cancel(false);
+			throw exhausted(operation);
+		} catch (InterruptedException ie) {
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new CacheException("Interrupted while calling the delegated cache", ie);
+		} catch (ExecutionException ee) {
+			if(ee.getCause() instanceof RuntimeException)
+				throw (RuntimeException)ee.getCause();
+			throw new CacheException(ee.getCause());
+		}
+	}
+
+	private <T> T callDirectly(Callable<T> callable) {
+		try {
+			return callable.call();
+		} catch (RuntimeException re) {
+			throw re;
+		} catch (Exception e) {
+			throw new CacheException(e);
+		}
+	}
+
+	private TimeoutException exhausted(Operation operation) {
+		exhaustedCount[operation.ordinal()].incrementAndGet();
+		return new TimeoutException("Time budget exhausted for operation " + operation);
+	}
+
+	public long getExhaustedCount(Operation operation) {
+		return exhaustedCount[operation.ordinal()].get();
+	}
+
+	public long getRejectedCount(Operation operation) {
+		return rejectedCount[operation.ordinal()].get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("TimeBudgets [");
+		for(Operation operation : Operation.values()) {
+			if(operation.ordinal() > 0)
+				sb.append(", ");
+			sb.append(String.format("%s=%d ms (exhausted %d, rejected %d)", operation, TimeUnit.NANOSECONDS.toMillis(budgetNanos[operation.ordinal()]),
+					getExhaustedCount(operation), getRejectedCount(operation)));
+		}
+		return sb.append("]").toString();
+	}
+}
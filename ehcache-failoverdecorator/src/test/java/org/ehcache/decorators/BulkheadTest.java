@@ -0,0 +1,83 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class BulkheadTest {
+
+	private static Bulkhead newBulkhead(int maxCalls, String fallback) {
+		Properties properties = new Properties();
+		properties.setProperty(Bulkhead.PROPNAME_BULKHEADMAXCALLS, String.valueOf(maxCalls));
+		properties.setProperty(Bulkhead.PROPNAME_BULKHEADTIMEOUT, "0");
+		if(null != fallback)
+			properties.setProperty(Bulkhead.PROPNAME_BULKHEADFALLBACK, fallback);
+		return new Bulkhead(properties);
+	}
+
+	@Test
+	public void disabledByDefault() {
+		Bulkhead bulkhead = new Bulkhead(new Properties());
+		assertFalse(bulkhead.isEnabled());
+		for(int i = 0; i < 1000; i++) {
+			assertTrue(bulkhead.tryEnter());
+		}
+		assertEquals(0L, bulkhead.getRejectedCount());
+	}
+
+	@Test
+	public void rejectsPastTheMaxConcurrentCalls() {
+		Bulkhead bulkhead = newBulkhead(2, null);
+		assertTrue(bulkhead.isEnabled());
+		assertTrue(bulkhead.tryEnter());
+		assertTrue(bulkhead.tryEnter());
+		assertEquals(0, bulkhead.getAvailablePermits());
+
+		assertFalse(bulkhead.tryEnter());
+		assertEquals(1L, bulkhead.getRejectedCount());
+
+		bulkhead.exit();
+		assertTrue(bulkhead.tryEnter());
+		bulkhead.exit();
+		bulkhead.exit();
+		assertEquals(2, bulkhead.getAvailablePermits());
+	}
+
+	@Test(timeout = 5000)
+	public void waitsForAPermitUpToTheAcquireTimeout() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(Bulkhead.PROPNAME_BULKHEADMAXCALLS, "1");
+		properties.setProperty(Bulkhead.PROPNAME_BULKHEADTIMEOUT, "2000");
+		final Bulkhead bulkhead = new Bulkhead(properties);
+		assertTrue(bulkhead.tryEnter());
+
+		Thread exiting = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100L);
+				} catch (InterruptedException e) {
+					return;
+				}
+				bulkhead.exit();
+			}
+		};
+		exiting.start();
+		assertTrue(bulkhead.tryEnter());
+		exiting.join();
+		assertEquals(0L, bulkhead.getRejectedCount());
+	}
+
+	@Test
+	public void fallbacks() {
+		assertFalse(newBulkhead(1, null).isFailFast());
+		assertTrue(newBulkhead(1, "fail").isFailFast());
+		assertFalse(newBulkhead(1, "local").isFailFast());
+		//invalid values revert to the default
+		assertFalse(newBulkhead(1, "sometimes").isFailFast());
+	}
+}
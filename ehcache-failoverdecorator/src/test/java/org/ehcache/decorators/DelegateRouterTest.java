@@ -0,0 +1,99 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.config.CacheConfiguration;
+
+import org.junit.Test;
+
+public class DelegateRouterTest {
+	private static final int ROUTES = 20000;
+
+	private static DelegateRouter newRouter(int delegates) {
+		List<Cache> caches = new ArrayList<Cache>();
+		for(int i = 0; i < delegates; i++) {
+			caches.add(new Cache(new CacheConfiguration("delegate" + i, 10)));
+		}
+		return new DelegateRouter(caches);
+	}
+
+	/*
+	 * @return how many times each delegate was tried first
+	 */
+	private static int[] firstChoices(DelegateRouter router) {
+		int[] firsts = new int[router.size()];
+		for(int i = 0; i < ROUTES; i++) {
+			firsts[router.route()[0]]++;
+		}
+		return firsts;
+	}
+
+	@Test
+	public void singleDelegate() {
+		DelegateRouter router = newRouter(1);
+		assertArrayEquals(new int[] { 0 }, router.route());
+	}
+
+	@Test
+	public void everyDelegateIsTriedOnce() {
+		DelegateRouter router = newRouter(4);
+		for(int i = 0; i < 100; i++) {
+			int[] order = router.route();
+			Arrays.sort(order);
+			assertArrayEquals(new int[] { 0, 1, 2, 3 }, order);
+		}
+	}
+
+	@Test
+	public void unmeasuredDelegatesShareTheReads() {
+		int[] firsts = firstChoices(newRouter(2));
+		assertTrue(Arrays.toString(firsts), Math.abs(firsts[0] - firsts[1]) < 0.1 * ROUTES);
+	}
+
+	@Test
+	public void fasterDelegateGetsMoreReads() {
+		DelegateRouter router = newRouter(2);
+		for(int i = 0; i < 100; i++) {
+			router.recordSuccess(0, TimeUnit.MILLISECONDS.toNanos(1L));
+			router.recordSuccess(1, TimeUnit.MILLISECONDS.toNanos(3L));
+		}
+		//weights are inverse to the latency: 3/4 of the reads go to the faster delegate
+		int[] firsts = firstChoices(router);
+		assertTrue(Arrays.toString(firsts), Math.abs(firsts[0] - 0.75 * ROUTES) < 0.05 * ROUTES);
+	}
+
+	@Test
+	public void failingDelegateKeepsAMinimumShare() {
+		DelegateRouter router = newRouter(2);
+		for(int i = 0; i < 200; i++) {
+			router.recordSuccess(0, TimeUnit.MILLISECONDS.toNanos(1L));
+			router.recordFailure(1);
+		}
+		int[] firsts = firstChoices(router);
+		assertTrue(Arrays.toString(firsts), firsts[1] > 0 && firsts[1] < 0.03 * ROUTES);
+		assertEquals(ROUTES, firsts[0] + firsts[1]);
+	}
+
+	@Test
+	public void recoveredDelegateWinsItsShareBack() {
+		DelegateRouter router = newRouter(2);
+		for(int i = 0; i < 50; i++) {
+			router.recordSuccess(0, TimeUnit.MILLISECONDS.toNanos(1L));
+			router.recordFailure(1);
+		}
+		for(int i = 0; i < 200; i++) {
+			router.recordSuccess(0, TimeUnit.MILLISECONDS.toNanos(1L));
+			router.recordSuccess(1, TimeUnit.MILLISECONDS.toNanos(1L));
+		}
+		int[] firsts = firstChoices(router);
+		assertTrue(Arrays.toString(firsts), Math.abs(firsts[0] - firsts[1]) < 0.1 * ROUTES);
+	}
+}
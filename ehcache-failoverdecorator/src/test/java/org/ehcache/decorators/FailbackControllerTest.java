@@ -0,0 +1,143 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FailbackControllerTest {
+	private CircuitBreaker circuitBreaker;
+	private final AtomicInteger catchUps = new AtomicInteger(0);
+	private final Runnable catchUp = new Runnable() {
+		public void run() {
+			catchUps.incrementAndGet();
+		}
+	};
+
+	@Before
+	public void setUp() {
+		circuitBreaker = new CircuitBreaker("test", new Properties());
+	}
+
+	private FailbackController newController(long rampMillis, long maxLatencyMillis) {
+		Properties properties = new Properties();
+		properties.setProperty(FailbackController.PROPNAME_FAILBACKRAMP, String.valueOf(rampMillis));
+		properties.setProperty(FailbackController.PROPNAME_FAILBACKINITIALSHARE, "0.1");
+		properties.setProperty(FailbackController.PROPNAME_FAILBACKMAXERRORRATE, "0.2");
+		properties.setProperty(FailbackController.PROPNAME_FAILBACKMAXLATENCY, String.valueOf(maxLatencyMillis));
+		return new FailbackController(properties, circuitBreaker, catchUp);
+	}
+
+	@Test
+	public void disabledSwingsBackAtOnce() {
+		FailbackController controller = new FailbackController(new Properties(), circuitBreaker, catchUp);
+		assertFalse(controller.isEnabled());
+		controller.circuitClosed();
+		assertFalse(controller.isRamping());
+		assertEquals(0, catchUps.get());
+		assertEquals(1.0D, controller.getRemoteShare(), 0.0D);
+		assertTrue(controller.routeRemotely());
+	}
+
+	@Test
+	public void catchesUpAtTheInitialShare() {
+		FailbackController controller = newController(60000L, 0L);
+		controller.circuitClosed();
+		assertTrue(controller.isRamping());
+		assertEquals(1, catchUps.get());
+		assertEquals(0.1D, controller.getRemoteShare(), 0.0D);
+
+		//one local miss out of ten goes remote, evenly spread
+		int remote = 0;
+		for(int i = 0; i < 100; i++) {
+			if(controller.routeRemotely())
+				remote++;
+		}
+		assertEquals(10, remote);
+	}
+
+	@Test
+	public void rampsLinearlyOnceCaughtUp() throws Exception {
+		FailbackController controller = newController(1000L, 0L);
+		controller.circuitClosed();
+		controller.catchUpDone();
+
+		double share = controller.getRemoteShare();
+		assertTrue("share " + share, share >= 0.1D && share < 0.5D);
+		Thread.sleep(300L);
+		double laterShare = controller.getRemoteShare();
+		assertTrue("share " + laterShare, laterShare > share && laterShare < 1.0D);
+
+		Thread.sleep(800L);
+		assertEquals(1.0D, controller.getRemoteShare(), 0.0D);
+		assertFalse(controller.isRamping());
+	}
+
+	@Test
+	public void abortsOnErrors() {
+		FailbackController controller = newController(60000L, 0L);
+		controller.circuitClosed();
+		controller.catchUpDone();
+
+		//no decision before enough samples
+		for(int i = 0; i < 10; i++) {
+			controller.recordOutcome(false, 0L);
+		}
+		assertTrue(controller.isRamping());
+
+		for(int i = 0; i < 10; i++) {
+			controller.recordOutcome(true, 0L);
+		}
+		assertFalse(controller.isRamping());
+		assertEquals(1L, controller.getAbortCount());
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+	}
+
+	@Test
+	public void abortsOnLatency() {
+		FailbackController controller = newController(60000L, 50L);
+		controller.circuitClosed();
+		controller.catchUpDone();
+
+		for(int i = 0; i < 20; i++) {
+			controller.recordOutcome(true, TimeUnit.MILLISECONDS.toNanos(10L));
+		}
+		assertTrue(controller.isRamping());
+
+		for(int i = 0; i < 20; i++) {
+			controller.recordOutcome(true, TimeUnit.MILLISECONDS.toNanos(200L));
+		}
+		assertFalse(controller.isRamping());
+		assertEquals(1L, controller.getAbortCount());
+	}
+
+	@Test
+	public void healthyRampIsNotAborted() {
+		FailbackController controller = newController(60000L, 50L);
+		controller.circuitClosed();
+		controller.catchUpDone();
+
+		for(int i = 0; i < 100; i++) {
+			controller.recordOutcome(i % 10 != 0, TimeUnit.MILLISECONDS.toNanos(10L));
+		}
+		assertTrue(controller.isRamping());
+		assertEquals(0L, controller.getAbortCount());
+	}
+
+	@Test
+	public void openingTheCircuitStopsTheRamp() {
+		FailbackController controller = newController(60000L, 0L);
+		controller.circuitClosed();
+		controller.circuitOpened();
+		assertFalse(controller.isRamping());
+		//a late catch-up does not restart it
+		controller.catchUpDone();
+		assertFalse(controller.isRamping());
+	}
+}
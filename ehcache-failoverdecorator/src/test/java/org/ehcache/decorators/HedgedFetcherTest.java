@@ -0,0 +1,88 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.constructs.EhcacheDecoratorAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HedgedFetcherTest {
+	private static final long SLOWMILLIS = 20L;
+	private static final int CALLS = 30;
+
+	private CacheManager cacheManager;
+	private Cache fastCache;
+	private SlowCache slowCache;
+	private ExecutorService hedgingService;
+	private HedgedFetcher fetcher;
+
+	@Before
+	public void setUp() {
+		Configuration configuration = new Configuration().name("HedgedFetcherTest");
+		configuration.setUpdateCheck(false);
+		cacheManager = new CacheManager(configuration);
+
+		fastCache = new Cache(new CacheConfiguration("fast", 100));
+		cacheManager.addCache(fastCache);
+		Cache underlyingCache = new Cache(new CacheConfiguration("slow", 100));
+		cacheManager.addCache(underlyingCache);
+		slowCache = new SlowCache(underlyingCache);
+		fastCache.put(new Element("key", "fast"));
+		underlyingCache.put(new Element("key", "slow"));
+
+		hedgingService = Executors.newFixedThreadPool(2);
+		fetcher = new HedgedFetcher(new Properties(), hedgingService);
+	}
+
+	@After
+	public void tearDown() {
+		hedgingService.shutdownNow();
+		cacheManager.shutdown();
+	}
+
+	@Test
+	public void neverCalledDelegateHasNoLatency() {
+		assertEquals(-1L, fetcher.getLatencyP95Nanos(fastCache));
+	}
+
+	@Test
+	public void latencyIsTrackedPerDelegate() {
+		for(int i = 0; i < CALLS; i++) {
+			assertEquals("slow", fetcher.fetch(slowCache, "key", false).getObjectValue());
+			assertEquals("fast", fetcher.fetch(fastCache, "key", false).getObjectValue());
+		}
+		long slowP95 = fetcher.getLatencyP95Nanos(slowCache);
+		long fastP95 = fetcher.getLatencyP95Nanos(fastCache);
+		assertTrue(fetcher.toString(), slowP95 >= TimeUnit.MILLISECONDS.toNanos(SLOWMILLIS));
+		assertTrue(fetcher.toString(), fastP95 < TimeUnit.MILLISECONDS.toNanos(SLOWMILLIS / 2));
+	}
+
+	private static class SlowCache extends EhcacheDecoratorAdapter {
+		public SlowCache(Cache underlyingCache) {
+			super(underlyingCache);
+		}
+
+		@Override
+		public Element get(Object key) {
+			try {
+				Thread.sleep(SLOWMILLIS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			return super.get(key);
+		}
+	}
+}
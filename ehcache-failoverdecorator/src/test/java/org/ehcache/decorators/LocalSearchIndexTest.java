@@ -0,0 +1,164 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.config.SearchAttribute;
+import net.sf.ehcache.config.Searchable;
+import net.sf.ehcache.search.Attribute;
+import net.sf.ehcache.search.Direction;
+import net.sf.ehcache.search.Query;
+import net.sf.ehcache.search.Result;
+import net.sf.ehcache.search.Results;
+import net.sf.ehcache.search.SearchException;
+import net.sf.ehcache.search.aggregator.Aggregators;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalSearchIndexTest {
+	private static final Attribute<String> STATUS = new Attribute<String>("status");
+	private static final Attribute<Integer> PRIORITY = new Attribute<Integer>("priority");
+
+	private CacheManager cacheManager;
+	private Cache delegatedCache;
+	private Cache localCache;
+	private LocalSearchIndex index;
+
+	@Before
+	public void setUp() {
+		Configuration configuration = new Configuration().name("LocalSearchIndexTest");
+		configuration.setUpdateCheck(false);
+		cacheManager = new CacheManager(configuration);
+
+		Searchable searchable = new Searchable();
+		searchable.addSearchAttribute(new SearchAttribute().name("status").expression("value.getStatus()"));
+		searchable.addSearchAttribute(new SearchAttribute().name("priority").expression("value.getPriority()"));
+		CacheConfiguration delegatedConfig = new CacheConfiguration("delegated", 1000);
+		delegatedConfig.addSearchable(searchable);
+		delegatedCache = new Cache(delegatedConfig);
+		cacheManager.addCache(delegatedCache);
+
+		localCache = new Cache(new CacheConfiguration("local", 1000));
+		cacheManager.addCache(localCache);
+		index = new LocalSearchIndex(localCache, delegatedConfig.getSearchAttributes());
+		localCache.getCacheEventNotificationService().registerListener(index);
+
+		for(int i = 0; i < 10; i++) {
+			localCache.put(new Element(i, new Item((i % 2 == 0) ? "ACTIVE" : "DELETED", i)));
+		}
+	}
+
+	@After
+	public void tearDown() {
+		cacheManager.shutdown();
+	}
+
+	private static List<Object> keys(Results results) {
+		List<Object> keys = new ArrayList<Object>();
+		for(Result result : results.all()) {
+			keys.add(result.getKey());
+		}
+		return keys;
+	}
+
+	@Test
+	public void indexFollowsTheLocalTier() {
+		assertEquals(10, index.size());
+		assertTrue(index.getAttributeNames().contains("status"));
+		assertTrue(index.getAttributeNames().contains(Query.KEY.getAttributeName()));
+
+		localCache.remove(0);
+		localCache.put(new Element(1, new Item("ACTIVE", 1)));
+		assertEquals(9, index.size());
+		FailoverQuery query = new FailoverQuery(null);
+		query.includeKeys().addCriteria(STATUS.eq("ACTIVE")).addCriteria(PRIORITY.lt(3));
+		assertEquals(2, index.execute(query).size());
+
+		localCache.removeAll();
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void criteriaOrderingAndMaxResults() {
+		FailoverQuery query = new FailoverQuery(null);
+		query.includeKeys().addCriteria(STATUS.eq("ACTIVE").and(PRIORITY.ge(2))).addOrderBy(PRIORITY, Direction.DESCENDING).maxResults(3);
+		Results results = index.execute(query);
+		assertEquals(3, results.size());
+		assertEquals(8, keys(results).get(0));
+		assertEquals(6, keys(results).get(1));
+		assertEquals(4, keys(results).get(2));
+		assertTrue(results.hasKeys());
+		assertEquals(1, results.range(2, 5).size());
+	}
+
+	@Test
+	public void projections() {
+		FailoverQuery query = new FailoverQuery(null);
+		query.includeValues().includeAttribute(PRIORITY).addCriteria(Query.KEY.eq(3));
+		Result result = index.execute(query).all().get(0);
+		assertEquals("DELETED", ((Item)result.getValue()).getStatus());
+		assertEquals(Integer.valueOf(3), result.getAttribute(PRIORITY));
+	}
+
+	@Test(expected = SearchException.class)
+	public void keysNotIncluded() {
+		FailoverQuery query = new FailoverQuery(null);
+		query.includeValues();
+		index.execute(query).all().get(0).getKey();
+	}
+
+	@Test(expected = SearchException.class)
+	public void aggregatorsAreNotSupported() {
+		FailoverQuery query = new FailoverQuery(null);
+		query.includeAggregator(Aggregators.count());
+		index.execute(query);
+	}
+
+	@Test(expected = SearchException.class)
+	public void frozenQuery() {
+		new FailoverQuery(null).includeKeys().end().includeValues();
+	}
+
+	@Test
+	public void queryReplaysOnTheDelegatedCache() {
+		for(Object key : localCache.getKeys()) {
+			delegatedCache.put(localCache.get(key));
+		}
+		FailoverQuery query = new FailoverQuery(null);
+		query.includeKeys().addCriteria(STATUS.eq("DELETED")).addOrderBy(Query.KEY, Direction.ASCENDING).maxResults(2);
+
+		Results replayed = query.toQuery(delegatedCache).execute();
+		Results local = index.execute(query);
+		assertEquals(keys(local), keys(replayed));
+	}
+
+	public static class Item implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String status;
+		private final int priority;
+
+		public Item(String status, int priority) {
+			this.status = status;
+			this.priority = priority;
+		}
+
+		public String getStatus() {
+			return status;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.sf.ehcache.CacheException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimeBudgetsTest {
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final Map<TimeBudgets.Operation, ExecutorService> budgetServices = new EnumMap<TimeBudgets.Operation, ExecutorService>(TimeBudgets.Operation.class);
+
+	//a call that only answers once released
+	private final Callable<String> stuck = new Callable<String>() {
+		public String call() throws Exception {
+			release.await();
+			return "late";
+		}
+	};
+
+	private final Callable<Thread> currentThread = new Callable<Thread>() {
+		public Thread call() {
+			return Thread.currentThread();
+		}
+	};
+
+	@Before
+	public void setUp() {
+		for(TimeBudgets.Operation operation : TimeBudgets.Operation.values()) {
+			budgetServices.put(operation, new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1)));
+		}
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		TimeBudgets.clearDeadline();
+		for(ExecutorService budgetService : budgetServices.values()) {
+			budgetService.shutdownNow();
+		}
+	}
+
+	private TimeBudgets newBudgets(String... budgets) {
+		Properties properties = new Properties();
+		for(int i = 0; i < budgets.length; i += 2) {
+			properties.setProperty(budgets[i], budgets[i + 1]);
+		}
+		return new TimeBudgets(properties, budgetServices);
+	}
+
+	@Test
+	public void callsWithoutBudgetRunOnTheCaller() throws Exception {
+		TimeBudgets budgets = newBudgets();
+		assertEquals(-1L, budgets.remainingNanos(TimeBudgets.Operation.GET));
+		assertSame(Thread.currentThread(), budgets.call(TimeBudgets.Operation.GET, currentThread));
+	}
+
+	@Test
+	public void callsWithABudgetRunOnTheirPool() throws Exception {
+		TimeBudgets budgets = newBudgets(TimeBudgets.Operation.GET.getPropertyName(), "1000");
+		assertTrue(Thread.currentThread() != budgets.call(TimeBudgets.Operation.GET, currentThread));
+	}
+
+	@Test(timeout = 5000)
+	public void exhaustedBudgetAbandonsTheCall() throws Exception {
+		TimeBudgets budgets = newBudgets(TimeBudgets.Operation.REFRESH.getPropertyName(), "50");
+		long start = System.nanoTime();
+		try {
+			budgets.call(TimeBudgets.Operation.REFRESH, stuck);
+			fail("the budget should be exhausted");
+		} catch (TimeoutException te) {
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1L));
+		}
+		assertEquals(1L, budgets.getExhaustedCount(TimeBudgets.Operation.REFRESH));
+		assertEquals(0L, budgets.getExhaustedCount(TimeBudgets.Operation.GET));
+	}
+
+	@Test
+	public void tightestBudgetApplies() {
+		TimeBudgets budgets = newBudgets(TimeBudgets.Operation.GET.getPropertyName(), "1000");
+		TimeBudgets.setDeadline(10L, TimeUnit.MILLISECONDS);
+		assertTrue(budgets.remainingNanos(TimeBudgets.Operation.GET) <= TimeUnit.MILLISECONDS.toNanos(10L));
+		//the thread deadline also applies to the operations without a budget
+		assertTrue(budgets.remainingNanos(TimeBudgets.Operation.SEARCH) >= 0L);
+
+		TimeBudgets.clearDeadline();
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(1000L), budgets.remainingNanos(TimeBudgets.Operation.GET));
+		assertEquals(-1L, budgets.remainingNanos(TimeBudgets.Operation.SEARCH));
+	}
+
+	@Test
+	public void passedDeadlineFailsAtOnce() throws Exception {
+		TimeBudgets budgets = newBudgets();
+		TimeBudgets.setDeadline(0L, TimeUnit.MILLISECONDS);
+		try {
+			budgets.call(TimeBudgets.Operation.GET, currentThread);
+			fail("the deadline passed");
+		} catch (TimeoutException te) {
+			assertEquals(1L, budgets.getExhaustedCount(TimeBudgets.Operation.GET));
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void fullPoolRejectsTheCall() throws Exception {
+		TimeBudgets budgets = newBudgets(TimeBudgets.Operation.GET.getPropertyName(), "20");
+		//one call stuck on the pool thread, one in its queue
+		for(int i = 0; i < 2; i++) {
+			try {
+				budgets.call(TimeBudgets.Operation.GET, stuck);
+				fail("the budget should be exhausted");
+			} catch (TimeoutException te) {
+				//abandoned
+			}
+		}
+		try {
+			budgets.call(TimeBudgets.Operation.GET, stuck);
+			fail("the pool should be full");
+		} catch (TimeoutException te) {
+			assertEquals(1L, budgets.getRejectedCount(TimeBudgets.Operation.GET));
+			assertEquals(2L, budgets.getExhaustedCount(TimeBudgets.Operation.GET));
+		}
+	}
+
+	@Test(expected = CacheException.class)
+	public void failuresOfTheCallPropagate() throws Exception {
+		TimeBudgets budgets = newBudgets(TimeBudgets.Operation.GET.getPropertyName(), "1000");
+		budgets.call(TimeBudgets.Operation.GET, new Callable<String>() {
+			public String call() {
+				throw new CacheException("delegated cache failure");
+			}
+		});
+	}
+}
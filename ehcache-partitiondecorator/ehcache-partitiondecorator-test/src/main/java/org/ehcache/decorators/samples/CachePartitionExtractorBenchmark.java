@@ -0,0 +1,106 @@
+package org.ehcache.decorators.samples;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.ehcache.Element;
+
+import org.ehcache.decorators.CachePartitionExtractor;
+import org.ehcache.decorators.PartitionedKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures CachePartitionExtractor.attributeFor, which runs on every indexed put.
+ * Run with the GC profiler: gc.alloc.rate.norm is the number of bytes allocated per call, and should stay at 0
+ * for all the partition types below (keys serialized by KEY_HASH, i.e. not strings / numbers / byte arrays, still allocate).
+ *
+ * Usage: CachePartitionExtractorBenchmark [<jmh options>]
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CachePartitionExtractorBenchmark {
+	private static final int ELEMENTCOUNT = 1024;
+	private static final String ATTRIBUTENAME = "partitionId";
+
+	@Param({ "value", "key_hash", "range", "partitioned_key" })
+	public String partitionType;
+
+	@Param({ "16" })
+	public int partitionCount;
+
+	private CachePartitionExtractor extractor;
+	private Element[] elements;
+	private int next = 0;
+
+	public static void main(String[] args) throws Exception {
+		if(null != args && args.length > 0) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		Options opts = new OptionsBuilder()
+			.include(CachePartitionExtractorBenchmark.class.getSimpleName())
+			.addProfiler(GCProfiler.class)
+			.build();
+		new Runner(opts).run();
+	}
+
+	@Setup
+	public void setup() {
+		Random rdm = new Random(0);
+		Properties props = new Properties();
+		props.setProperty("partitionCount", String.valueOf(partitionCount));
+		props.setProperty("partitionType", "partitioned_key".equals(partitionType) ? "value" : partitionType);
+
+		elements = new Element[ELEMENTCOUNT];
+		if("range".equals(partitionType)) {
+			StringBuilder splitPoints = new StringBuilder();
+			for(int i = 1; i < partitionCount; i++) {
+				if(splitPoints.length() > 0)
+					splitPoints.append(";");
+				splitPoints.append((long)i * ELEMENTCOUNT / partitionCount);
+			}
+			props.setProperty("splitPoints", splitPoints.toString());
+		}
+
+		for(int i = 0; i < ELEMENTCOUNT; i++) {
+			User user = new User("USER-" + rdm.nextInt(), String.valueOf((char)('a' + rdm.nextInt(26))));
+			Object key;
+			if("range".equals(partitionType))
+				key = Long.valueOf(rdm.nextInt(ELEMENTCOUNT));
+			else if("partitioned_key".equals(partitionType))
+				key = PartitionedKey.of(user.getId(), user, partitionCount);
+			else
+				key = user.getId();
+			elements[i] = new Element(key, user);
+		}
+
+		extractor = new CachePartitionExtractor(props);
+	}
+
+	@Benchmark
+	public Object attributeFor() {
+		Element el = elements[next];
+		next = (next + 1) & (ELEMENTCOUNT - 1);
+		return extractor.attributeFor(el, ATTRIBUTENAME);
+	}
+}
@@ -0,0 +1,318 @@
+package org.ehcache.decorators.samples;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.SearchAttribute;
+import net.sf.ehcache.search.Attribute;
+import net.sf.ehcache.search.Result;
+import net.sf.ehcache.search.Results;
+import net.sf.ehcache.search.attribute.AttributeExtractor;
+import net.sf.ehcache.search.expression.Criteria;
+import net.sf.ehcache.search.expression.Not;
+
+import org.ehcache.decorators.CachePartitionExtractor;
+import org.ehcache.decorators.CachePartitionable;
+import org.ehcache.decorators.PartitionHashing;
+import org.ehcache.decorators.PartitionedKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans a cache (or a random sample of it) with the extractor configured on its partitionId search attribute,
+ * reports the entries and estimated bytes (serialized key + value) per partition, and simulates the KEY, VALUE and KEY_HASH
+ * partition types with other partition counts, to recommend one keeping the largest partition under maxOverMean times the mean.
+ * The elements are read one at a time and not held in memory. The keys are searched one configured partition at a time
+ * (then the keys of no partition) and read page by page, so that at most the keys of one partition are held during the scan.
+ * The size of an element is estimated as the bytes of its serialized key and value, on one stream reset between elements.
+ * For ordered keys, see SplitPointSampler to compute balanced RANGE partitions instead.
+ *
+ * Usage: PartitionSkewAnalyzer <cache name> [<max/mean threshold>] [<max partition count>] [<sample rate>]
+ */
+public class PartitionSkewAnalyzer {
+	private static Logger log = LoggerFactory.getLogger(PartitionSkewAnalyzer.class);
+
+	public static final String PARTITIONATTRIBUTENAME = "partitionId";
+	public static final double DEFAULT_MAXOVERMEAN = 1.2;
+	public static final int DEFAULT_MAXPARTITIONCOUNT = 64;
+	public static final double DEFAULT_SAMPLERATE = 1.0;
+	private static final int REPORTINTERVAL = 100000;
+	private static final int PAGESIZE = 1000;
+
+	private final Random rdm = new Random(System.currentTimeMillis());
+	private final CountingOutputStream sizer = new CountingOutputStream();
+	//reused for every element: only the first one pays for the stream header
+	private ObjectOutputStream sizerOut = null;
+
+	public static void main(String[] args) throws Exception {
+		if(null == args || args.length < 1) {
+			System.out.println("Usage: PartitionSkewAnalyzer <cache name> [<max/mean threshold>] [<max partition count>] [<sample rate>]");
+			System.exit(1);
+		}
+
+		String cacheName = args[0];
+		double maxOverMean = (args.length > 1) ? Double.parseDouble(args[1]) : DEFAULT_MAXOVERMEAN;
+		int maxPartitionCount = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_MAXPARTITIONCOUNT;
+		double sampleRate = (args.length > 3) ? Double.parseDouble(args[3]) : DEFAULT_SAMPLERATE;
+
+		Ehcache cache = CacheUtils.getCache(cacheName);
+		if (cache == null) {
+			System.out.println("Could not find the cache " + cacheName + ". Exiting.");
+			System.exit(0);
+		}
+
+		SearchAttribute partitionAttributeConfig = cache.getCacheConfiguration().getSearchAttributes().get(PARTITIONATTRIBUTENAME);
+		AttributeExtractor configured = (null != partitionAttributeConfig) ? partitionAttributeConfig.constructExtractor() : null;
+		if(!(configured instanceof CachePartitionExtractor)) {
+			System.out.println("The cache " + cacheName + " has no " + PARTITIONATTRIBUTENAME + " search attribute extracted by CachePartitionExtractor. Exiting.");
+			System.exit(0);
+		}
+
+		PartitionSkewAnalyzer analyzer = new PartitionSkewAnalyzer();
+		List<Candidate> candidates = analyzer.analyze(cache, (CachePartitionExtractor)configured, maxPartitionCount, sampleRate);
+
+		Candidate current = candidates.get(0);
+		System.out.println(String.format("Current partitioning (scaled to the whole cache with a sample rate of %.3f):", sampleRate));
+		current.print(sampleRate);
+
+		System.out.println("Alternatives:");
+		for(Candidate candidate : candidates.subList(1, candidates.size())) {
+			System.out.println("  " + candidate.summary());
+		}
+
+		Candidate recommended = analyzer.recommend(candidates, maxOverMean);
+		if(null == recommended) {
+			System.out.println("No partitioning could be computed: the cache is empty, or its keys / values cannot be partitioned");
+		} else if(recommended == current) {
+			System.out.println(String.format("Recommended: keep the current partitioning (max/mean %.2f <= %.2f)", current.maxOverMean(), maxOverMean));
+		} else {
+			System.out.println(String.format("Recommended: partitionType=%s,partitionCount=%d (max/mean %.2f%s)", recommended.type, recommended.count, recommended.maxOverMean(),
+					(recommended.maxOverMean() <= maxOverMean) ? "" : String.format(" - none of the candidates is under %.2f", maxOverMean)));
+		}
+
+		System.out.println("Completed");
+		System.exit(0);
+	}
+
+	/*
+	 * Streams through the cache once, computing the partition of every sampled element for the configured extractor and for all the candidates
+	 * @return the configured partitioning first, then the candidates that could partition all the sampled elements
+	 */
+	public List<Candidate> analyze(Ehcache cache, CachePartitionExtractor configured, int maxPartitionCount, double sampleRate) {
+		Candidate current = new Candidate(configured.getPartitionType(), configured.getPartitionCount());
+		List<Candidate> simulated = new ArrayList<Candidate>();
+		for(String type : new String[] { "KEY", "VALUE", "KEY_HASH" }) {
+			for(int count = 2; count <= maxPartitionCount; count++) {
+				simulated.add(new Candidate(type, count));
+			}
+		}
+
+		Attribute<Integer> partitionAttribute = cache.getSearchAttribute(PARTITIONATTRIBUTENAME);
+		int partitionCount = configured.getPartitionCount();
+		long scanned = 0;
+		for(int partition = 0; partition <= partitionCount; partition++) {
+			//the last search gets the keys of no partition, or of a partition out of range
+			Criteria criteria = (partition < partitionCount) ? partitionAttribute.eq(partition) : new Not(partitionAttribute.between(0, partitionCount - 1));
+			Results results = cache.createQuery().includeKeys().addCriteria(criteria).end().execute();
+			try {
+				for(int start = 0; start < results.size(); start += PAGESIZE) {
+					for(Result result : results.range(start, PAGESIZE)) {
+						if(++scanned % REPORTINTERVAL == 0)
+							log.info(String.format("Scanned %d keys", scanned));
+						if(sampleRate < 1.0 && rdm.nextDouble() >= sampleRate)
+							continue;
+
+						Element el = cache.getQuiet(result.getKey());
+						if(null != el)
+							analyze(el, configured, current, simulated);
+					}
+				}
+			} finally {
+				results.discard();
+			}
+		}
+
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		candidates.add(current);
+		for(Candidate candidate : simulated) {
+			if(candidate.valid && candidate.totalEntries > 0)
+				candidates.add(candidate);
+		}
+		return candidates;
+	}
+
+	private void analyze(Element el, CachePartitionExtractor configured, Candidate current, List<Candidate> simulated) {
+		long bytes = estimateSize(el);
+		Object partitionId = configured.attributeFor(el, PARTITIONATTRIBUTENAME);
+		current.add((partitionId instanceof Integer) ? (Integer)partitionId : -1, bytes);
+
+		//the hash of the key does not depend on the partition count: computed once for all the KEY_HASH candidates
+		Object naturalKey = naturalKeyOf(el);
+		Long keyHash = (null == naturalKey) ? null : Long.valueOf(PartitionHashing.hash64(naturalKey, configured.getPartitionHashSeed()));
+		for(Candidate candidate : simulated) {
+			if(candidate.valid)
+				candidate.add(candidate.partitionOf(el, naturalKey, keyHash), bytes);
+		}
+	}
+
+	/*
+	 * @return the current partitioning if under the threshold, otherwise the candidate under the threshold closest to the current partitioning
+	 * (same type first, then the nearest partition count), or the least skewed candidate if none is under the threshold
+	 */
+	public Candidate recommend(List<Candidate> candidates, double maxOverMean) {
+		Candidate current = candidates.get(0);
+		if(current.valid && current.totalEntries > 0 && current.maxOverMean() <= maxOverMean)
+			return current;
+
+		Candidate best = null;
+		Candidate leastSkewed = null;
+		for(Candidate candidate : candidates.subList(1, candidates.size())) {
+			if(null == leastSkewed || candidate.maxOverMean() < leastSkewed.maxOverMean())
+				leastSkewed = candidate;
+			if(candidate.maxOverMean() > maxOverMean)
+				continue;
+			if(null == best || distance(candidate, current) < distance(best, current))
+				best = candidate;
+		}
+		return (null != best) ? best : leastSkewed;
+	}
+
+	private long distance(Candidate candidate, Candidate current) {
+		long typeChange = candidate.type.equals(current.type) ? 0 : 1;
+		//moving up a partition count is preferred to moving down, at the same distance
+		long countChange = 2L * Math.abs(candidate.count - current.count) + ((candidate.count < current.count) ? 1 : 0);
+		return (typeChange << 32) + countChange;
+	}
+
+	private static Object naturalKeyOf(Element el) {
+		Object key = el.getObjectKey();
+		return (key instanceof PartitionedKey) ? ((PartitionedKey)key).getKey() : key;
+	}
+
+	private long estimateSize(Element el) {
+		try {
+			if(null == sizerOut) {
+				sizerOut = new ObjectOutputStream(sizer);
+			} else {
+				//no back-references to the previous element, nor any of it held by the stream
+				sizerOut.reset();
+			}
+			sizerOut.flush();
+			long before = sizer.getCount();
+			sizerOut.writeObject(el.getObjectKey());
+			sizerOut.writeObject(el.getObjectValue());
+			sizerOut.flush();
+			return sizer.getCount() - before;
+		} catch (IOException ioe) {
+			log.debug("Could not serialize the element with key " + el.getObjectKey() + " to estimate its size", ioe);
+			//the stream may be left half-way through an object
+			sizerOut = null;
+			return 0;
+		}
+	}
+
+	/*
+	 * Partition type and count, with the entries and bytes per partition seen so far
+	 */
+	public static class Candidate {
+		private final String type;
+		private final int count;
+		private final long[] entries;
+		private final long[] bytes;
+		private long totalEntries = 0;
+		private long totalBytes = 0;
+		private long unpartitioned = 0;
+		private boolean valid = true;
+
+		private Candidate(String type, int count) {
+			this.type = type;
+			this.count = count;
+			this.entries = new long[count];
+			this.bytes = new long[count];
+		}
+
+		/*
+		 * @param keyHash the hash of the key with the configured seed, or null if the element has no key
+		 * @return the partition of the element, or -1 if this candidate cannot partition it
+		 */
+		private int partitionOf(Element el, Object key, Long keyHash) {
+			if("KEY_HASH".equals(type))
+				return (null == keyHash) ? -1 : PartitionHashing.jumpConsistentHash(keyHash.longValue(), count);
+
+			Object objToPartitionOn = "VALUE".equals(type) ? el.getObjectValue() : key;
+			if(!(objToPartitionOn instanceof CachePartitionable))
+				return -1;
+			try {
+				return ((CachePartitionable)objToPartitionOn).getPartition(count);
+			} catch (RuntimeException rte) {
+				return -1;
+			}
+		}
+
+		private void add(int partition, long size) {
+			if(partition < 0 || partition >= count) {
+				unpartitioned++;
+				//a simulated partitioning must place every element
+				valid = false;
+				return;
+			}
+			entries[partition]++;
+			bytes[partition] += size;
+			totalEntries++;
+			totalBytes += size;
+		}
+
+		/*
+		 * @return the size of the largest partition over the mean size, in bytes (or in entries if the elements are not serializable)
+		 */
+		public double maxOverMean() {
+			long[] sizes = (totalBytes > 0) ? bytes : entries;
+			long total = (totalBytes > 0) ? totalBytes : totalEntries;
+			if(total == 0)
+				return Double.MAX_VALUE;
+			long max = 0;
+			for(long size : sizes) {
+				max = Math.max(max, size);
+			}
+			return (double)max * count / total;
+		}
+
+		public String summary() {
+			return String.format("partitionType=%s,partitionCount=%d: max/mean %.2f", type, count, maxOverMean());
+		}
+
+		private void print(double sampleRate) {
+			System.out.println("  " + summary());
+			for(int i = 0; i < count; i++) {
+				System.out.println(String.format("  partition %d: %d entries, %d bytes (%.1f%%)", i, (long)(entries[i] / sampleRate), (long)(bytes[i] / sampleRate),
+						(totalBytes == 0) ? 0.0 : 100.0 * bytes[i] / totalBytes));
+			}
+			if(unpartitioned > 0)
+				System.out.println(String.format("  not partitioned: %d entries", (long)(unpartitioned / sampleRate)));
+		}
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		private long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package org.ehcache.decorators.samples;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.ehcache.Ehcache;
+
+import org.ehcache.decorators.RangePartitioner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples the keys of a cache and computes the split points of balanced RANGE partitions,
+ * to be used as the splitPoints property of the partitionId search attribute.
+ * The keys should all be strings, or all integral numbers.
+ *
+ * Usage: SplitPointSampler <cache name> <partition count> [<sample size>]
+ */
+public class SplitPointSampler {
+	private static Logger log = LoggerFactory.getLogger(SplitPointSampler.class);
+
+	public static final int DEFAULT_SAMPLESIZE = 100000;
+
+	private final Random rdm = new Random(System.currentTimeMillis());
+
+	public static void main(String[] args) throws Exception {
+		if(null == args || args.length < 2) {
+			System.out.println("Usage: SplitPointSampler <cache name> <partition count> [<sample size>]");
+			System.exit(1);
+		}
+
+		String cacheName = args[0];
+		int partitionCount = Integer.parseInt(args[1]);
+		int sampleSize = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_SAMPLESIZE;
+
+		Ehcache cache = CacheUtils.getCache(cacheName);
+		if (cache == null) {
+			System.out.println("Could not find the cache " + cacheName + ". Exiting.");
+			System.exit(0);
+		}
+
+		SplitPointSampler sampler = new SplitPointSampler();
+		List<Object> sample = sampler.sampleKeys(cache, sampleSize);
+		List<Object> splitPoints = sampler.computeSplitPoints(sample, partitionCount);
+		System.out.println(String.format("Sampled %d keys out of %d", sample.size(), cache.getSize()));
+		System.out.println("splitPoints=" + RangePartitioner.toSplitPointsValue(splitPoints));
+		sampler.printEstimatedSizes(sample, splitPoints);
+
+		System.out.println("Completed");
+		System.exit(0);
+	}
+
+	/*
+	 * Reservoir sampling over the keys of the cache
+	 */
+	@SuppressWarnings("rawtypes")
+	public List<Object> sampleKeys(Ehcache cache, int sampleSize) {
+		List<Object> sample = new ArrayList<Object>(sampleSize);
+		int seen = 0;
+		for(Object key : (List)cache.getKeys()) {
+			seen++;
+			if(sample.size() < sampleSize) {
+				sample.add(key);
+			} else {
+				int replaced = rdm.nextInt(seen);
+				if(replaced < sampleSize)
+					sample.set(replaced, key);
+			}
+		}
+		return sample;
+	}
+
+	/*
+	 * @return the partitionCount - 1 split points cutting the sorted sample in equal parts (fewer if the keys are too skewed)
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public List<Object> computeSplitPoints(List<Object> sample, int partitionCount) {
+		List<Comparable> sortedSample = new ArrayList<Comparable>(sample.size());
+		for(Object key : sample) {
+			if(key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte)
+				sortedSample.add(((Number)key).longValue());
+			else
+				sortedSample.add(key.toString());
+		}
+		Collections.sort(sortedSample);
+
+		List<Object> splitPoints = new ArrayList<Object>(partitionCount - 1);
+		for(int i = 1; i < partitionCount && !sortedSample.isEmpty(); i++) {
+			Comparable splitPoint = sortedSample.get((int)((long)i * sortedSample.size() / partitionCount));
+			//split points must be strictly increasing: a key repeated over several quantiles only starts one partition
+			if(splitPoints.isEmpty() || ((Comparable)splitPoints.get(splitPoints.size() - 1)).compareTo(splitPoint) < 0)
+				splitPoints.add(splitPoint);
+		}
+
+		if(splitPoints.size() < partitionCount - 1)
+			log.warn(String.format("Only %d split points out of %d: the key distribution is too skewed for %d balanced partitions", splitPoints.size(), partitionCount - 1, partitionCount));
+		return splitPoints;
+	}
+
+	private void printEstimatedSizes(List<Object> sample, List<Object> splitPoints) {
+		if(splitPoints.isEmpty())
+			return;
+
+		RangePartitioner partitioner = new RangePartitioner(RangePartitioner.toSplitPointsValue(splitPoints));
+		int[] counts = new int[partitioner.getPartitionCount()];
+		for(Object key : sample) {
+			Object comparableKey = (key instanceof Number || key instanceof String) ? key : key.toString();
+			int partition = partitioner.partitionOf(comparableKey);
+			if(partition >= 0)
+				counts[partition]++;
+		}
+		for(int i = 0; i < counts.length; i++) {
+			System.out.println(String.format("partition %d: %.1f%% of the sampled keys", i, (sample.isEmpty()) ? 0.0 : 100.0 * counts[i] / sample.size()));
+		}
+	}
+}
@@ -1,30 +1,48 @@
 package org.ehcache.decorators;
 
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.management.ObjectName;
 
 import net.sf.ehcache.CacheException;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.bootstrap.BootstrapCacheLoader;
+import net.sf.ehcache.config.SearchAttribute;
 import net.sf.ehcache.loader.CacheLoader;
 import net.sf.ehcache.search.Attribute;
 import net.sf.ehcache.search.Query;
 import net.sf.ehcache.search.Result;
 import net.sf.ehcache.search.Results;
+import net.sf.ehcache.search.attribute.AttributeExtractor;
 import net.sf.ehcache.search.expression.Criteria;
+import net.sf.ehcache.terracotta.InternalEhcache;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,15 +53,54 @@ public class CachePartitionDecorator extends EhcacheDelegatedDecoratorAdapter {
 	private static final String PROPNAME_SYNCPOOLSIZE = "syncPoolSize";
 	private static final String PROPNAME_REFRESHINTERVAL = "refreshIntervalInMilliSeconds";
 	private static final String PROPNAME_PARTITIONID = "partitionId";
+	private static final String PROPNAME_REFRESHUNITSINFLIGHT = "refreshUnitsInFlight";
+	private static final String PROPNAME_JMXENABLED = "jmxEnabled";
+	private static final String PROPNAME_JMXREFRESHTIMEOUT = "jmxRefreshTimeoutInMilliSeconds";
+	//key of a pending full resync among the pending on-demand refreshes
+	private static final String FULLRESYNC = "full";
 	private static final int POOLSIZEDEFAULT = 10;
 	private static final long REFRESHINTERVALDEFAULT = 5000L;
+	private static final int REFRESHUNITSINFLIGHTDEFAULT = 2;
+	private static final long JMXREFRESHTIMEOUTDEFAULT = 60000L;
 	
-	private final int partitionId;
+	private volatile OwnedPartitions ownedPartitions;
+	private final String ownershipCacheName;
+	private final Properties properties;
 	private final ScheduledExecutorService cacheTimerService;
+	private final ScheduledExecutorService leaseTimerService;
+	private final ScheduledExecutorService writeBehindTimerService;
 	private final ExecutorService cacheSyncService;
+	private final ExecutorService refreshUnitService;
+	private final int refreshUnitsInFlight;
+	private final ExecutorService onDemandRefreshService;
+	//held (shared) by the periodic refresh cycles and units, and exclusively by the on-demand refreshes of partitions
+	private final ReentrantReadWriteLock refreshLock = new ReentrantReadWriteLock();
+	private final ExecutorService refreshPipelineService;
+	private final RefreshPipeline refreshPipeline;
+	private final RefreshPriority refreshPriority;
+	private final RefreshCapacity refreshCapacity;
+	private final RefreshFilter refreshFilter;
+	private final ExecutorService hedgingService;
+	private final HedgedFetcher hedgedFetcher;
+	private final Bulkhead bulkhead;
+	private final StaleWhileRevalidate staleWhileRevalidate;
+	private final RefreshAhead refreshAhead;
+	private final Map<TimeBudgets.Operation, ExecutorService> budgetServices = new EnumMap<TimeBudgets.Operation, ExecutorService>(TimeBudgets.Operation.class);
+	private final TimeBudgets timeBudgets;
+	private final PartitionWriter partitionWriter;
+	//on-demand refreshes not started yet, per partition (or FULLRESYNC): a request for the same partitions joins the pending one
+	private final Map<Object, Future<RefreshResult>> pendingRefreshes = new HashMap<Object, Future<RefreshResult>>();
 
 	//instanciated at init() time
 	private volatile boolean initialized = false;
+	private volatile AttributeExtractor partitionExtractor;
+	private Attribute<Integer> partitionSearchAttribute;
+	private Attribute<Integer> subPartitionSearchAttribute;
+	private int subPartitionCount = 1;
+	private volatile RefreshUnits refreshUnits;
+	private OwnershipManager ownershipManager;
+	private TimedRefreshSyncOp timedRefreshSyncOp;
+	private ObjectName refreshControlName;
 	private long refreshInterval = REFRESHINTERVALDEFAULT;
 	private static final TimeUnit refreshIntervalUnit = TimeUnit.MILLISECONDS;
 	
@@ -51,9 +108,17 @@ public class CachePartitionDecorator extends EhcacheDelegatedDecoratorAdapter {
 	public CachePartitionDecorator(Ehcache underlyingCache, Properties properties) {
 		super(underlyingCache, properties);
 		
-		this.partitionId = Integer.parseInt(properties.getProperty(PROPNAME_PARTITIONID, "-1"));
-		if(partitionId == -1)
-			throw new CacheException("Decorator on " + underlyingCache.getName() + " should be configured with a value for property " + PROPNAME_PARTITIONID);
+		this.properties = properties;
+		this.ownershipCacheName = properties.getProperty(OwnershipManager.PROPNAME_OWNERSHIPCACHENAME);
+		if(null != ownershipCacheName) {
+			//partitions are claimed at runtime, none until the first ownership cycle
+			this.ownedPartitions = new OwnedPartitions(new int[0], null);
+		} else {
+			String partitionIdValue = properties.getProperty(PROPNAME_PARTITIONID);
+			if(null == partitionIdValue)
+				throw new CacheException("Decorator on " + underlyingCache.getName() + " should be configured with a value for property " + PROPNAME_PARTITIONID + " or " + OwnershipManager.PROPNAME_OWNERSHIPCACHENAME);
+			this.ownedPartitions = new OwnedPartitions(partitionIdValue);
+		}
 		
 		int syncPoolSize;
 		try {
@@ -79,9 +144,51 @@ public class CachePartitionDecorator extends EhcacheDelegatedDecoratorAdapter {
 		}
 
 		cacheSyncService = Executors.newFixedThreadPool(syncPoolSize, new NamedThreadFactory("Sync Cache Pool"));
+
+		//pool running the sub-partition refresh units, as many in flight as threads
+		refreshUnitsInFlight = PropertyUtils.getIntProperty(properties, PROPNAME_REFRESHUNITSINFLIGHT, REFRESHUNITSINFLIGHTDEFAULT, 1);
+		refreshUnitService = Executors.newFixedThreadPool(refreshUnitsInFlight, new NamedThreadFactory("Refresh Unit Cache Pool"));
+
+		//the on-demand refreshes of partitions run one after the other, on their own thread so that the timer keeps ticking
+		onDemandRefreshService = Executors.newSingleThreadExecutor(new NamedThreadFactory("On Demand Refresh Cache Pool"));
+
+		//threads of the fetch and apply stages of the running refreshes: they block on the queues between stages,
+		//so they cannot share a bounded pool with other tasks without risking to starve them
+		refreshPipelineService = Executors.newCachedThreadPool(new NamedThreadFactory("Refresh Pipeline Cache Pool"));
+		refreshPipeline = new RefreshPipeline(properties, refreshPipelineService);
+		refreshPriority = new RefreshPriority(properties);
+		refreshCapacity = new RefreshCapacity(properties, underlyingCache);
+		refreshFilter = new RefreshFilter(properties);
 		
 		//setup the timer thread pool for every 5 seconds
 		cacheTimerService = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Sync Timer Cache Pool"));
+
+		//the leases and the write-behind flushes get their own timers: a long refresh cycle must not let the leases expire, nor the writes lag
+		leaseTimerService = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Lease Timer Cache Pool"));
+		writeBehindTimerService = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Write Behind Timer Cache Pool"));
+
+		//pool used to run the hedged calls to the delegated cache
+		int hedgingPoolSize = PropertyUtils.getIntProperty(properties, HedgedFetcher.PROPNAME_HEDGINGPOOLSIZE, HedgedFetcher.HEDGINGPOOLSIZEDEFAULT, 1);
+		hedgingService = Executors.newFixedThreadPool(hedgingPoolSize, new NamedThreadFactory("Hedging Cache Pool"));
+		hedgedFetcher = new HedgedFetcher(properties, hedgingService);
+
+		bulkhead = new Bulkhead(properties);
+
+		staleWhileRevalidate = new StaleWhileRevalidate(properties);
+
+		refreshAhead = new RefreshAhead(properties);
+
+		//pool used to run the calls to the delegated cache that have a time budget, so they can be abandoned when it is exhausted
+		//bounded, so that the calls to a delegated cache that stopped answering are rejected (and served locally) instead of queueing up
+		int timeoutPoolSize = PropertyUtils.getIntProperty(properties, TimeBudgets.PROPNAME_TIMEOUTPOOLSIZE, TimeBudgets.TIMEOUTPOOLSIZEDEFAULT, 1);
+		int timeoutQueueSize = PropertyUtils.getIntProperty(properties, TimeBudgets.PROPNAME_TIMEOUTQUEUESIZE, TimeBudgets.TIMEOUTQUEUESIZEDEFAULT, 1);
+		for(TimeBudgets.Operation operation : TimeBudgets.Operation.values()) {
+			budgetServices.put(operation, new ThreadPoolExecutor(timeoutPoolSize, timeoutPoolSize, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(timeoutQueueSize), new NamedThreadFactory("Timeout " + operation + " Cache Pool")));
+		}
+		timeBudgets = new TimeBudgets(properties, budgetServices);
+
+		partitionWriter = new PartitionWriter(properties, cacheSyncService);
 	}
 
 	/*
@@ -96,12 +203,78 @@ public class CachePartitionDecorator extends EhcacheDelegatedDecoratorAdapter {
 					if(delegatedCache == null)
 						throw new CacheException("Delegated cache does not exist...");
 					
-					final Attribute<Integer> partitionSearchAttribute = delegatedCache.getSearchAttribute(PROPNAME_PARTITIONID);
+					partitionSearchAttribute = delegatedCache.getSearchAttribute(PROPNAME_PARTITIONID);
 					if(null == partitionSearchAttribute)
 						throw new CacheException("Delegated cache should have a searchable attribute named " + PROPNAME_PARTITIONID);
+
+					//same extractor as the delegated cache, so that the partition of a local entry is known without a remote call
+					SearchAttribute partitionAttributeConfig = delegatedCache.getCacheConfiguration().getSearchAttributes().get(PROPNAME_PARTITIONID);
+					partitionExtractor = partitionAttributeConfig.constructExtractor();
+
+					//optional sub-partitions: each partition is then refreshed as independent units, one per sub-partition
+					SearchAttribute subPartitionAttributeConfig = delegatedCache.getCacheConfiguration().getSearchAttributes().get(CachePartitionExtractor.SUBPARTITIONATTRIBUTENAME);
+					if(null != subPartitionAttributeConfig) {
+						AttributeExtractor subPartitionExtractor = subPartitionAttributeConfig.constructExtractor();
+						if(!(subPartitionExtractor instanceof CachePartitionExtractor))
+							throw new CacheException("Searchable attribute " + CachePartitionExtractor.SUBPARTITIONATTRIBUTENAME + " of the delegated cache should be extracted by " + CachePartitionExtractor.class.getName());
+						subPartitionCount = ((CachePartitionExtractor)subPartitionExtractor).getSubPartitionCount();
+						if(subPartitionCount > 1)
+							subPartitionSearchAttribute = delegatedCache.getSearchAttribute(CachePartitionExtractor.SUBPARTITIONATTRIBUTENAME);
+					}
+
+					//optional extra criteria on other search attributes, combined with the partition criteria of every refresh
+					refreshFilter.init(delegatedCache, underlyingCache);
 					
 					//schedule the timer pool to execute a cache search every 5 seconds...which in turn will execute the cache sync operations
-					cacheTimerService.scheduleAtFixedRate(new TimedRefreshSyncOp(partitionSearchAttribute, this.partitionId), 0L, refreshInterval, refreshIntervalUnit);
+					//with sub-partitions, the timer only starts the units that are due, so it ticks as often as units fall due
+					long refreshTick = (null != subPartitionSearchAttribute) ? Math.max(1L, refreshInterval / subPartitionCount) : refreshInterval;
+					timedRefreshSyncOp = new TimedRefreshSyncOp(null);
+					cacheTimerService.scheduleAtFixedRate(timedRefreshSyncOp, 0L, refreshTick, refreshIntervalUnit);
+
+					//the hot keys are refreshed on their own interval if set, otherwise ahead of each refresh pass (units have no common pass: every refresh interval)
+					if(refreshPriority.isEnabled()) {
+						long hotInterval = (refreshPriority.getHotIntervalMillis() > 0) ? refreshPriority.getHotIntervalMillis() : refreshInterval;
+						if(refreshPriority.getHotIntervalMillis() > 0 || null != subPartitionSearchAttribute)
+							cacheTimerService.scheduleAtFixedRate(new RefreshHotKeysOp(), hotInterval, hotInterval, refreshIntervalUnit);
+						cacheTimerService.scheduleAtFixedRate(new Runnable() {
+							public void run() {
+								refreshPriority.age();
+							}
+						}, refreshPriority.getHalfLifeMillis(), refreshPriority.getHalfLifeMillis(), TimeUnit.MILLISECONDS);
+					}
+
+					if(null != ownershipCacheName) {
+						Ehcache ownershipCache = underlyingCache.getCacheManager().getEhcache(ownershipCacheName);
+						if(null == ownershipCache)
+							throw new CacheException("Cache " + ownershipCacheName + " configured through cache decorator property '" + OwnershipManager.PROPNAME_OWNERSHIPCACHENAME + "' doesn't exist");
+
+						ownershipManager = new OwnershipManager(ownershipCache, delegatedCache.getName(), properties);
+						ownershipManager.setListener(new OwnershipListener());
+						leaseTimerService.scheduleAtFixedRate(ownershipManager, 0L, ownershipManager.getRenewIntervalMillis(), TimeUnit.MILLISECONDS);
+					}
+
+					if(partitionWriter.getWriteMode() != PartitionWriter.WriteMode.READ_ONLY) {
+						partitionWriter.setDelegatedCache(delegatedCache);
+						if(partitionWriter.isWriteBehind())
+							writeBehindTimerService.scheduleAtFixedRate(partitionWriter, partitionWriter.getMaxLagMillis(), partitionWriter.getMaxLagMillis(), TimeUnit.MILLISECONDS);
+					}
+
+					//count the local evictions, to stop refreshing what does not fit in the local tier
+					if(refreshCapacity.isEnabled())
+						underlyingCache.getCacheEventNotificationService().registerListener(refreshCapacity);
+
+					//keep the entries expiring from the local tier around so they can be served while being revalidated
+					if(staleWhileRevalidate.isEnabled()) {
+						underlyingCache.getCacheEventNotificationService().registerListener(staleWhileRevalidate);
+						cacheTimerService.scheduleAtFixedRate(new Runnable() {
+							public void run() {
+								staleWhileRevalidate.evictTooStale();
+							}
+						}, staleWhileRevalidate.getMaxStaleMillis(), staleWhileRevalidate.getMaxStaleMillis(), TimeUnit.MILLISECONDS);
+					}
+
+					if(PropertyUtils.getBooleanProperty(properties, PROPNAME_JMXENABLED, true))
+						registerRefreshControl();
 					
 					initialized = true;
 				}
@@ -115,17 +288,131 @@ public class CachePartitionDecorator extends EhcacheDelegatedDecoratorAdapter {
 	 */
 	@Override
 	public Element get(Object key) throws IllegalStateException, CacheException {
+		return get(key, hedgedFetcher.isEnabled());
+	}
+
+	/*
+	 * Same as get(Object), but lets the caller opt in (or out) of hedging the fault to the delegated cache for this call.
+	 * @see org.ehcache.decorators.HedgedFetcher
+	 */
+	public Element get(final Object key, final boolean hedged) throws IllegalStateException, CacheException {
 		init();
+		if(refreshPriority.isEnabled())
+			refreshPriority.recordAccess(key);
+
 		Element e = underlyingCache.get(key);
+		if(e != null && refreshAhead.isEnabled() && refreshAhead.isDue(e, System.currentTimeMillis()))
+			refreshAhead(key);
+
+		//a write-behind write of a key outside the owned partitions is not kept locally: read it back until it is flushed
+		if(e == null && partitionWriter.isWriteBehind() && partitionWriter.isPending(key))
+			return projected(partitionWriter.getPendingElement(key));
+
+		if(e == null && staleWhileRevalidate.isEnabled()) {
+			e = staleWhileRevalidate.getStale(key);
+			if(e != null) {
+				revalidate(key);
+				return e;
+			}
+		}
+
 		if(e == null) {
-			e = delegatedCache.get(key);
+			if(!bulkhead.tryEnter())
+				return rejectedByBulkhead(key);
+
+			long fetchStamp = partitionWriter.getWriteStamp();
+			try {
+				e = timeBudgets.call(TimeBudgets.Operation.GET, new Callable<Element>() {
+					public Element call() {
+						return hedgedFetcher.fetch(delegatedCache, key, hedged);
+					}
+				});
+			} catch (TimeoutException te) {
+				//the budget is exhausted: serve from the local tier only (which missed)
+				if(log.isDebugEnabled())
+					log.debug(te.getMessage() + " - serving local miss for key " + key);
+				return null;
+			} finally {
+				bulkhead.exit();
+			}
 			if(log.isDebugEnabled()) {
 				log.debug("----> get Timestamp " + System.currentTimeMillis() +  " - Faulting entry with key =" + key);
 			}
+			//over capacity, the local tier only holds the entries read (or hot) lately
+			if(e != null && refreshCapacity.isOverCapacity())
+				admit(e, fetchStamp);
+			//served as it would be from the local tier
+			e = projected(e);
 		}
 		return e;
 	}
 
+	/*
+	 * Fetches the fresh value of a key served stale, unless a revalidation of that key is already in flight
+	 */
+	private void revalidate(Object key) {
+		if(staleWhileRevalidate.startRevalidation(key)) {
+			try {
+				cacheSyncService.submit(new RevalidateOp(key));
+			} catch (RejectedExecutionException ree) {
+				staleWhileRevalidate.finishRevalidation(key);
+				log.warn("Could not schedule the revalidation of key " + key, ree);
+			}
+		}
+	}
+
+	/*
+	 * Keeps locally an entry of the owned partitions fetched from the delegated cache
+	 */
+	private void admit(Element element, long fetchStamp) {
+		Object key = element.getObjectKey();
+		if(partitionWriter.isPending(key) || partitionWriter.isWrittenSince(key, fetchStamp) || !isOwned(element) || !refreshFilter.matches(element))
+			return;
+		Element copy = localCopy(element);
+		underlyingCache.put(copy);
+		dropWrittenSince(Collections.singletonList(copy), fetchStamp);
+		refreshCapacity.recordAdmitted(1);
+	}
+
+	/*
+	 * A write can land between the check and the local put of what was fetched: the local copies of the keys written since the fetch are dropped,
+	 * to be faulted in again
+	 */
+	private void dropWrittenSince(List<Element> replacements, long fetchStamp) {
+		if(partitionWriter.getWriteStamp() == fetchStamp)
+			return;
+		for(Element replacement : replacements) {
+			if(partitionWriter.isWrittenSince(replacement.getObjectKey(), fetchStamp))
+				underlyingCache.remove(replacement.getObjectKey());
+		}
+	}
+
+	/*
+	 * Fetches the value of a key about to expire locally, unless it is already in flight or too many keys are
+	 */
+	private void refreshAhead(Object key) {
+		if(refreshAhead.startRefresh(key)) {
+			try {
+				cacheSyncService.submit(new RefreshAheadOp(key));
+			} catch (RejectedExecutionException ree) {
+				refreshAhead.finishRefresh(key);
+				log.warn("Could not schedule the refresh ahead of key " + key, ree);
+			}
+		}
+	}
+
+	/*
+	 * Too many threads are already waiting on the delegated cache: either fail fast, or serve from the local tier only (which missed)
+	 */
+	private Element rejectedByBulkhead(Object key) {
+		if(bulkhead.isFailFast())
+			throw new CacheException("Too many concurrent calls to delegated cache " + delegatedCache.getName() + " - rejected get for key " + key);
+
+		if(log.isDebugEnabled())
+			log.debug("Too many concurrent calls to delegated cache - serving local miss for key " + key);
+		return null;
+	}
+
 	/*
 	 * Performs get operation: first check in underlying cache, then if not found, in delegated cache.
 	 * @see org.terracotta.utils.EhcacheDelegatedDecoratorAdapter#get(java.io.Serializable)
@@ -144,16 +431,28 @@ public class CachePartitionDecorator extends EhcacheDelegatedDecoratorAdapter {
 		init();
 		Map<Object, Element> result = new HashMap<Object, Element>();
 		Iterator<?> it = keys.iterator();
+		Object keysArray[] = new Object[keys.size()];
 		Future<Element> futs[] = new Future[keys.size()];
 		int count = 0;
 		while(it.hasNext()) {
-			futs[count++] = cacheSyncService.submit(new GetOp(it.next()));
+			keysArray[count] = it.next();
+			futs[count] = cacheSyncService.submit(new GetOp(keysArray[count]));
+			count++;
 		}
 
+		//one budget for the whole bulk get: the keys still pending when it is exhausted are served from the local tier only
+		long remainingNanos = timeBudgets.remainingNanos(TimeBudgets.Operation.BULK_GET);
+		long deadline = System.nanoTime() + remainingNanos;
 		for(int i = 0; i < count; i++) {
 			Element el = null;
 			try {
-				el = futs[i].get();
+				if(remainingNanos < 0)
+					el = futs[i].get();
+				else
+					el = futs[i].get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException te) {
+				futs[i].cancel(true);
+				el = underlyingCache.getQuiet(keysArray[i]);
 			}catch(Exception e) {
 				log.warn("Error while getting the data from cache", e);
 			}
@@ -165,56 +464,507 @@ public class CachePartitionDecorator extends EhcacheDelegatedDecoratorAdapter {
 	}
 
 	/*
-	 * Searches elements in delegated cache, and call refreshOp for every returned results
+	 * Searches elements in delegated cache, and call refreshOp for every returned results.
+	 * All the owned partitions are searched at once, the partition of each result is used for the per-partition counts.
+	 * With sub-partitions, the owned partitions are instead refreshed through RefreshUnitOps, started when their unit is due.
+	 * A pass that does not complete in one cycle (cycle budget exhausted, or failure) is resumed by the next one from its checkpoint.
 	 */
 	private class TimedRefreshSyncOp implements Runnable {
-		private Query query;
+		//set to warm only some partitions, otherwise follows the current ownership
+		private final OwnedPartitions partitionsToRefresh;
+		private OwnedPartitions queriedPartitions;
+		private Criteria searchCriteria;
+		private RefreshCheckpoint checkpoint;
 
-		public TimedRefreshSyncOp(Attribute<Integer> partitionSearchAttribute, Integer partitionId) {
-			this.query = delegatedCache.createQuery();
-			Criteria searchCriteria = partitionSearchAttribute.eq(partitionId);
-			query.addCriteria(searchCriteria);
-			query.includeKeys();
-			query.end();
+		public TimedRefreshSyncOp(OwnedPartitions partitionsToRefresh) {
+			this.partitionsToRefresh = partitionsToRefresh;
+		}
+
+		/*
+		 * Drops the progress of the current pass, superseded by a full resync: the next cycle starts a new pass
+		 */
+		public void restartPass() {
+			if(null != checkpoint)
+				checkpoint.reset();
 		}
 
 		public void run() {
-			List keys = searchPartitionKeys(query);
-			Future futs[] = new Future[keys.size()];
-			int count = 0;
-			for(Object key: keys){
-				futs[count++] = cacheSyncService.submit(new RefreshOp(key));
+			OwnedPartitions partitions = (null != partitionsToRefresh) ? partitionsToRefresh : ownedPartitions;
+			if(partitions.isEmpty())
+				return;
+
+			if(null != subPartitionSearchAttribute) {
+				startDueUnits(partitions);
+				return;
+			}
+
+			if(!startPeriodicRefresh()) {
+				//warming is not rescheduled: try again once the on-demand refresh is done
+				if(null != partitionsToRefresh) {
+					try {
+						cacheTimerService.schedule(this, refreshInterval, refreshIntervalUnit);
+					} catch (RejectedExecutionException ree) {
+						log.warn("Could not resume the warming of partitions " + partitionsToRefresh, ree);
+					}
+				}
+				return;
 			}
-			for(int i = 0; i < count; i++) {
+			try {
+				refreshCycle(partitions);
+			} finally {
+				endPeriodicRefresh();
+			}
+		}
+
+		private void refreshCycle(OwnedPartitions partitions) {
+			//the search criteria is only rebuilt when the ownership changes, which starts a new pass
+			if(partitions != queriedPartitions) {
+				searchCriteria = partitions.toCriteria(partitionSearchAttribute);
+				queriedPartitions = partitions;
+				checkpoint = refreshPipeline.newCheckpoint();
+			}
+
+			//the hot keys go first, then the whole pass in search order
+			if(checkpoint.getCycleCount() == 0 && null == partitionsToRefresh && refreshPriority.isEnabled() && refreshPriority.getHotIntervalMillis() == 0)
+				new RefreshHotKeysOp().run();
+
+			try {
+				checkpoint.startCycle(System.currentTimeMillis());
+				if(!refreshMatching(searchCriteria, true, checkpoint, "partitions " + queriedPartitions))
+					return;
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				//an exception would cancel the scheduling of this op: the pass is resumed from its checkpoint on the next cycle
+				log.warn("Could not refresh partitions " + queriedPartitions + " - will resume from " + checkpoint + " on the next cycle", e);
+				return;
+			}
+
+			if(checkpoint.isComplete()) {
+				ownedPartitions.recordRefresh(partitions.getPartitionIds(), checkpoint.getCountsPerPartition(), checkpoint.getPassStartTime());
+				checkpoint.reset();
+				if(refreshCapacity.isEnabled())
+					refreshCapacity.evaluate(ownedPartitions.getTotalEntryCount());
+			} else if(null != partitionsToRefresh) {
+				//warming is not rescheduled: yield the timer thread, then resume
 				try {
-					futs[i].get();
-				}catch(Exception e) {
-					log.warn("Error while putting the data into cache", e);
+					cacheTimerService.execute(this);
+				} catch (RejectedExecutionException ree) {
+					log.warn("Could not resume the warming of partitions " + queriedPartitions, ree);
 				}
 			}
 		}
-		
-		private List searchPartitionKeys(final Query query) {
-			LinkedList<Object> keys = new LinkedList<Object>();
-			System.out.println("Starting search...");
+	}
+
+	/*
+	 * Starts the refresh units that are due, as long as there are less than refreshUnitsInFlight in flight.
+	 * The units are rebuilt when the ownership changes: the units of the acquired partitions are due straight away.
+	 */
+	private void startDueUnits(OwnedPartitions partitions) {
+		RefreshUnits units = refreshUnits;
+		if(null == units || units.getPartitions() != partitions) {
+			units = new RefreshUnits(partitions, subPartitionCount, refreshInterval, refreshPipeline, units);
+			refreshUnits = units;
+		}
+
+		for(RefreshUnits.RefreshUnit unit : units.claimDueUnits(System.currentTimeMillis(), refreshUnitsInFlight)) {
+			try {
+				refreshUnitService.execute(new RefreshUnitOp(unit, units));
+			} catch (RejectedExecutionException ree) {
+				unit.release();
+				log.warn("Could not schedule the refresh of unit " + unit, ree);
+			}
+		}
+	}
+
+	/*
+	 * Refreshes one sub-partition of one partition: a failure only affects this unit, which is retried on its next interval.
+	 * A unit that exhausts the cycle budget is due again straight away, and resumes from its checkpoint once the other due units had their turn.
+	 */
+	private class RefreshUnitOp implements Runnable {
+		private final RefreshUnits.RefreshUnit unit;
+		private final RefreshUnits units;
+
+		public RefreshUnitOp(RefreshUnits.RefreshUnit unit, RefreshUnits units) {
+			this.unit = unit;
+			this.units = units;
+		}
+
+		public void run() {
+			if(!startPeriodicRefresh()) {
+				//still due: claimed again once the on-demand refresh is done
+				unit.yielded();
+				return;
+			}
+			try {
+				refreshUnit();
+			} finally {
+				endPeriodicRefresh();
+			}
+		}
+
+		private void refreshUnit() {
 			long startTime = System.currentTimeMillis();
-			Results results = query.execute();
-			if(log.isDebugEnabled())
-				log.debug(String.format("Search time: %d ms", System.currentTimeMillis() - startTime));
+			RefreshCheckpoint checkpoint = unit.getCheckpoint();
+			try {
+				checkpoint.startCycle(startTime);
+				if(!refreshMatching(unit.toCriteria(partitionSearchAttribute, subPartitionSearchAttribute), false, checkpoint, "unit " + unit)) {
+					unit.failed(startTime);
+					return;
+				}
+				if(!checkpoint.isComplete()) {
+					unit.yielded();
+					return;
+				}
+
+				int refreshed = checkpoint.getSearchedCount();
+				unit.completed(refreshed, checkpoint.getPassStartTime());
+				checkpoint.reset();
+
+				int partitionId = unit.getPartitionId();
+				ownedPartitions.recordRefresh(new int[] { partitionId }, Collections.singletonMap(partitionId, (int)units.getEntryCount(partitionId)), units.getLastRefreshTime(partitionId));
+				if(refreshCapacity.isEnabled())
+					refreshCapacity.evaluate(ownedPartitions.getTotalEntryCount());
+				if(log.isDebugEnabled())
+					log.debug(String.format("Refreshed %d entries of unit %s in %d ms", refreshed, unit, unit.getLastDuration()));
+			} catch (Exception e) {
+				unit.failed(startTime);
+				log.warn("Could not refresh unit " + unit + " - will resume from " + checkpoint + " on its next interval", e);
+			}
+		}
+	}
+
+	/*
+	 * A periodic refresh (cycle or unit) skips its turn while an on-demand refresh of partitions runs, or waits to
+	 * @return true if the periodic refresh can go ahead, in which case it calls endPeriodicRefresh() once done
+	 */
+	private boolean startPeriodicRefresh() {
+		//only the on-demand refreshes queue on the lock
+		return !refreshLock.hasQueuedThreads() && refreshLock.readLock().tryLock();
+	}
 
-			// perform the refresh
-			for (Result result : results.all()) {
-				keys.add(result.getKey());
+	private void endPeriodicRefresh() {
+		refreshLock.readLock().unlock();
+	}
+
+	/*
+	 * Searches the delegated cache, and refreshes the entries found through the refresh pipeline, from the checkpoint on
+	 * @param countPartitions whether to count the keys found per partition in the checkpoint
+	 * @return false if the search could not complete in its time budget
+	 */
+	private boolean refreshMatching(Criteria criteria, boolean countPartitions, RefreshCheckpoint checkpoint, String searched) throws InterruptedException {
+		if(log.isDebugEnabled())
+			log.debug("Starting the search of " + searched);
+		long startTime = System.currentTimeMillis();
+		Results results;
+		try {
+			try {
+				results = search(criteria, countPartitions, checkpoint);
+			} catch (RuntimeException re) {
+				if(!checkpoint.isResumable() || !isOrderingFailure(re))
+					throw re;
+				log.warn("Could not order the search of " + searched + " by key (keys of different types) - refreshing it in a single cycle from now on", re);
+				checkpoint.notResumable();
+				results = search(criteria, countPartitions, checkpoint);
 			}
+		} catch (TimeoutException te) {
+			//skip this refresh, the local tier keeps serving what it has until the next one
+			log.warn(te.getMessage() + " - skipping the refresh of " + searched);
+			return false;
+		}
+		if(log.isDebugEnabled())
+			log.debug(String.format("Search time: %d ms", System.currentTimeMillis() - startTime));
 
+		// perform the refresh
+		try {
+			refreshPipeline.run(results, new RefreshStages(countPartitions, refreshCapacity.isOverCapacity()), checkpoint, startTime);
+			return true;
+		} finally {
 			results.discard();
+		}
+	}
+
+	private Results search(Criteria criteria, boolean countPartitions, RefreshCheckpoint checkpoint) throws TimeoutException {
+		final Query query = delegatedCache.createQuery();
+		query.addCriteria(refreshFilter.and(criteria));
+		query.includeKeys();
+		if(countPartitions)
+			query.includeAttribute(partitionSearchAttribute);
+		checkpoint.resume(query);
+		query.end();
+
+		return timeBudgets.call(TimeBudgets.Operation.SEARCH, new Callable<Results>() {
+			public Results call() {
+				return query.execute();
+			}
+		});
+	}
+
+	/*
+	 * @return true if the search failed to compare the keys to order them
+	 */
+	private static boolean isOrderingFailure(Throwable t) {
+		for(Throwable cause = t; null != cause; cause = cause.getCause()) {
+			if(cause instanceof ClassCastException)
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * The stages of a refresh: reads the key (and partition) of the search results, fetches the pages from the delegated cache, and applies them locally
+	 * (only to the resident entries when the local tier is over capacity)
+	 */
+	private class RefreshStages implements RefreshPipeline.Stages {
+		private final boolean countPartitions;
+		private final boolean residentOnly;
+
+		public RefreshStages(boolean countPartitions, boolean residentOnly) {
+			this.countPartitions = countPartitions;
+			this.residentOnly = residentOnly;
+		}
+
+		public Object keyOf(Result result) {
+			return result.getKey();
+		}
+
+		public Integer partitionOf(Result result) {
+			return countPartitions ? result.<Integer>getAttribute(partitionSearchAttribute) : null;
+		}
+
+		/*
+		 * One bulk get per page, so that the refresh budget applies to one call to the delegated cache, as for a single key
+		 */
+		public Map<Object, Element> fetch(final List<Object> keys) throws Exception {
+			final long fetchStamp = partitionWriter.getWriteStamp();
+			try {
+				return timeBudgets.call(TimeBudgets.Operation.REFRESH, new Callable<Map<Object, Element>>() {
+					public Map<Object, Element> call() {
+						Map<Object, Element> fetched = delegatedCache.getAll(keys);
+						Map<Object, Element> elements = new FetchedPage(keys.size() * 2, fetchStamp);
+						for(Object key : keys) {
+							elements.put(key, fetched.get(key));
+						}
+						return elements;
+					}
+				});
+			} catch (TimeoutException te) {
+				//keep the local copies as they are, they will be refreshed on the next cycle
+				if (log.isDebugEnabled())
+					log.debug(te.getMessage() + " - keeping the local copies of a page of " + keys.size() + " keys");
+				return null;
+			}
+		}
+
+		/*
+		 * The elements are always a page returned by fetch
+		 */
+		public void apply(Map<Object, Element> elements) {
+			long fetchStamp = ((FetchedPage)elements).fetchStamp;
+			List<Element> replacements = new ArrayList<Element>(elements.size());
+			List<Object> removedKeys = new ArrayList<Object>();
+			int skipped = 0;
+			for(Map.Entry<Object, Element> fetched : elements.entrySet()) {
+				//a local write not flushed yet, or made since the fetch, is more recent than what was fetched
+				if(partitionWriter.isPending(fetched.getKey()) || partitionWriter.isWrittenSince(fetched.getKey(), fetchStamp))
+					continue;
+
+				if(null == fetched.getValue()) {
+					if (log.isDebugEnabled()) {
+						log.debug(delegatedCache.getName() + ": entry with key " + fetched.getKey() + " has been removed - skipping it");
+					}
+					removedKeys.add(fetched.getKey());
+				} else if(residentOnly && !underlyingCache.isKeyInCache(fetched.getKey())) {
+					//evicted for space: putting it back would evict another resident entry
+					skipped++;
+				} else {
+					replacements.add(localCopy(fetched.getValue()));
+				}
+			}
+			if(refreshCapacity.isEnabled())
+				refreshCapacity.recordRefreshed(replacements.size(), skipped);
+			if(!replacements.isEmpty()) {
+				underlyingCache.putAll(replacements);
+				dropWrittenSince(replacements, fetchStamp);
+			}
+			if(!removedKeys.isEmpty())
+				underlyingCache.removeAll(removedKeys);
+		}
+	}
 
-			return keys;
+	/*
+	 * A page fetched from the delegated cache, with the write stamp taken before fetching it
+	 */
+	private static class FetchedPage extends LinkedHashMap<Object, Element> {
+		private static final long serialVersionUID = 1L;
+		private final long fetchStamp;
+
+		public FetchedPage(int initialCapacity, long fetchStamp) {
+			super(initialCapacity);
+			this.fetchStamp = fetchStamp;
 		}
 	}
 
 	/*
-	 * Reads from delegated cache, and update decorated cache with value
+	 * Refreshes the hot keys mirrored locally, hottest first, in pages fetched one after the other:
+	 * the hot keys not mirrored locally are left to be faulted in on their next read, unless the local tier is over capacity,
+	 * in which case the hot keys of the owned partitions are admitted.
+	 * Stops at the first page that could not be fetched in its time budget, as the colder keys would not fare better.
+	 */
+	private class RefreshHotKeysOp implements Runnable {
+		public void run() {
+			boolean admitting = refreshCapacity.isOverCapacity();
+			List<Object> localHotKeys = new ArrayList<Object>();
+			for(Object key : refreshPriority.rankHotKeys()) {
+				if(admitting || underlyingCache.isKeyInCache(key))
+					localHotKeys.add(key);
+			}
+
+			RefreshStages stages = new RefreshStages(false, false);
+			int refreshed = 0;
+			try {
+				for(int start = 0; start < localHotKeys.size(); start += refreshPipeline.getPageSize()) {
+					Map<Object, Element> elements = stages.fetch(new ArrayList<Object>(localHotKeys.subList(start, Math.min(localHotKeys.size(), start + refreshPipeline.getPageSize()))));
+					if(null == elements)
+						break;
+					removeUnmatched(elements);
+					if(admitting)
+						refreshCapacity.recordAdmitted(keepResidentOrOwned(elements));
+					stages.apply(elements);
+					refreshed += elements.size();
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				//an exception would cancel the scheduling of this op: the hot keys are refreshed again on the next interval
+				log.warn(String.format("Could not refresh the hot keys (%d out of %d refreshed)", refreshed, localHotKeys.size()), e);
+			}
+			refreshPriority.recordHotRefresh(refreshed);
+			if(log.isDebugEnabled())
+				log.debug(String.format("Refreshed %d hot keys", refreshed));
+		}
+	}
+
+	/*
+	 * Drops the fetched entries that are neither resident nor of the owned partitions
+	 * @return the number of entries kept that are not resident
+	 */
+	private int keepResidentOrOwned(Map<Object, Element> elements) {
+		int admitted = 0;
+		Iterator<Map.Entry<Object, Element>> it = elements.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<Object, Element> fetched = it.next();
+			if(underlyingCache.isKeyInCache(fetched.getKey()))
+				continue;
+			if(null == fetched.getValue() || !isOwned(fetched.getValue()))
+				it.remove();
+			else
+				admitted++;
+		}
+		return admitted;
+	}
+
+	/*
+	 * Turns the fetched entries that do not match the refresh filter anymore into removals
+	 */
+	private void removeUnmatched(Map<Object, Element> elements) {
+		if(!refreshFilter.isFiltered())
+			return;
+		for(Map.Entry<Object, Element> fetched : elements.entrySet()) {
+			if(null != fetched.getValue() && !refreshFilter.matches(fetched.getValue()))
+				fetched.setValue(null);
+		}
+	}
+
+	/*
+	 * @return the element with only the projection of its value, if any, keeping its own time to live
+	 */
+	private Element projected(Element element) {
+		if(null == element || !refreshFilter.hasProjection())
+			return element;
+		Element projected = new Element(element.getObjectKey(), refreshFilter.project(element.getObjectKey(), element.getObjectValue()), element.getVersion());
+		if(element.isLifespanSet()) {
+			if(element.isEternal()) {
+				projected.setEternal(true);
+			} else {
+				projected.setTimeToLive(element.getTimeToLive());
+				projected.setTimeToIdle(element.getTimeToIdle());
+			}
+		}
+		return projected;
+	}
+
+	/*
+	 * copy the element so that the local time to live counts from now rather than from the creation in the delegated cache
+	 * (and keep only the projection of its value, if any)
+	 */
+	private Element localCopy(Element element) {
+		return new Element(element.getObjectKey(), refreshFilter.project(element.getObjectKey(), element.getObjectValue()), element.getVersion());
+	}
+
+	/*
+	 * Hands the partitions assigned by the ownership manager to the refresh:
+	 * the acquired partitions are warmed straight away, the entries of the released ones are dropped from the local tier.
+	 */
+	private class OwnershipListener implements OwnershipManager.Listener {
+		public void ownershipChanged(int[] owned, Set<Integer> acquired, Set<Integer> released) {
+			ownedPartitions = new OwnedPartitions(owned, ownedPartitions);
+
+			if(!released.isEmpty()) {
+				try {
+					cacheSyncService.submit(new DropPartitionsOp(released));
+				} catch (RejectedExecutionException ree) {
+					log.warn("Could not schedule the removal of released partitions " + released, ree);
+				}
+			}
+
+			//with sub-partitions, the units of the acquired partitions are due straight away
+			if(!acquired.isEmpty() && null == subPartitionSearchAttribute) {
+				int[] acquiredPartitions = new int[acquired.size()];
+				int i = 0;
+				for(Integer partition : acquired) {
+					acquiredPartitions[i++] = partition.intValue();
+				}
+				try {
+					cacheTimerService.execute(new TimedRefreshSyncOp(new OwnedPartitions(acquiredPartitions, null)));
+				} catch (RejectedExecutionException ree) {
+					log.warn("Could not schedule the warming of acquired partitions " + acquired, ree);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Removes from the local tier the entries of partitions that are not owned anymore
+	 */
+	private class DropPartitionsOp implements Runnable {
+		private Set<Integer> partitionsToDrop;
+
+		public DropPartitionsOp(Set<Integer> partitionsToDrop) {
+			this.partitionsToDrop = partitionsToDrop;
+		}
+
+		public void run() {
+			int dropped = 0;
+			for(Object key : underlyingCache.getKeys()) {
+				Element element = underlyingCache.getQuiet(key);
+				if(null == element || partitionWriter.isPending(key))
+					continue;
+
+				Integer elementPartition = partitionOf(element);
+				if(null != elementPartition && partitionsToDrop.contains(elementPartition) && !ownedPartitions.contains(elementPartition.intValue())) {
+					underlyingCache.remove(key);
+					dropped++;
+				}
+			}
+			if(log.isDebugEnabled())
+				log.debug(String.format("Dropped %d local entries of released partitions %s", dropped, partitionsToDrop));
+		}
+	}
+
+	/*
+	 * Reads from delegated cache, and update decorated cache with value (used for the keys revalidated or refreshed ahead one by one)
 	 */
 	private class RefreshOp implements Runnable {
 		private Object keyToUpdate;
@@ -224,16 +974,36 @@ public class CachePartitionDecorator extends EhcacheDelegatedDecoratorAdapter {
 		}
 
 		public void run() {
+			//a local write not flushed yet is more recent than what the delegated cache has
+			if(partitionWriter.isPending(keyToUpdate))
+				return;
+
+			long fetchStamp = partitionWriter.getWriteStamp();
 			try {
-				final Element replacementElement = delegatedCache.getQuiet(keyToUpdate);
-				if (replacementElement == null) {
+				final Element replacementElement = timeBudgets.call(TimeBudgets.Operation.REFRESH, new Callable<Element>() {
+					public Element call() {
+						return delegatedCache.getQuiet(keyToUpdate);
+					}
+				});
+				if(partitionWriter.isPending(keyToUpdate) || partitionWriter.isWrittenSince(keyToUpdate, fetchStamp)) {
+					if (log.isDebugEnabled())
+						log.debug("Key " + keyToUpdate + " was written since it was fetched - keeping the local copy");
+				} else if (replacementElement == null) {
 					if (log.isDebugEnabled()) {
 						log.debug(delegatedCache.getName() + ": entry with key " + keyToUpdate + " has been removed - skipping it");
 					}
 					underlyingCache.remove(keyToUpdate);
+				} else if(!refreshFilter.matches(replacementElement)) {
+					underlyingCache.remove(keyToUpdate);
 				} else {
-					underlyingCache.put(replacementElement);
+					Element copy = localCopy(replacementElement);
+					underlyingCache.put(copy);
+					dropWrittenSince(Collections.singletonList(copy), fetchStamp);
 				}
+			} catch (TimeoutException te) {
+				//keep the local copy as it is, it will be refreshed on the next cycle
+				if (log.isDebugEnabled())
+					log.debug(te.getMessage() + " - keeping the local copy of " + keyToUpdate);
 			} catch (final Exception e) {
 				// Collect the exception and keep going.
 				log.warn(getName() + "Could not refresh element " + keyToUpdate, e);
@@ -241,6 +1011,48 @@ public class CachePartitionDecorator extends EhcacheDelegatedDecoratorAdapter {
 		}
 	}
 
+	/*
+	 * Refreshes a key that was served stale, then lets the next stale read trigger a new revalidation if needed
+	 */
+	private class RevalidateOp extends RefreshOp {
+		private Object keyToRevalidate;
+
+		public RevalidateOp(Object key) {
+			super(key);
+			this.keyToRevalidate = key;
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				staleWhileRevalidate.finishRevalidation(keyToRevalidate);
+			}
+		}
+	}
+
+	/*
+	 * Refreshes a key read close to its local expiry, then lets a later read refresh it ahead again
+	 */
+	private class RefreshAheadOp extends RefreshOp {
+		private Object keyToRefresh;
+
+		public RefreshAheadOp(Object key) {
+			super(key);
+			this.keyToRefresh = key;
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				refreshAhead.finishRefresh(keyToRefresh);
+			}
+		}
+	}
+
 	/*
 	 * Performs get operation: first check in underlying cache, then if not found, in delegated cache.
 	 */
@@ -255,13 +1067,290 @@ public class CachePartitionDecorator extends EhcacheDelegatedDecoratorAdapter {
 		}
 	}
 
+	/*
+	 * Fetches those keys from the delegated cache and updates the local tier straight away, without waiting for the next refresh.
+	 * The keys that are neither local nor of the owned partitions are not kept locally, the keys that do not match the refresh filter are removed locally.
+	 * @return the number of keys fetched (found or removed), and how long it took
+	 */
+	public Future<RefreshResult> refreshKeys(Collection<?> keys) {
+		init();
+		return cacheSyncService.submit(new RefreshKeysOp(new ArrayList<Object>(keys)));
+	}
+
+	/*
+	 * Refreshes a whole owned partition, after the refresh cycle in progress if any.
+	 * A request made while a refresh of the same partition (or a full resync) is waiting to start joins it.
+	 * @return the number of entries found in the partition, and how long its refresh took
+	 */
+	public Future<RefreshResult> refreshPartition(int partitionId) {
+		init();
+		if(!ownedPartitions.contains(partitionId))
+			throw new CacheException("Partition " + partitionId + " is not refreshed by the decorator on " + getName() + " - owned: " + Arrays.toString(ownedPartitions.getPartitionIds()));
+		return requestRefresh(Integer.valueOf(partitionId), new OwnedPartitions(new int[] { partitionId }, null));
+	}
+
+	/*
+	 * Refreshes all the owned partitions, after the refresh cycle in progress if any, and restarts the periodic refresh pass it supersedes.
+	 * A request made while a full resync is waiting to start joins it.
+	 * @return the number of entries found in the owned partitions, and how long their refresh took
+	 */
+	public Future<RefreshResult> fullResync() {
+		init();
+		return requestRefresh(FULLRESYNC, null);
+	}
+
+	/*
+	 * The on-demand refreshes of partitions run on their own thread, one after the other and never concurrently with a periodic refresh cycle or unit
+	 */
+	private Future<RefreshResult> requestRefresh(Object requestKey, OwnedPartitions partitions) {
+		synchronized (pendingRefreshes) {
+			Future<RefreshResult> pending = pendingRefreshes.get(FULLRESYNC);
+			if(null == pending)
+				pending = pendingRefreshes.get(requestKey);
+			if(null != pending)
+				return pending;
+
+			FutureTask<RefreshResult> refresh = new FutureTask<RefreshResult>(new OnDemandRefreshOp(requestKey, partitions));
+			pendingRefreshes.put(requestKey, refresh);
+			try {
+				onDemandRefreshService.execute(refresh);
+			} catch (RejectedExecutionException ree) {
+				pendingRefreshes.remove(requestKey);
+				throw ree;
+			}
+			return refresh;
+		}
+	}
+
+	/*
+	 * Refreshes some owned partitions (or all of them) completely, whatever the cycle budget
+	 */
+	private class OnDemandRefreshOp implements Callable<RefreshResult> {
+		private final Object requestKey;
+		private final OwnedPartitions partitionsToRefresh;
+
+		public OnDemandRefreshOp(Object requestKey, OwnedPartitions partitionsToRefresh) {
+			this.requestKey = requestKey;
+			this.partitionsToRefresh = partitionsToRefresh;
+		}
+
+		public RefreshResult call() throws Exception {
+			//waits for the periodic refreshes in flight, which skip their turns meanwhile
+			refreshLock.writeLock().lockInterruptibly();
+			try {
+				return refresh();
+			} finally {
+				refreshLock.writeLock().unlock();
+			}
+		}
+
+		private RefreshResult refresh() throws Exception {
+			//once started, the data published from now on may be missed: later requests wait for a new refresh
+			synchronized (pendingRefreshes) {
+				pendingRefreshes.remove(requestKey);
+			}
+
+			long startTime = System.currentTimeMillis();
+			OwnedPartitions partitions = (null != partitionsToRefresh) ? partitionsToRefresh : ownedPartitions;
+			for(int partitionId : partitions.getPartitionIds()) {
+				if(!ownedPartitions.contains(partitionId))
+					throw new CacheException("Partition " + partitionId + " was released before it could be refreshed");
+			}
+			if(partitions.isEmpty())
+				return new RefreshResult("no partitions", 0L, startTime, 0L);
+
+			String searched = "partitions " + Arrays.toString(partitions.getPartitionIds());
+			RefreshCheckpoint checkpoint = refreshPipeline.newCheckpoint();
+			do {
+				int searchedBefore = checkpoint.getSearchedCount();
+				checkpoint.startCycle(System.currentTimeMillis());
+				if(!refreshMatching(partitions.toCriteria(partitionSearchAttribute), true, checkpoint, searched))
+					throw new CacheException("Could not search " + searched + " within its time budget");
+				if(!checkpoint.isComplete() && checkpoint.getSearchedCount() <= searchedBefore)
+					throw new CacheException("Could not refresh " + searched + " - stopped at " + checkpoint);
+			} while(!checkpoint.isComplete());
+
+			ownedPartitions.recordRefresh(partitions.getPartitionIds(), checkpoint.getCountsPerPartition(), checkpoint.getPassStartTime());
+			if(null == partitionsToRefresh && null != timedRefreshSyncOp)
+				timedRefreshSyncOp.restartPass();
+			if(refreshCapacity.isEnabled())
+				refreshCapacity.evaluate(ownedPartitions.getTotalEntryCount());
+
+			RefreshResult result = new RefreshResult(searched, checkpoint.getSearchedCount(), startTime, System.currentTimeMillis() - startTime);
+			log.info(result.toString());
+			return result;
+		}
+	}
+
+	/*
+	 * Fetches keys page by page and applies them locally
+	 */
+	private class RefreshKeysOp implements Callable<RefreshResult> {
+		private final List<Object> keys;
+
+		public RefreshKeysOp(List<Object> keys) {
+			this.keys = keys;
+		}
+
+		public RefreshResult call() throws Exception {
+			long startTime = System.currentTimeMillis();
+			RefreshStages stages = new RefreshStages(false, false);
+			int refreshed = 0;
+			for(int start = 0; start < keys.size(); start += refreshPipeline.getPageSize()) {
+				Map<Object, Element> elements = stages.fetch(new ArrayList<Object>(keys.subList(start, Math.min(keys.size(), start + refreshPipeline.getPageSize()))));
+				if(null == elements)
+					throw new CacheException(String.format("Could not fetch the keys within the refresh time budget (%d out of %d refreshed)", refreshed, keys.size()));
+				refreshed += elements.size();
+				removeUnmatched(elements);
+				keepResidentOrOwned(elements);
+				stages.apply(elements);
+			}
+			return new RefreshResult(keys.size() + " keys", refreshed, startTime, System.currentTimeMillis() - startTime);
+		}
+	}
+
+	private void registerRefreshControl() {
+		try {
+			String cacheManagerName = (null != underlyingCache.getCacheManager()) ? underlyingCache.getCacheManager().getName() : "none";
+			refreshControlName = new ObjectName("org.ehcache.decorators:type=CachePartitionDecorator,CacheManager=" + ObjectName.quote(cacheManagerName)
+					+ ",name=" + ObjectName.quote(getName()));
+			long timeoutMillis = PropertyUtils.getLongProperty(properties, PROPNAME_JMXREFRESHTIMEOUT, JMXREFRESHTIMEOUTDEFAULT, 1L);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new RefreshControl(this, timeoutMillis), refreshControlName);
+		} catch (Exception e) {
+			refreshControlName = null;
+			log.warn("Could not register the refresh operations of " + getName() + " with JMX", e);
+		}
+	}
+
+	private void unregisterRefreshControl() {
+		if(null == refreshControlName)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(refreshControlName);
+		} catch (Exception e) {
+			log.warn("Could not unregister " + refreshControlName + " from JMX", e);
+		}
+	}
+
 	/*
 	 * shutdown hook: shutting down all the executors used in this class
 	 */
 	public void shutdown() throws InterruptedException{
 		log.info("Shutting down Cache Service");
+		unregisterRefreshControl();
 		shutdownAndAwaitTermination(cacheTimerService);
+		shutdownAndAwaitTermination(onDemandRefreshService);
+		shutdownAndAwaitTermination(refreshUnitService);
+		shutdownAndAwaitTermination(refreshPipelineService);
+		shutdownAndAwaitTermination(writeBehindTimerService);
+		partitionWriter.flush();
+		shutdownAndAwaitTermination(leaseTimerService);
+		if(null != ownershipManager) {
+			log.info(ownershipManager.toString());
+			ownershipManager.releaseAll();
+		}
 		shutdownAndAwaitTermination(cacheSyncService);
+		shutdownAndAwaitTermination(hedgingService);
+		for(ExecutorService budgetService : budgetServices.values()) {
+			shutdownAndAwaitTermination(budgetService);
+		}
+		log.info(hedgedFetcher.toString());
+		log.info(bulkhead.toString());
+		log.info(staleWhileRevalidate.toString());
+		log.info(refreshAhead.toString());
+		log.info(timeBudgets.toString());
+		log.info(partitionWriter.toString());
+		log.info(ownedPartitions.toString());
+		log.info(refreshPipeline.toString());
+		log.info(refreshPriority.toString());
+		log.info(refreshCapacity.toString());
+		log.info(refreshFilter.toString());
+		if(null != refreshUnits)
+			log.info(refreshUnits.toString());
+	}
+
+	/*
+	 * @return the hedging counters (how often the delegated cache fault was hedged, and how often the hedge won)
+	 */
+	public HedgedFetcher getHedgedFetcher() {
+		return hedgedFetcher;
+	}
+
+	/*
+	 * @return the bulkhead guarding the calls to the delegated cache (available permits, rejections)
+	 */
+	public Bulkhead getBulkhead() {
+		return bulkhead;
+	}
+
+	/*
+	 * @return the stale-while-revalidate counters (stale hits, revalidations)
+	 */
+	public StaleWhileRevalidate getStaleWhileRevalidate() {
+		return staleWhileRevalidate;
+	}
+
+	/*
+	 * @return the refresh-ahead counters (keys refreshed before their local expiry, reads not refreshed ahead for lack of capacity)
+	 */
+	public RefreshAhead getRefreshAhead() {
+		return refreshAhead;
+	}
+
+	/*
+	 * @return the time budgets of the calls to the delegated cache, and how often they got exhausted
+	 */
+	public TimeBudgets getTimeBudgets() {
+		return timeBudgets;
+	}
+
+	/*
+	 * @return the partitions refreshed by this decorator, with the number of entries found in each by the last refresh
+	 */
+	public OwnedPartitions getOwnedPartitions() {
+		return ownedPartitions;
+	}
+
+	/*
+	 * @return the refresh pipeline (pages searched, fetched and applied)
+	 */
+	public RefreshPipeline getRefreshPipeline() {
+		return refreshPipeline;
+	}
+
+	/*
+	 * @return the read frequencies and the hot keys refreshed ahead of the long tail
+	 */
+	public RefreshPriority getRefreshPriority() {
+		return refreshPriority;
+	}
+
+	/*
+	 * @return whether the owned partitions fit in the local tier, with the evictions and the entries not refreshed because they were evicted
+	 */
+	public RefreshCapacity getRefreshCapacity() {
+		return refreshCapacity;
+	}
+
+	/*
+	 * @return the sub-partition units in which the refresh of the owned partitions is split, or null without sub-partitions
+	 */
+	public RefreshUnits getRefreshUnits() {
+		return refreshUnits;
+	}
+
+	/*
+	 * @return the manager claiming the partitions of this node, or null if the partitions are statically configured
+	 */
+	public OwnershipManager getOwnershipManager() {
+		return ownershipManager;
+	}
+
+	/*
+	 * @return the writer sending the writes made through this decorator to the delegated cache (write mode, pending and flushed writes)
+	 */
+	public PartitionWriter getPartitionWriter() {
+		return partitionWriter;
 	}
 
 	/*
@@ -298,62 +1387,329 @@ public class CachePartitionDecorator extends EhcacheDelegatedDecoratorAdapter {
 		throw new UnsupportedOperationException("Cache is read-only...operation not supported");
 	}
 
+	/*
+	 * Writes are only supported with writeMode=WRITE_THROUGH or WRITE_BEHIND
+	 */
+	private void checkWritable() {
+		if(partitionWriter.getWriteMode() == PartitionWriter.WriteMode.READ_ONLY)
+			throw new UnsupportedOperationException("Cache is read-only...operation not supported");
+	}
+
+	/*
+	 * @return true if the element belongs to one of the partitions refreshed by this decorator
+	 */
+	private boolean isOwned(Element element) {
+		Integer elementPartition = partitionOf(element);
+		return null != elementPartition && ownedPartitions.contains(elementPartition.intValue());
+	}
+
+	/*
+	 * @return the partition of the element, computed locally, or null if it has none
+	 */
+	private Integer partitionOf(Element element) {
+		try {
+			Object elementPartition = partitionExtractor.attributeFor(element, PROPNAME_PARTITIONID);
+			return (elementPartition instanceof Integer) ? (Integer)elementPartition : null;
+		} catch (RuntimeException re) {
+			log.warn("Could not compute the partition of key " + element.getObjectKey(), re);
+			return null;
+		}
+	}
+
+	/*
+	 * A write is kept locally only if this decorator refreshes it (owned, and matching the refresh filter), otherwise the local copy would go stale.
+	 * In write-behind mode too: a write of a key that is not refreshed is only visible once flushed to the delegated cache.
+	 */
+	private void applyLocally(Element element) {
+		partitionWriter.recordWrite(element.getObjectKey());
+		if(isOwned(element) && refreshFilter.matches(element))
+			underlyingCache.put(projected(element));
+		else
+			underlyingCache.remove(element.getObjectKey());
+	}
+
+	private void write(Element element) {
+		checkWritable();
+		if(partitionWriter.isWriteBehind()) {
+			applyLocally(element);
+			partitionWriter.put(element);
+		} else {
+			delegatedCache.put(element);
+			applyLocally(element);
+		}
+	}
+
+	/*
+	 * Conditional writes are always applied to the delegated cache first, as it is the only one that can decide them:
+	 * in write-behind mode, the pending writes are flushed beforehand.
+	 */
+	private void prepareConditionalWrite(Object key) {
+		checkWritable();
+		if(partitionWriter.isPending(key))
+			partitionWriter.flush();
+	}
+
 	@Override
 	public final void put(Element element, boolean doNotNotifyCacheReplicators)
 			throws IllegalArgumentException, IllegalStateException,
 			CacheException {
-		throw new UnsupportedOperationException("Cache is read-only...operation not supported");
+		init();
+		write(element);
 	}
 
 	@Override
 	public final void put(Element element) throws IllegalArgumentException,
 			IllegalStateException, CacheException {
-		throw new UnsupportedOperationException("Cache is read-only...operation not supported");
+		init();
+		write(element);
 	}
 
 	@Override
 	public final void putAll(Collection<Element> elements)
 			throws IllegalArgumentException, IllegalStateException,
 			CacheException {
-		throw new UnsupportedOperationException("Cache is read-only...operation not supported");
+		init();
+		checkWritable();
+		if(!partitionWriter.isWriteBehind())
+			delegatedCache.putAll(elements);
+		for(Element element : elements) {
+			applyLocally(element);
+		}
+		if(partitionWriter.isWriteBehind())
+			partitionWriter.putAll(elements);
 	}
 
 	@Override
 	public final Element putIfAbsent(Element element,
 			boolean doNotNotifyCacheReplicators) throws NullPointerException {
-		throw new UnsupportedOperationException("Cache is read-only...operation not supported");
+		return putIfAbsent(element);
 	}
 
 	@Override
 	public final Element putIfAbsent(Element element) throws NullPointerException {
-		throw new UnsupportedOperationException("Cache is read-only...operation not supported");
+		init();
+		prepareConditionalWrite(element.getObjectKey());
+		Element previous = delegatedCache.putIfAbsent(element);
+		if(null == previous)
+			applyLocally(element);
+		return previous;
 	}
 
+	/*
+	 * In write-behind mode, the write is queued like any put: it is flushed with a putAll, which notifies the listeners of the delegated cache
+	 */
 	@Override
 	public final void putQuiet(Element element) throws IllegalArgumentException,
 			IllegalStateException, CacheException {
-		throw new UnsupportedOperationException("Cache is read-only...operation not supported");
+		init();
+		if(partitionWriter.isWriteBehind()) {
+			write(element);
+		} else {
+			checkWritable();
+			delegatedCache.putQuiet(element);
+			applyLocally(element);
+		}
 	}
 
+	/*
+	 * In write-behind mode, the write is queued like any put: it is flushed with a putAll, which does not call the CacheWriter of the delegated cache
+	 */
 	@Override
 	public final void putWithWriter(Element element) throws IllegalArgumentException,
 			IllegalStateException, CacheException {
-		throw new UnsupportedOperationException("Cache is read-only...operation not supported");
-	}
-
-	@Override
-	public final void registerCacheLoader(CacheLoader cacheLoader) {
-		throw new UnsupportedOperationException("Cache is read-only...operation not supported");
+		init();
+		if(partitionWriter.isWriteBehind()) {
+			write(element);
+		} else {
+			checkWritable();
+			delegatedCache.putWithWriter(element);
+			applyLocally(element);
+		}
 	}
 
 	@Override
 	public final boolean replace(Element old, Element element)
 			throws NullPointerException, IllegalArgumentException {
-		throw new UnsupportedOperationException("Cache is read-only...operation not supported");
+		init();
+		prepareConditionalWrite(element.getObjectKey());
+		boolean replaced = delegatedCache.replace(old, element);
+		if(replaced)
+			applyLocally(element);
+		return replaced;
 	}
 
 	@Override
 	public final Element replace(Element element) throws NullPointerException {
+		init();
+		prepareConditionalWrite(element.getObjectKey());
+		Element previous = delegatedCache.replace(element);
+		if(null != previous)
+			applyLocally(element);
+		return previous;
+	}
+
+	/*
+	 * In read-only mode, removes only apply to the local tier (the entry comes back on the next refresh if still in the delegated cache).
+	 * Otherwise they go through the write mode like the puts: the quiet removes and the removes with writer of the delegated cache in write-through mode,
+	 * queued in write-behind mode (flushed with a removeAll, which notifies the listeners of the delegated cache but does not call its CacheWriter).
+	 */
+	@Override
+	public boolean remove(Object key) throws IllegalStateException {
+		init();
+		PartitionWriter.WriteMode writeMode = partitionWriter.getWriteMode();
+		if(writeMode == PartitionWriter.WriteMode.READ_ONLY)
+			return underlyingCache.remove(key);
+
+		boolean removedRemotely = (writeMode == PartitionWriter.WriteMode.WRITE_THROUGH) && delegatedCache.remove(key);
+		return removeWritten(key, removedRemotely);
+	}
+
+	@Override
+	public boolean remove(Object key, boolean doNotNotifyCacheReplicators) throws IllegalStateException {
+		return remove(key);
+	}
+
+	@Override
+	public boolean remove(Serializable key) throws IllegalStateException {
+		return remove((Object)key);
+	}
+
+	@Override
+	public boolean remove(Serializable key, boolean doNotNotifyCacheReplicators) throws IllegalStateException {
+		return remove((Object)key);
+	}
+
+	@Override
+	public boolean removeQuiet(Object key) throws IllegalStateException {
+		init();
+		PartitionWriter.WriteMode writeMode = partitionWriter.getWriteMode();
+		if(writeMode == PartitionWriter.WriteMode.READ_ONLY)
+			return underlyingCache.removeQuiet(key);
+
+		boolean removedRemotely = (writeMode == PartitionWriter.WriteMode.WRITE_THROUGH) && delegatedCache.removeQuiet(key);
+		return removeWritten(key, removedRemotely);
+	}
+
+	@Override
+	public boolean removeQuiet(Serializable key) throws IllegalStateException {
+		return removeQuiet((Object)key);
+	}
+
+	@Override
+	public boolean removeWithWriter(Object key) throws IllegalStateException, CacheException {
+		init();
+		PartitionWriter.WriteMode writeMode = partitionWriter.getWriteMode();
+		if(writeMode == PartitionWriter.WriteMode.READ_ONLY)
+			return underlyingCache.removeWithWriter(key);
+
+		boolean removedRemotely = (writeMode == PartitionWriter.WriteMode.WRITE_THROUGH) && delegatedCache.removeWithWriter(key);
+		return removeWritten(key, removedRemotely);
+	}
+
+	@Override
+	public Element removeAndReturnElement(Object key) throws IllegalStateException {
+		init();
+		PartitionWriter.WriteMode writeMode = partitionWriter.getWriteMode();
+		if(writeMode == PartitionWriter.WriteMode.READ_ONLY)
+			return super.removeAndReturnElement(key);
+
+		Element previous;
+		if(writeMode == PartitionWriter.WriteMode.WRITE_THROUGH) {
+			if(delegatedCache instanceof InternalEhcache) {
+				previous = ((InternalEhcache)delegatedCache).removeAndReturnElement(key);
+			} else {
+				previous = delegatedCache.get(key);
+				delegatedCache.remove(key);
+			}
+		} else {
+			previous = partitionWriter.getPendingElement(key);
+		}
+		partitionWriter.recordWrite(key);
+		Element removedLocally = super.removeAndReturnElement(key);
+		if(writeMode == PartitionWriter.WriteMode.WRITE_BEHIND)
+			partitionWriter.remove(key);
+		return (null != previous) ? projected(previous) : removedLocally;
+	}
+
+	/*
+	 * A conditional remove: applied to the delegated cache first, as for the other conditional writes
+	 */
+	@Override
+	public boolean removeElement(Element element) throws NullPointerException {
+		init();
+		if(partitionWriter.getWriteMode() == PartitionWriter.WriteMode.READ_ONLY)
+			return underlyingCache.removeElement(element);
+
+		prepareConditionalWrite(element.getObjectKey());
+		boolean removed = delegatedCache.removeElement(element);
+		if(removed) {
+			partitionWriter.recordWrite(element.getObjectKey());
+			underlyingCache.remove(element.getObjectKey());
+		}
+		return removed;
+	}
+
+	/*
+	 * Once the remove reached the delegated cache in write-through mode: stamps it, removes the local copy, and queues it in write-behind mode
+	 */
+	private boolean removeWritten(Object key, boolean removedRemotely) {
+		partitionWriter.recordWrite(key);
+		boolean removedLocally = underlyingCache.remove(key);
+		if(partitionWriter.isWriteBehind())
+			partitionWriter.remove(key);
+		return removedRemotely || removedLocally;
+	}
+
+	@Override
+	public void removeAll(Collection<?> keys) throws IllegalStateException {
+		init();
+		PartitionWriter.WriteMode writeMode = partitionWriter.getWriteMode();
+		if(writeMode == PartitionWriter.WriteMode.WRITE_THROUGH)
+			delegatedCache.removeAll(keys);
+
+		if(writeMode != PartitionWriter.WriteMode.READ_ONLY) {
+			for(Object key : keys) {
+				partitionWriter.recordWrite(key);
+			}
+		}
+		underlyingCache.removeAll(keys);
+		if(writeMode == PartitionWriter.WriteMode.WRITE_BEHIND) {
+			for(Object key : keys) {
+				partitionWriter.remove(key);
+			}
+		}
+	}
+
+	@Override
+	public void removeAll(Collection<?> keys, boolean doNotNotifyCacheReplicators) throws IllegalStateException {
+		removeAll(keys);
+	}
+
+	/*
+	 * Removes the entries of this decorator: the keys of the local tier (and the pending write-behind writes),
+	 * not the whole delegated cache, whose other partitions belong to other decorators
+	 */
+	@Override
+	public void removeAll() throws IllegalStateException, CacheException {
+		init();
+		if(partitionWriter.getWriteMode() == PartitionWriter.WriteMode.READ_ONLY) {
+			underlyingCache.removeAll();
+			return;
+		}
+
+		Set<Object> keys = new HashSet<Object>(underlyingCache.getKeys());
+		if(partitionWriter.isWriteBehind())
+			keys.addAll(partitionWriter.getPendingKeys());
+		removeAll(keys);
+	}
+
+	@Override
+	public void removeAll(boolean doNotNotifyCacheReplicators) throws IllegalStateException, CacheException {
+		removeAll();
+	}
+
+	@Override
+	public final void registerCacheLoader(CacheLoader cacheLoader) {
 		throw new UnsupportedOperationException("Cache is read-only...operation not supported");
 	}
 
@@ -1,5 +1,6 @@
 package org.ehcache.decorators;
 
+import java.io.Serializable;
 import java.util.Properties;
 
 import net.sf.ehcache.Element;
@@ -17,17 +18,94 @@ public class CachePartitionExtractor implements AttributeExtractor {
 
 	private static final String PARTITIONTYPENAME = "partitionType";
 	private static final String PARTITIONCOUNTNAME = "partitionCount";
+	private static final String PARTITIONHASHSEEDNAME = "partitionHashSeed";
+	private static final String SPLITPOINTSNAME = "splitPoints";
+	private static final String SUBPARTITIONCOUNTNAME = "subPartitionCount";
+	public static final String SUBPARTITIONATTRIBUTENAME = "subPartitionId";
 	private static final String KEY = "key";
 	private static final String VALUE = "value";
+	private static final String KEY_HASH = "key_hash";
+	private static final String RANGE = "range";
+	private static final long PARTITIONHASHSEEDDEFAULT = 0x5bd1e995L;
+	private static final int MAXCACHEDPARTITIONIDS = 65536;
+	//sub-partitions are hashed with another seed than KEY_HASH partitions, so that every partition spreads over all its sub-partitions
+	private static final long SUBPARTITIONSEEDSALT = 0x9e3779b97f4a7c15L;
 
 	private final PartitionType type;
 	private final int partitionTotal;
+	private final long hashSeed;
+	private final int subPartitionTotal;
+
+	//decided once, so that attributeFor does not branch on the type nor allocate on every indexed put
+	private final PartitionStrategy strategy;
+	private final Integer[] partitionIds;
+	//the out of range partitions come back on every put of the same keys: only the first one is logged as an error
+	private transient volatile boolean outOfRangeLogged = false;
 
 	/**
-	 * The various types of the start of the expression
+	 * The various types of the start of the expression.
+	 * KEY_HASH partitions any key by hash, RANGE partitions ordered keys by the splitPoints, rather than through CachePartitionable.
 	 */
 	private enum PartitionType {
-		VALUE, KEY;
+		VALUE, KEY, KEY_HASH, RANGE;
+	}
+
+	/**
+	 * How the partition of an element is computed, for a given partition type
+	 */
+	private interface PartitionStrategy extends Serializable {
+		/*
+		 * @return the partition of the element, or -1 if it has none
+		 */
+		int partitionOf(Element el);
+	}
+
+	private static final class PartitionableStrategy implements PartitionStrategy {
+		private static final long serialVersionUID = 1L;
+
+		private final boolean onValue;
+		private final int partitionTotal;
+
+		private PartitionableStrategy(boolean onValue, int partitionTotal) {
+			this.onValue = onValue;
+			this.partitionTotal = partitionTotal;
+		}
+
+		public int partitionOf(Element el) {
+			Object objToPartitionOn = onValue ? el.getObjectValue() : el.getObjectKey();
+			return (objToPartitionOn instanceof CachePartitionable) ? ((CachePartitionable)objToPartitionOn).getPartition(partitionTotal) : -1;
+		}
+	}
+
+	private static final class KeyHashStrategy implements PartitionStrategy {
+		private static final long serialVersionUID = 1L;
+
+		private final int partitionTotal;
+		private final long hashSeed;
+
+		private KeyHashStrategy(int partitionTotal, long hashSeed) {
+			this.partitionTotal = partitionTotal;
+			this.hashSeed = hashSeed;
+		}
+
+		public int partitionOf(Element el) {
+			Object key = el.getObjectKey();
+			return (null == key) ? -1 : PartitionHashing.partitionOf(key, partitionTotal, hashSeed);
+		}
+	}
+
+	private static final class RangeStrategy implements PartitionStrategy {
+		private static final long serialVersionUID = 1L;
+
+		private final RangePartitioner rangePartitioner;
+
+		private RangeStrategy(RangePartitioner rangePartitioner) {
+			this.rangePartitioner = rangePartitioner;
+		}
+
+		public int partitionOf(Element el) {
+			return rangePartitioner.partitionOf(el.getObjectKey());
+		}
 	}
 
 	/**
@@ -41,7 +119,7 @@ public class CachePartitionExtractor implements AttributeExtractor {
 
 		String partitionType = props.getProperty(PARTITIONTYPENAME);
 
-		if ( !props.containsKey(PARTITIONCOUNTNAME) )
+		if ( !props.containsKey(PARTITIONCOUNTNAME) && !RANGE.equalsIgnoreCase(("" + partitionType).trim()) )
 			log.warn("Property '" + PARTITIONCOUNTNAME + "' is not specified - will default to 1");
 		String numPartitions = props.getProperty(PARTITIONCOUNTNAME, "1");
 
@@ -53,57 +131,138 @@ public class CachePartitionExtractor implements AttributeExtractor {
 			partitionType = partitionType.trim();
 			if (partitionType.equalsIgnoreCase(KEY)) {
 				type = PartitionType.KEY;
+			} else if (partitionType.equalsIgnoreCase(KEY_HASH)) {
+				type = PartitionType.KEY_HASH;
+			} else if (partitionType.equalsIgnoreCase(RANGE)) {
+				type = PartitionType.RANGE;
 			} else if (partitionType.equalsIgnoreCase(VALUE)) {
 				type = PartitionType.VALUE;
 			} else {
-				log.warn("Value for property '" + PARTITIONTYPENAME + "' must start with either, \"" + KEY + "\" or \"" + VALUE + "\" - not valid: " + partitionType);
+				log.warn("Value for property '" + PARTITIONTYPENAME + "' must be either \"" + KEY + "\", \"" + KEY_HASH + "\", \"" + RANGE + "\" or \"" + VALUE + "\" - not valid: " + partitionType);
 				type = PartitionType.KEY;
 			}
 		} else {
 			type = PartitionType.KEY;
 		}
 
-		partitionTotal = Integer.parseInt(props.getProperty(PARTITIONCOUNTNAME, "1"));
+		RangePartitioner rangePartitioner = null;
+		if(type == PartitionType.RANGE) {
+			//the split points decide the number of partitions
+			rangePartitioner = new RangePartitioner(props.getProperty(SPLITPOINTSNAME));
+			partitionTotal = rangePartitioner.getPartitionCount();
+			if(props.containsKey(PARTITIONCOUNTNAME) && !numPartitions.trim().equals(String.valueOf(partitionTotal)))
+				log.warn(String.format("Property '%s' is %s but there are %d split points - using %d partitions", PARTITIONCOUNTNAME, numPartitions, partitionTotal - 1, partitionTotal));
+		} else {
+			partitionTotal = Integer.parseInt(props.getProperty(PARTITIONCOUNTNAME, "1"));
+		}
+
+		//all the nodes must use the same seed, otherwise they would not agree on the partitions
+		hashSeed = PropertyUtils.getLongProperty(props, PARTITIONHASHSEEDNAME, PARTITIONHASHSEEDDEFAULT, Long.MIN_VALUE);
+
+		//only used when the extractor is configured on the subPartitionId search attribute
+		subPartitionTotal = PropertyUtils.getIntProperty(props, SUBPARTITIONCOUNTNAME, 1, 1);
 
 		if(log.isDebugEnabled()){
-			log.debug(String.format("Parsed Values: %s=%s / %s=%d", PARTITIONTYPENAME, type.toString(), PARTITIONCOUNTNAME, partitionTotal));
+			log.debug(String.format("Parsed Values: %s=%s / %s=%d / %s=%d", PARTITIONTYPENAME, type.toString(), PARTITIONCOUNTNAME, partitionTotal, SUBPARTITIONCOUNTNAME, subPartitionTotal));
 		}
+
+		switch (type) {
+		case KEY_HASH:
+			strategy = new KeyHashStrategy(partitionTotal, hashSeed);
+			break;
+		case RANGE:
+			strategy = new RangeStrategy(rangePartitioner);
+			break;
+		default:
+			strategy = new PartitionableStrategy(type == PartitionType.VALUE, partitionTotal);
+			break;
+		}
+
+		partitionIds = new Integer[Math.max(0, Math.min(Math.max(partitionTotal, subPartitionTotal), MAXCACHEDPARTITIONIDS))];
+		for(int i = 0; i < partitionIds.length; i++) {
+			partitionIds[i] = Integer.valueOf(i);
+		}
+	}
+
+	public String getPartitionType() {
+		return type.name();
+	}
+
+	public int getPartitionCount() {
+		return partitionTotal;
+	}
+
+	public long getPartitionHashSeed() {
+		return hashSeed;
+	}
+
+	public int getSubPartitionCount() {
+		return subPartitionTotal;
 	}
 
 	@Override
 	public Object attributeFor(Element el, String attrName)
 			throws AttributeExtractorException {
 
-		Object objToPartitionOn = null;
-		Integer partitionId = null;
-		if(log.isDebugEnabled()){
-			log.debug(String.format("%s=%s / %s=%d", PARTITIONTYPENAME, type.toString(), PARTITIONCOUNTNAME, partitionTotal));
+		if(SUBPARTITIONATTRIBUTENAME.equals(attrName))
+			return subPartitionFor(el);
+
+		Object key = el.getObjectKey();
+		int partitionId;
+		try{
+			//partition computed when the entry was written: no need to look at the value
+			partitionId = (key instanceof PartitionedKey) ? ((PartitionedKey)key).getPartition() : strategy.partitionOf(el);
+		} catch (Exception exc){
+			log.error("An error occurred during the partition calculation of key " + key + "...fail silently but will not partition...", exc);
+			return null;
 		}
 
-		if(type == PartitionType.KEY){
-			objToPartitionOn = el.getObjectKey();
-		} else if (type == PartitionType.VALUE){
-			objToPartitionOn = el.getObjectValue();
+		if(partitionId < 0){
+			if(log.isDebugEnabled())
+				log.debug("No partition for key " + key + " with " + PARTITIONTYPENAME + "=" + type + " - make sure the key or value implements CachePartitionable (KEY / VALUE), or is comparable with the split points (RANGE)");
+			return null;
 		}
 
-		if(null != objToPartitionOn){
-			if (objToPartitionOn instanceof CachePartitionable) {
-				CachePartitionable objToPartition = (CachePartitionable) objToPartitionOn;
-				try{
-					partitionId = objToPartition.getPartition(partitionTotal);
-				} catch (Exception exc){
-					log.error("An error occurred during the partition calculation...fail silently but will not partition...");
-				}
-			} else {
-				if(log.isDebugEnabled()){
-					log.debug("The object to partition on is not of type CachePartitionable. Make sure it implements that interface");
-				}
+		if(partitionId >= partitionTotal){
+			//a partition computed when the entry was written, with another partition count, is not indexed
+			if(key instanceof PartitionedKey) {
+				logOutOfRange(partitionId, key, "will not partition");
+				return null;
 			}
+			//a partition returned by CachePartitionable is indexed as is: only a decorator that owns it refreshes it
+			logOutOfRange(partitionId, key, "partitioning it anyway");
 		}
 
-		if(log.isDebugEnabled())
-			log.debug(String.format("%s=%s", "Partition Id", (null != partitionId)?""+partitionId:"null"));
+		return (partitionId < partitionIds.length) ? partitionIds[partitionId] : Integer.valueOf(partitionId);
+	}
 
-		return partitionId;
+	private void logOutOfRange(int partitionId, Object key, String outcome) {
+		String message = "Partition " + partitionId + " of key " + key + " is out of range (" + PARTITIONCOUNTNAME + "=" + partitionTotal + ")..." + outcome + "...";
+		if(!outOfRangeLogged) {
+			outOfRangeLogged = true;
+			log.error(message + " (the next ones are logged at debug level)");
+		} else if(log.isDebugEnabled()) {
+			log.debug(message);
+		}
+	}
+
+	/*
+	 * The sub-partition only depends on the key (whatever the partition type), so that the refresh of a partition can be split in shards
+	 */
+	private Object subPartitionFor(Element el) {
+		Object key = el.getObjectKey();
+		if(key instanceof PartitionedKey)
+			key = ((PartitionedKey)key).getKey();
+		if(null == key)
+			return null;
+
+		int subPartitionId;
+		try{
+			subPartitionId = (subPartitionTotal == 1) ? 0 : PartitionHashing.partitionOf(key, subPartitionTotal, hashSeed ^ SUBPARTITIONSEEDSALT);
+		} catch (Exception exc){
+			log.error("An error occurred during the sub-partition calculation of key " + key + "...fail silently but will not sub-partition...", exc);
+			return null;
+		}
+		return (subPartitionId < partitionIds.length) ? partitionIds[subPartitionId] : Integer.valueOf(subPartitionId);
 	}
 }
@@ -0,0 +1,242 @@
+package org.ehcache.decorators;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Faults entries from the delegated cache, optionally hedging the call:
+ * if the delegated cache has not answered within a fraction of its recent p95 latency, a second attempt is fired and the first answer wins.
+ * The latency is tracked per delegated cache, so that a slow delegate does not set the hedge delay of the others.
+ * The loser is cancelled without being interrupted (as are the calls abandoned by TimeBudgets), so that the clustered client is not interrupted mid-operation.
+ * There is no point hedging with the local tier: the fetch only happens after a local miss.
+ * Extra load is bounded by a token budget: every eligible request earns hedgingMaxRatio of a token, every hedge spends one.
+ */
+public class HedgedFetcher {
+	private static final Logger log = LoggerFactory.getLogger(HedgedFetcher.class);
+
+	public static final String PROPNAME_HEDGINGENABLED = "hedgingEnabled";
+	public static final String PROPNAME_HEDGINGDELAYRATIO = "hedgingDelayRatio";
+	public static final String PROPNAME_HEDGINGMAXRATIO = "hedgingMaxRatio";
+	public static final String PROPNAME_HEDGINGMINDELAY = "hedgingMinDelayInMilliSeconds";
+	public static final String PROPNAME_HEDGINGPOOLSIZE = "hedgingPoolSize";
+	private static final double HEDGINGDELAYRATIODEFAULT = 1.0D;
+	private static final double HEDGINGMAXRATIODEFAULT = 0.05D;
+	private static final long HEDGINGMINDELAYDEFAULT = 1L;
+	public static final int HEDGINGPOOLSIZEDEFAULT = 10;
+
+	//no hedging until the latency window has enough samples to give a meaningful p95
+	private static final int MIN_SAMPLES = 20;
+	private static final int LATENCY_WINDOW = 1024;
+
+	//tokens are kept in thousandths, and at most MAX_TOKENS hedges can be fired in a burst
+	private static final long TOKEN_UNIT = 1000L;
+	private static final long MAX_TOKENS = 10L * TOKEN_UNIT;
+
+	private final boolean enabledByDefault;
+	private final double delayRatio;
+	private final long minDelayNanos;
+	private final long tokensPerRequest;
+	private final ExecutorService hedgingService;
+	private final ConcurrentMap<Ehcache, LatencyTracker> latencyTrackers = new ConcurrentHashMap<Ehcache, LatencyTracker>();
+
+	private final AtomicLong budgetTokens = new AtomicLong(0L);
+	private final AtomicLong eligibleCount = new AtomicLong(0L);
+	private final AtomicLong hedgedCount = new AtomicLong(0L);
+	private final AtomicLong hedgeWinCount = new AtomicLong(0L);
+
+	public HedgedFetcher(Properties properties, ExecutorService hedgingService) {
+		this.hedgingService = hedgingService;
+		this.enabledByDefault = PropertyUtils.getBooleanProperty(properties, PROPNAME_HEDGINGENABLED, false);
+		this.delayRatio = PropertyUtils.getDoubleProperty(properties, PROPNAME_HEDGINGDELAYRATIO, HEDGINGDELAYRATIODEFAULT, 0.01D, 100.0D);
+		this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(PropertyUtils.getLongProperty(properties, PROPNAME_HEDGINGMINDELAY, HEDGINGMINDELAYDEFAULT, 0L));
+
+		double maxRatio = PropertyUtils.getDoubleProperty(properties, PROPNAME_HEDGINGMAXRATIO, HEDGINGMAXRATIODEFAULT, 0.0D, 1.0D);
+		this.tokensPerRequest = (long)(maxRatio * TOKEN_UNIT);
+	}
+
+	public boolean isEnabled() {
+		return enabledByDefault;
+	}
+
+	/*
+	 * Gets the key from the delegated cache, hedging the call if requested.
+	 * Latency is recorded in both cases so that the p95 is available when a caller opts in.
+	 */
+	public Element fetch(Ehcache delegate, Object key, boolean hedged) {
+		LatencyTracker latencyTracker = latencyTrackerOf(delegate);
+		if(!hedged) {
+			long start = System.nanoTime();
+			Element e = delegate.get(key);
+			latencyTracker.record(System.nanoTime() - start);
+			return e;
+		}
+
+		eligibleCount.incrementAndGet();
+		earnToken();
+
+		CompletionService<Element> completionService = new ExecutorCompletionService<Element>(hedgingService);
+		Future<Element> primary = completionService.submit(new TimedGet(delegate, key, latencyTracker));
+
+		long delayNanos = getHedgeDelayNanos(latencyTracker);
+		if(delayNanos < 0)
+			return waitFor(primary);
+
+		try {
+			Future<Element> first = completionService.poll(delayNanos, TimeUnit.NANOSECONDS);
+			if(null != first)
+				return waitFor(first);
+
+			if(!spendToken())
+				return waitFor(primary);
+
+			hedgedCount.incrementAndGet();
+			Future<Element> hedge = completionService.submit(new TimedGet(delegate, key, latencyTracker));
+			Future<Element> winner = completionService.take();
+			Future<Element> loser = (winner == primary) ? hedge : primary;
+			try {
+				Element e = winner.get();
+				if(winner == hedge)
+					hedgeWinCount.incrementAndGet();
+				loser.cancel(false);
+				return e;
+			} catch (ExecutionException ee) {
+				//the first answer was a failure...give the other attempt a chance
+				log.debug("Hedged attempt failed, waiting for the other one", ee.getCause());
+				Element e = waitFor(loser);
+				if(loser == hedge)
+					hedgeWinCount.incrementAndGet();
+				return e;
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new CacheException("Interrupted while getting key " + key + " from delegated cache", ie);
+		}
+	}
+
+	private Element waitFor(Future<Element> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new CacheException("Interrupted while getting the data from delegated cache", ie);
+		} catch (ExecutionException ee) {
+			if(ee.getCause() instanceof RuntimeException)
+				throw (RuntimeException)ee.getCause();
+			throw new CacheException(ee.getCause());
+		}
+	}
+
+	private LatencyTracker latencyTrackerOf(Ehcache delegate) {
+		LatencyTracker latencyTracker = latencyTrackers.get(delegate);
+		if(null == latencyTracker) {
+			LatencyTracker created = new LatencyTracker(LATENCY_WINDOW, 0.95D);
+			latencyTracker = latencyTrackers.putIfAbsent(delegate, created);
+			if(null == latencyTracker)
+				latencyTracker = created;
+		}
+		return latencyTracker;
+	}
+
+	/*
+	 * @return the delay before hedging a call to the delegate of that latency, or -1 if not enough latency samples were recorded yet
+	 */
+	private long getHedgeDelayNanos(LatencyTracker latencyTracker) {
+		if(latencyTracker.getSampleCount() < MIN_SAMPLES)
+			return -1L;
+
+		return Math.max(minDelayNanos, (long)(latencyTracker.getQuantileNanos() * delayRatio));
+	}
+
+	private void earnToken() {
+		long current;
+		do {
+			current = budgetTokens.get();
+			if(current >= MAX_TOKENS)
+				return;
+		} while(!budgetTokens.compareAndSet(current, Math.min(MAX_TOKENS, current + tokensPerRequest)));
+	}
+
+	private boolean spendToken() {
+		long current;
+		do {
+			current = budgetTokens.get();
+			if(current < TOKEN_UNIT)
+				return false;
+		} while(!budgetTokens.compareAndSet(current, current - TOKEN_UNIT));
+		return true;
+	}
+
+	/*
+	 * @return the recent p95 latency of that delegate, or -1 if it was never called
+	 */
+	public long getLatencyP95Nanos(Ehcache delegate) {
+		LatencyTracker latencyTracker = latencyTrackers.get(delegate);
+		return (null != latencyTracker) ? latencyTracker.getQuantileNanos() : -1L;
+	}
+
+	public long getEligibleRequestCount() {
+		return eligibleCount.get();
+	}
+
+	public long getHedgedRequestCount() {
+		return hedgedCount.get();
+	}
+
+	/*
+	 * @return how many hedges answered before the original call
+	 */
+	public long getHedgeWinCount() {
+		return hedgeWinCount.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder p95 = new StringBuilder();
+		for(Map.Entry<Ehcache, LatencyTracker> latencyTracker : latencyTrackers.entrySet()) {
+			if(p95.length() > 0)
+				p95.append(", ");
+			p95.append(String.format("%s=%d us", latencyTracker.getKey().getName(), TimeUnit.NANOSECONDS.toMicros(latencyTracker.getValue().getQuantileNanos())));
+		}
+		return String.format("Hedging [eligible=%d, hedged=%d, hedgeWins=%d, p95={%s}]",
+				getEligibleRequestCount(), getHedgedRequestCount(), getHedgeWinCount(), p95);
+	}
+
+	/*
+	 * Gets the key from the delegated cache and records the call latency
+	 */
+	private static class TimedGet implements Callable<Element> {
+		private final Ehcache delegate;
+		private final Object key;
+		private final LatencyTracker latencyTracker;
+
+		public TimedGet(Ehcache delegate, Object key, LatencyTracker latencyTracker) {
+			this.delegate = delegate;
+			this.key = key;
+			this.latencyTracker = latencyTracker;
+		}
+
+		public Element call() {
+			long start = System.nanoTime();
+			Element e = delegate.get(key);
+			latencyTracker.record(System.nanoTime() - start);
+			return e;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package org.ehcache.decorators;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Keeps a sliding window of the most recent latency samples (in nanoseconds) and derives a quantile from it.
+ * The quantile is only recomputed once enough new samples have been recorded, so reading it is cheap.
+ */
+public class LatencyTracker {
+	private final AtomicLongArray samples;
+	private final AtomicLong sampleCounter = new AtomicLong();
+	private final double quantile;
+	private final int recomputeEvery;
+
+	private volatile long cachedQuantileNanos = -1L;
+	private volatile long cachedAtCount = 0L;
+
+	public LatencyTracker(int windowSize, double quantile) {
+		if(windowSize < 1)
+			throw new IllegalArgumentException("Window size should be greater than 0");
+		if(quantile <= 0.0D || quantile > 1.0D)
+			throw new IllegalArgumentException("Quantile should be between 0 (excluded) and 1");
+
+		this.samples = new AtomicLongArray(windowSize);
+		this.quantile = quantile;
+		this.recomputeEvery = Math.max(1, windowSize / 16);
+	}
+
+	public void record(long latencyNanos) {
+		long index = sampleCounter.getAndIncrement();
+		samples.set((int)(index % samples.length()), latencyNanos);
+	}
+
+	public long getSampleCount() {
+		return sampleCounter.get();
+	}
+
+	/*
+	 * @return the configured quantile of the samples in the window, or -1 if nothing was recorded yet
+	 */
+	public long getQuantileNanos() {
+		long count = sampleCounter.get();
+		if(count == 0)
+			return -1L;
+
+		if(cachedQuantileNanos < 0 || count - cachedAtCount >= recomputeEvery) {
+			int size = (int)Math.min(count, samples.length());
+			long[] copy = new long[size];
+			for(int i = 0; i < size; i++) {
+				copy[i] = samples.get(i);
+			}
+			Arrays.sort(copy);
+			cachedQuantileNanos = copy[Math.max(0, Math.min(size - 1, (int)Math.ceil(quantile * size) - 1))];
+			cachedAtCount = count;
+		}
+		return cachedQuantileNanos;
+	}
+}
@@ -0,0 +1,170 @@
+package org.ehcache.decorators;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.search.Attribute;
+import net.sf.ehcache.search.expression.Criteria;
+
+/*
+ * The partitions refreshed by a partition decorator, parsed from the partitionId property: a single id ("4"),
+ * a list ("0;4;8", or "0,4,8" if the decorator uses another propertySeparator than ',') and / or ranges ("0-3").
+ * The partitions can also be assigned at runtime by the OwnershipManager.
+ * Also keeps the number of entries found in each partition by the last refresh, and when it happened.
+ */
+public class OwnedPartitions {
+	private final int[] partitionIds;
+	private final AtomicLongArray entryCounts;
+	private final AtomicLongArray lastRefreshTimes;
+
+	public OwnedPartitions(String partitionIdValue) throws CacheException {
+		if(null == partitionIdValue || partitionIdValue.trim().length() == 0)
+			throw new CacheException("No partition id specified");
+
+		TreeSet<Integer> ids = new TreeSet<Integer>();
+		for(String token : partitionIdValue.split("[,;]")) {
+			token = token.trim();
+			if(token.length() == 0)
+				continue;
+
+			try {
+				int rangeSeparator = token.indexOf('-', 1);
+				if(rangeSeparator > 0) {
+					int from = Integer.parseInt(token.substring(0, rangeSeparator).trim());
+					int to = Integer.parseInt(token.substring(rangeSeparator + 1).trim());
+					if(from > to)
+						throw new CacheException("Partition range " + token + " is empty");
+					for(int id = from; id <= to; id++) {
+						ids.add(id);
+					}
+				} else {
+					ids.add(Integer.parseInt(token));
+				}
+			} catch (NumberFormatException nfe) {
+				throw new CacheException("Partition id " + token + " is not valid in " + partitionIdValue);
+			}
+		}
+		if(ids.isEmpty() || ids.first().intValue() < 0)
+			throw new CacheException("Partition ids should be 0 or more: " + partitionIdValue);
+
+		this.partitionIds = new int[ids.size()];
+		int i = 0;
+		for(Integer id : ids) {
+			partitionIds[i++] = id.intValue();
+		}
+		this.entryCounts = new AtomicLongArray(partitionIds.length);
+		this.lastRefreshTimes = new AtomicLongArray(partitionIds.length);
+	}
+
+	/*
+	 * Partitions assigned at runtime (possibly none), keeping the bookkeeping of the partitions that were already owned
+	 */
+	public OwnedPartitions(int[] partitionIds, OwnedPartitions previous) {
+		this.partitionIds = partitionIds.clone();
+		Arrays.sort(this.partitionIds);
+		this.entryCounts = new AtomicLongArray(this.partitionIds.length);
+		this.lastRefreshTimes = new AtomicLongArray(this.partitionIds.length);
+		if(null != previous) {
+			for(int i = 0; i < this.partitionIds.length; i++) {
+				int previousIndex = Arrays.binarySearch(previous.partitionIds, this.partitionIds[i]);
+				if(previousIndex >= 0) {
+					entryCounts.set(i, previous.entryCounts.get(previousIndex));
+					lastRefreshTimes.set(i, previous.lastRefreshTimes.get(previousIndex));
+				}
+			}
+		}
+	}
+
+	public boolean contains(int partitionId) {
+		return Arrays.binarySearch(partitionIds, partitionId) >= 0;
+	}
+
+	public int[] getPartitionIds() {
+		return partitionIds.clone();
+	}
+
+	public int size() {
+		return partitionIds.length;
+	}
+
+	public boolean isEmpty() {
+		return partitionIds.length == 0;
+	}
+
+	/*
+	 * @return a criteria matching all the owned partitions: a between when the ids are contiguous, an in otherwise
+	 */
+	public Criteria toCriteria(Attribute<Integer> partitionAttribute) {
+		int first = partitionIds[0];
+		int last = partitionIds[partitionIds.length - 1];
+		if(partitionIds.length == 1)
+			return partitionAttribute.eq(first);
+		if(last - first + 1 == partitionIds.length)
+			return partitionAttribute.between(first, last);
+
+		List<Integer> ids = new ArrayList<Integer>(partitionIds.length);
+		for(int id : partitionIds) {
+			ids.add(id);
+		}
+		return partitionAttribute.in(ids);
+	}
+
+	/*
+	 * Records the outcome of a refresh of some partitions: the number of entries found per partition (absent means none).
+	 * The partitions that are not owned anymore are ignored.
+	 */
+	public void recordRefresh(int[] refreshedPartitions, Map<Integer, Integer> countsPerPartition, long refreshTime) {
+		for(int refreshedPartition : refreshedPartitions) {
+			int index = Arrays.binarySearch(partitionIds, refreshedPartition);
+			if(index < 0)
+				continue;
+
+			Integer count = countsPerPartition.get(refreshedPartition);
+			entryCounts.set(index, (null == count) ? 0L : count.longValue());
+			lastRefreshTimes.set(index, refreshTime);
+		}
+	}
+
+	/*
+	 * @return the number of entries found in that partition by the last refresh, or -1 if it is not owned
+	 */
+	public long getEntryCount(int partitionId) {
+		int index = Arrays.binarySearch(partitionIds, partitionId);
+		return (index < 0) ? -1L : entryCounts.get(index);
+	}
+
+	/*
+	 * @return the number of entries found in all the owned partitions by their last refresh
+	 */
+	public long getTotalEntryCount() {
+		long total = 0;
+		for(int i = 0; i < entryCounts.length(); i++) {
+			total += entryCounts.get(i);
+		}
+		return total;
+	}
+
+	/*
+	 * @return when that partition was last refreshed (0 if never), or -1 if it is not owned
+	 */
+	public long getLastRefreshTime(int partitionId) {
+		int index = Arrays.binarySearch(partitionIds, partitionId);
+		return (index < 0) ? -1L : lastRefreshTimes.get(index);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("OwnedPartitions [");
+		for(int i = 0; i < partitionIds.length; i++) {
+			if(i > 0)
+				sb.append(", ");
+			sb.append(String.format("%d: %d entries refreshed at %d", partitionIds[i], entryCounts.get(i), lastRefreshTimes.get(i)));
+		}
+		return sb.append("]").toString();
+	}
+}
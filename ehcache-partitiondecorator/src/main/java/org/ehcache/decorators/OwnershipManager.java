@@ -0,0 +1,278 @@
+package org.ehcache.decorators;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Claims partitions for this node through leases kept in a small coordination cache (clustered in production),
+ * instead of the static partitionId property.
+ * Every node heartbeats in the coordination cache, and the partitions are spread over the live nodes with rendezvous hashing,
+ * so that a node joining or leaving only moves the partitions it gains or loses.
+ * A lease is taken with putIfAbsent, renewed and taken over from a dead node with replace, and released with removeElement,
+ * so two nodes never hold the same lease. Leases expire after leaseInMilliSeconds without renewal
+ * (which assumes the node clocks are reasonably in sync compared to the lease duration).
+ */
+public class OwnershipManager implements Runnable {
+	private static final Logger log = LoggerFactory.getLogger(OwnershipManager.class);
+
+	public static final String PROPNAME_OWNERSHIPCACHENAME = "ownershipCacheName";
+	public static final String PROPNAME_PARTITIONCOUNT = "partitionCount";
+	public static final String PROPNAME_LEASE = "leaseInMilliSeconds";
+	public static final String PROPNAME_NODEID = "nodeId";
+	private static final long LEASEDEFAULT = 10000L;
+
+	private static final String NODEKEYPREFIX = ":node:";
+	private static final String PARTITIONKEYPREFIX = ":partition:";
+
+	/**
+	 * Notified, on the ownership thread, when partitions are acquired or released
+	 */
+	public interface Listener {
+		void ownershipChanged(int[] ownedPartitions, Set<Integer> acquired, Set<Integer> released);
+	}
+
+	/**
+	 * Value of a heartbeat or of a partition lease
+	 */
+	private static final class Lease implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String nodeId;
+		private final long expiresAt;
+
+		private Lease(String nodeId, long expiresAt) {
+			this.nodeId = nodeId;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isExpired(long now) {
+			return expiresAt <= now;
+		}
+
+		@Override
+		public int hashCode() {
+			return nodeId.hashCode() * 31 + (int)(expiresAt ^ (expiresAt >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Lease))
+				return false;
+			Lease other = (Lease)obj;
+			return nodeId.equals(other.nodeId) && expiresAt == other.expiresAt;
+		}
+	}
+
+	private final Ehcache coordinationCache;
+	private final String keyPrefix;
+	private final String nodeId;
+	private final int partitionCount;
+	private final long leaseMillis;
+	private volatile Listener listener;
+
+	//only accessed from the ownership thread (and shutdown)
+	private final TreeSet<Integer> owned = new TreeSet<Integer>();
+	private volatile List<String> liveNodes = Collections.emptyList();
+
+	private final AtomicLong acquiredCount = new AtomicLong(0L);
+	private final AtomicLong releasedCount = new AtomicLong(0L);
+
+	public OwnershipManager(Ehcache coordinationCache, String scope, Properties properties) {
+		this.coordinationCache = coordinationCache;
+		this.keyPrefix = scope;
+		this.partitionCount = PropertyUtils.getIntProperty(properties, PROPNAME_PARTITIONCOUNT, 0, 0);
+		if(partitionCount < 1)
+			throw new CacheException("Property " + PROPNAME_PARTITIONCOUNT + " is required with " + PROPNAME_OWNERSHIPCACHENAME);
+		this.leaseMillis = PropertyUtils.getLongProperty(properties, PROPNAME_LEASE, LEASEDEFAULT, 1L);
+
+		String configuredNodeId = properties.getProperty(PROPNAME_NODEID);
+		this.nodeId = (null != configuredNodeId && configuredNodeId.trim().length() > 0) ? configuredNodeId.trim() : ManagementFactory.getRuntimeMXBean().getName();
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/*
+	 * Leases are renewed three times per lease duration
+	 */
+	public long getRenewIntervalMillis() {
+		return Math.max(1L, leaseMillis / 3);
+	}
+
+	/*
+	 * One ownership cycle: heartbeat, work out the partitions this node should own among the live nodes,
+	 * claim or renew them, and release the others.
+	 */
+	public synchronized void run() {
+		try {
+			long now = System.currentTimeMillis();
+			heartbeat(now);
+			List<String> nodes = findLiveNodes(now);
+			liveNodes = nodes;
+
+			TreeSet<Integer> acquired = new TreeSet<Integer>();
+			TreeSet<Integer> released = new TreeSet<Integer>();
+			for(int partition = 0; partition < partitionCount; partition++) {
+				boolean wanted = nodeId.equals(ownerOf(partition, nodes));
+				boolean held = wanted ? claim(partition, now) : false;
+				if(!wanted && owned.contains(partition))
+					release(partition);
+
+				if(held && owned.add(partition))
+					acquired.add(partition);
+				else if(!held && owned.remove(partition))
+					released.add(partition);
+			}
+
+			if(!acquired.isEmpty() || !released.isEmpty()) {
+				acquiredCount.addAndGet(acquired.size());
+				releasedCount.addAndGet(released.size());
+				log.info(String.format("Node %s now owns partitions %s (acquired %s, released %s, %d live nodes)", nodeId, owned, acquired, released, nodes.size()));
+				notifyListener(acquired, released);
+			}
+		} catch (RuntimeException re) {
+			//keep the current partitions: the leases will expire on their own if the coordination cache stays unreachable
+			log.warn("Could not update the partition leases in " + coordinationCache.getName(), re);
+		}
+	}
+
+	private void heartbeat(long now) {
+		coordinationCache.put(new Element(keyPrefix + NODEKEYPREFIX + nodeId, new Lease(nodeId, now + leaseMillis)));
+	}
+
+	private List<String> findLiveNodes(long now) {
+		List<String> nodes = new ArrayList<String>();
+		String nodeKeyPrefix = keyPrefix + NODEKEYPREFIX;
+		for(Object key : coordinationCache.getKeys()) {
+			if(!(key instanceof String) || !((String)key).startsWith(nodeKeyPrefix))
+				continue;
+
+			Element heartbeat = coordinationCache.getQuiet(key);
+			if(null == heartbeat)
+				continue;
+
+			Lease lease = (Lease)heartbeat.getObjectValue();
+			if(lease.isExpired(now))
+				coordinationCache.removeElement(heartbeat);
+			else
+				nodes.add(lease.nodeId);
+		}
+		Collections.sort(nodes);
+		return nodes;
+	}
+
+	/*
+	 * Rendezvous hashing: the partition goes to the live node with the highest weight for it
+	 */
+	private static String ownerOf(int partition, List<String> nodes) {
+		String owner = null;
+		long bestWeight = Long.MIN_VALUE;
+		for(String node : nodes) {
+			long weight = mix(((long)node.hashCode() << 32) | (partition & 0xffffffffL));
+			if(null == owner || weight > bestWeight) {
+				owner = node;
+				bestWeight = weight;
+			}
+		}
+		return owner;
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/*
+	 * @return true if this node holds the lease of the partition once done
+	 */
+	private boolean claim(int partition, long now) {
+		Object key = keyPrefix + PARTITIONKEYPREFIX + partition;
+		Element lease = new Element(key, new Lease(nodeId, now + leaseMillis));
+		Element current = coordinationCache.putIfAbsent(lease);
+		if(null == current)
+			return true;
+
+		Lease currentLease = (Lease)current.getObjectValue();
+		if(nodeId.equals(currentLease.nodeId) || currentLease.isExpired(now))
+			return coordinationCache.replace(current, lease);
+
+		//still held by the previous owner, which will release it on its next cycle (or let it expire)
+		return false;
+	}
+
+	private void release(int partition) {
+		Object key = keyPrefix + PARTITIONKEYPREFIX + partition;
+		Element current = coordinationCache.getQuiet(key);
+		if(null != current && nodeId.equals(((Lease)current.getObjectValue()).nodeId))
+			coordinationCache.removeElement(current);
+	}
+
+	private void notifyListener(Set<Integer> acquired, Set<Integer> released) {
+		Listener currentListener = listener;
+		if(null == currentListener)
+			return;
+
+		int[] ownedPartitions = new int[owned.size()];
+		int i = 0;
+		for(Integer partition : owned) {
+			ownedPartitions[i++] = partition.intValue();
+		}
+		currentListener.ownershipChanged(ownedPartitions, acquired, released);
+	}
+
+	/*
+	 * Hands the leases over straight away rather than letting them expire, and leaves the live nodes
+	 */
+	public synchronized void releaseAll() {
+		try {
+			for(Integer partition : owned) {
+				release(partition);
+			}
+			coordinationCache.remove(keyPrefix + NODEKEYPREFIX + nodeId);
+		} catch (RuntimeException re) {
+			log.warn("Could not release the partition leases in " + coordinationCache.getName(), re);
+		}
+		owned.clear();
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public List<String> getLiveNodes() {
+		return liveNodes;
+	}
+
+	public long getAcquiredCount() {
+		return acquiredCount.get();
+	}
+
+	public long getReleasedCount() {
+		return releasedCount.get();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("OwnershipManager [node=%s, owned=%s, liveNodes=%d, acquired=%d, released=%d]",
+				nodeId, owned, liveNodes.size(), getAcquiredCount(), getReleasedCount());
+	}
+}
@@ -0,0 +1,156 @@
+package org.ehcache.decorators;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/*
+ * Hash partitioning of arbitrary keys, used by the KEY_HASH partition type of CachePartitionExtractor.
+ * The key is hashed to 64 bits from a form that is stable across JVMs (the UTF-16 chars of a string, the value of a number,
+ * the serialized form of any other serializable key), then mapped to a partition with jump consistent hash
+ * (Lamping and Veach), so that going from n to n+1 partitions only moves 1/(n+1) of the keys.
+ * Strings, numbers and byte arrays are hashed without allocating; only the other serializable keys are serialized.
+ */
+public final class PartitionHashing {
+	private static final long M = 0xc6a4a7935bd1e995L;
+	private static final int R = 47;
+
+	private PartitionHashing() {
+	}
+
+	/*
+	 * @return the partition of the key, between 0 and partitionCount - 1
+	 */
+	public static int partitionOf(Object key, int partitionCount, long seed) {
+		return jumpConsistentHash(hash64(key, seed), partitionCount);
+	}
+
+	/*
+	 * Jump consistent hash: maps a 64-bit hash to a bucket between 0 and buckets - 1
+	 */
+	public static int jumpConsistentHash(long hash, int buckets) {
+		long b = -1;
+		long j = 0;
+		while (j < buckets) {
+			b = j;
+			hash = hash * 2862933555777941757L + 1;
+			j = (long)((b + 1) * ((double)(1L << 31) / (double)((hash >>> 33) + 1)));
+		}
+		return (int)b;
+	}
+
+	/*
+	 * Seeded 64-bit hash of the natural form of the key
+	 */
+	public static long hash64(Object key, long seed) {
+		if(key instanceof String)
+			return hash64((String)key, seed);
+		if(key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte)
+			return hash64(((Number)key).longValue(), seed);
+		if(key instanceof Character)
+			return hash64((long)((Character)key).charValue(), seed);
+		if(key instanceof byte[])
+			return hash64((byte[])key, seed);
+		if(key instanceof Serializable)
+			return hash64(serialize((Serializable)key), seed);
+
+		//no stable form: only consistent across nodes if the key class overrides hashCode() with a stable value
+		return hash64((long)key.hashCode(), seed);
+	}
+
+	/*
+	 * MurmurHash64A of a single long
+	 */
+	public static long hash64(long value, long seed) {
+		long h = seed ^ (8 * M);
+		long k = value * M;
+		k ^= k >>> R;
+		k *= M;
+		h ^= k;
+		h *= M;
+		return finalizeHash(h);
+	}
+
+	/*
+	 * MurmurHash64A of the chars of a string, read in place as little-endian UTF-16 (4 chars per 64-bit block)
+	 */
+	//the tail cases fall through, as in the reference implementation
+	@SuppressWarnings("fallthrough")
+	public static long hash64(String data, long seed) {
+		int length = data.length();
+		long h = seed ^ ((2L * length) * M);
+		int blocks = length / 4;
+		for(int i = 0; i < blocks; i++) {
+			int offset = i * 4;
+			long k = data.charAt(offset) | ((long)data.charAt(offset + 1) << 16) | ((long)data.charAt(offset + 2) << 32) | ((long)data.charAt(offset + 3) << 48);
+			k *= M;
+			k ^= k >>> R;
+			k *= M;
+			h ^= k;
+			h *= M;
+		}
+
+		int tail = blocks * 4;
+		switch (length - tail) {
+		case 3: h ^= (long)data.charAt(tail + 2) << 32;
+		case 2: h ^= (long)data.charAt(tail + 1) << 16;
+		case 1: h ^= data.charAt(tail);
+			h *= M;
+		}
+		return finalizeHash(h);
+	}
+
+	/*
+	 * MurmurHash64A of a byte array
+	 */
+	//the tail cases fall through, as in the reference implementation
+	@SuppressWarnings("fallthrough")
+	public static long hash64(byte[] data, long seed) {
+		int length = data.length;
+		long h = seed ^ (length * M);
+		int blocks = length / 8;
+		for(int i = 0; i < blocks; i++) {
+			int offset = i * 8;
+			long k = (data[offset] & 0xffL) | ((data[offset + 1] & 0xffL) << 8) | ((data[offset + 2] & 0xffL) << 16) | ((data[offset + 3] & 0xffL) << 24)
+					| ((data[offset + 4] & 0xffL) << 32) | ((data[offset + 5] & 0xffL) << 40) | ((data[offset + 6] & 0xffL) << 48) | ((data[offset + 7] & 0xffL) << 56);
+			k *= M;
+			k ^= k >>> R;
+			k *= M;
+			h ^= k;
+			h *= M;
+		}
+
+		int tail = blocks * 8;
+		switch (length - tail) {
+		case 7: h ^= (data[tail + 6] & 0xffL) << 48;
+		case 6: h ^= (data[tail + 5] & 0xffL) << 40;
+		case 5: h ^= (data[tail + 4] & 0xffL) << 32;
+		case 4: h ^= (data[tail + 3] & 0xffL) << 24;
+		case 3: h ^= (data[tail + 2] & 0xffL) << 16;
+		case 2: h ^= (data[tail + 1] & 0xffL) << 8;
+		case 1: h ^= (data[tail] & 0xffL);
+			h *= M;
+		}
+		return finalizeHash(h);
+	}
+
+	private static long finalizeHash(long h) {
+		h ^= h >>> R;
+		h *= M;
+		h ^= h >>> R;
+		return h;
+	}
+
+	private static byte[] serialize(Serializable key) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(key);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException ioe) {
+			throw new IllegalArgumentException("Could not serialize key " + key + " to hash it", ioe);
+		}
+	}
+}
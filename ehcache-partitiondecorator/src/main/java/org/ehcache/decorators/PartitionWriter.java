@@ -0,0 +1,334 @@
+package org.ehcache.decorators;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Writes to the delegated cache on behalf of the partition decorator.
+ * In write-behind mode, the writes are queued per key (a key written twice before a flush is only sent once) and flushed
+ * in putAll / removeAll batches of writeBehindBatchSize, at least every writeBehindMaxLagInMilliSeconds.
+ * When more than writeBehindMaxPendingEntries keys are pending, the writing thread flushes itself so the lag stays bounded.
+ * Every write made through the decorator is stamped (per stripe of keys), so that a refresh does not apply a value fetched before a write that happened since.
+ */
+public class PartitionWriter implements Runnable {
+	private static final Logger log = LoggerFactory.getLogger(PartitionWriter.class);
+
+	public static final String PROPNAME_WRITEMODE = "writeMode";
+	public static final String PROPNAME_WRITEBEHINDMAXLAG = "writeBehindMaxLagInMilliSeconds";
+	public static final String PROPNAME_WRITEBEHINDBATCHSIZE = "writeBehindBatchSize";
+	public static final String PROPNAME_WRITEBEHINDMAXPENDING = "writeBehindMaxPendingEntries";
+	private static final long WRITEBEHINDMAXLAGDEFAULT = 1000L;
+	private static final int WRITEBEHINDBATCHSIZEDEFAULT = 500;
+	private static final int WRITEBEHINDMAXPENDINGDEFAULT = 10000;
+
+	/**
+	 * How the writes made through the decorator reach the delegated cache
+	 */
+	public enum WriteMode {
+		READ_ONLY, WRITE_THROUGH, WRITE_BEHIND;
+	}
+
+	//marks a pending remove in the write-behind queue
+	private static final Object REMOVED = new Object();
+	//keys colliding on a stripe only cost a skipped refresh
+	private static final int WRITESTAMPSTRIPES = 4096;
+
+	private final WriteMode writeMode;
+	private final long maxLagMillis;
+	private final int batchSize;
+	private final int maxPending;
+	private final ExecutorService flushService;
+
+	private volatile Ehcache delegatedCache;
+
+	//writes not flushed yet, and writes being flushed (so that a refresh does not overwrite them with the older remote value)
+	private final Object pendingLock = new Object();
+	private Map<Object, Object> pending = new LinkedHashMap<Object, Object>();
+	private volatile Map<Object, Object> inFlight = new HashMap<Object, Object>();
+
+	//sequence of the writes, and the latest one per stripe of keys
+	private final AtomicLong writeSequence = new AtomicLong(0L);
+	private final AtomicLongArray writeStamps = new AtomicLongArray(WRITESTAMPSTRIPES);
+
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	private final AtomicLong writeCount = new AtomicLong(0L);
+	private final AtomicLong flushedCount = new AtomicLong(0L);
+	private final AtomicLong batchCount = new AtomicLong(0L);
+	private final AtomicLong failedFlushCount = new AtomicLong(0L);
+
+	public PartitionWriter(Properties properties, ExecutorService flushService) {
+		WriteMode parsedMode = WriteMode.READ_ONLY;
+		String modeValue = properties.getProperty(PROPNAME_WRITEMODE);
+		if(null != modeValue) {
+			try {
+				parsedMode = WriteMode.valueOf(modeValue.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				log.warn(String.format("%s value is not valid...reverting to default: %s", PROPNAME_WRITEMODE, WriteMode.READ_ONLY));
+			}
+		}
+		this.writeMode = parsedMode;
+		this.maxLagMillis = PropertyUtils.getLongProperty(properties, PROPNAME_WRITEBEHINDMAXLAG, WRITEBEHINDMAXLAGDEFAULT, 1L);
+		this.batchSize = PropertyUtils.getIntProperty(properties, PROPNAME_WRITEBEHINDBATCHSIZE, WRITEBEHINDBATCHSIZEDEFAULT, 1);
+		this.maxPending = PropertyUtils.getIntProperty(properties, PROPNAME_WRITEBEHINDMAXPENDING, WRITEBEHINDMAXPENDINGDEFAULT, 1);
+		this.flushService = flushService;
+	}
+
+	public void setDelegatedCache(Ehcache delegatedCache) {
+		this.delegatedCache = delegatedCache;
+	}
+
+	public WriteMode getWriteMode() {
+		return writeMode;
+	}
+
+	public boolean isWriteBehind() {
+		return writeMode == WriteMode.WRITE_BEHIND;
+	}
+
+	public long getMaxLagMillis() {
+		return maxLagMillis;
+	}
+
+	/*
+	 * Stamps a write of that key: called once the write reached the delegated cache (or was queued for it), before it is applied locally
+	 */
+	public void recordWrite(Object key) {
+		writeStamps.set(stripeOf(key), writeSequence.incrementAndGet());
+	}
+
+	/*
+	 * @return the stamp to take before fetching from the delegated cache, to check with isWrittenSince before applying what was fetched
+	 */
+	public long getWriteStamp() {
+		return writeSequence.get();
+	}
+
+	/*
+	 * @return true if that key (or a key of the same stripe) was written after the stamp was taken
+	 */
+	public boolean isWrittenSince(Object key, long writeStamp) {
+		return writeStamps.get(stripeOf(key)) > writeStamp;
+	}
+
+	private static int stripeOf(Object key) {
+		int hash = (null == key) ? 0 : key.hashCode();
+		return (hash ^ (hash >>> 16)) & (WRITESTAMPSTRIPES - 1);
+	}
+
+	public void put(Element element) {
+		enqueue(element.getObjectKey(), element);
+	}
+
+	public void putAll(Collection<Element> elements) {
+		for(Element element : elements) {
+			enqueue(element.getObjectKey(), element);
+		}
+	}
+
+	public void remove(Object key) {
+		enqueue(key, REMOVED);
+	}
+
+	private void enqueue(Object key, Object write) {
+		writeCount.incrementAndGet();
+		int size;
+		synchronized (pendingLock) {
+			//re-inserted so that the key is flushed in the order of its latest write
+			pending.remove(key);
+			pending.put(key, write);
+			size = pending.size();
+		}
+
+		if(size >= maxPending) {
+			//the flush does not keep up: slow the writers down rather than letting the lag grow
+			flush();
+		} else if(size >= batchSize && flushScheduled.compareAndSet(false, true)) {
+			try {
+				flushService.submit(this);
+			} catch (RejectedExecutionException ree) {
+				flushScheduled.set(false);
+			}
+		}
+	}
+
+	/*
+	 * @return true if a write of that key has not reached the delegated cache yet
+	 */
+	public boolean isPending(Object key) {
+		synchronized (pendingLock) {
+			if(pending.containsKey(key))
+				return true;
+		}
+		return inFlight.containsKey(key);
+	}
+
+	/*
+	 * @return the element of a write of that key that has not reached the delegated cache yet, or null if there is none (or if it is a remove)
+	 */
+	public Element getPendingElement(Object key) {
+		Object write;
+		synchronized (pendingLock) {
+			write = pending.get(key);
+		}
+		if(null == write)
+			write = inFlight.get(key);
+		return (write instanceof Element) ? (Element)write : null;
+	}
+
+	/*
+	 * @return the keys of the writes that have not reached the delegated cache yet
+	 */
+	public Set<Object> getPendingKeys() {
+		Set<Object> keys;
+		synchronized (pendingLock) {
+			keys = new HashSet<Object>(pending.keySet());
+		}
+		keys.addAll(inFlight.keySet());
+		return keys;
+	}
+
+	public int getPendingCount() {
+		synchronized (pendingLock) {
+			return pending.size();
+		}
+	}
+
+	/*
+	 * Scheduled flush
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		flushScheduled.set(false);
+		flush();
+	}
+
+	/*
+	 * Sends all the pending writes to the delegated cache, in batches.
+	 * Writes that fail are queued again, unless the key has been written since.
+	 */
+	public void flush() {
+		Ehcache delegate = delegatedCache;
+		if(null == delegate)
+			return;
+
+		flushLock.lock();
+		try {
+			Map<Object, Object> toFlush;
+			synchronized (pendingLock) {
+				if(pending.isEmpty())
+					return;
+				toFlush = pending;
+				inFlight = toFlush;
+				pending = new LinkedHashMap<Object, Object>();
+			}
+
+			List<Element> puts = new ArrayList<Element>(Math.min(batchSize, toFlush.size()));
+			List<Object> removes = new ArrayList<Object>();
+			for(Map.Entry<Object, Object> write : toFlush.entrySet()) {
+				if(write.getValue() == REMOVED) {
+					removes.add(write.getKey());
+					if(removes.size() >= batchSize)
+						removes = flushRemoves(delegate, removes);
+				} else {
+					puts.add((Element)write.getValue());
+					if(puts.size() >= batchSize)
+						puts = flushPuts(delegate, puts);
+				}
+			}
+			if(!puts.isEmpty())
+				flushPuts(delegate, puts);
+			if(!removes.isEmpty())
+				flushRemoves(delegate, removes);
+		} finally {
+			inFlight = new HashMap<Object, Object>();
+			flushLock.unlock();
+		}
+	}
+
+	private List<Element> flushPuts(Ehcache delegate, List<Element> puts) {
+		try {
+			delegate.putAll(puts);
+			//a refresh that fetched before the flush may have read the previous values
+			for(Element element : puts) {
+				recordWrite(element.getObjectKey());
+			}
+			flushedCount.addAndGet(puts.size());
+			batchCount.incrementAndGet();
+		} catch (RuntimeException re) {
+			failedFlushCount.incrementAndGet();
+			log.warn("Could not flush " + puts.size() + " writes to delegated cache " + delegate.getName() + " - will retry", re);
+			for(Element element : puts) {
+				requeue(element.getObjectKey(), element);
+			}
+		}
+		return new ArrayList<Element>(batchSize);
+	}
+
+	private List<Object> flushRemoves(Ehcache delegate, List<Object> removes) {
+		try {
+			delegate.removeAll(removes);
+			for(Object key : removes) {
+				recordWrite(key);
+			}
+			flushedCount.addAndGet(removes.size());
+			batchCount.incrementAndGet();
+		} catch (RuntimeException re) {
+			failedFlushCount.incrementAndGet();
+			log.warn("Could not flush " + removes.size() + " removes to delegated cache " + delegate.getName() + " - will retry", re);
+			for(Object key : removes) {
+				requeue(key, REMOVED);
+			}
+		}
+		return new ArrayList<Object>();
+	}
+
+	private void requeue(Object key, Object write) {
+		synchronized (pendingLock) {
+			if(!pending.containsKey(key))
+				pending.put(key, write);
+		}
+	}
+
+	public long getWriteCount() {
+		return writeCount.get();
+	}
+
+	public long getFlushedCount() {
+		return flushedCount.get();
+	}
+
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	public long getFailedFlushCount() {
+		return failedFlushCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("PartitionWriter [mode=%s, writes=%d, flushed=%d, batches=%d, failedFlushes=%d, pending=%d]",
+				writeMode, getWriteCount(), getFlushedCount(), getBatchCount(), getFailedFlushCount(), getPendingCount());
+	}
+}
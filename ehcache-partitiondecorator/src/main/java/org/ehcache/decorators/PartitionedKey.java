@@ -0,0 +1,67 @@
+package org.ehcache.decorators;
+
+import java.io.Serializable;
+
+/*
+ * Cache key carrying its partition, computed once when the entry is written.
+ * CachePartitionExtractor reads the partition straight from this key whatever the partition type,
+ * so indexing an entry never has to deserialize its value.
+ * The partition is part of the identity of the key (as it is part of its serialized form, which clustered caches compare),
+ * so the readers must build the same key as the writer: the partition should be derivable from what the readers know.
+ */
+public final class PartitionedKey implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final Object key;
+	private final int partition;
+	private transient int hash;
+
+	public PartitionedKey(Object key, int partition) {
+		if(null == key)
+			throw new NullPointerException("key cannot be null");
+		if(partition < 0)
+			throw new IllegalArgumentException("partition cannot be negative: " + partition);
+		this.key = key;
+		this.partition = partition;
+	}
+
+	/*
+	 * @return the key, partitioned the way CachePartitionExtractor would partition the value with partitionType=VALUE
+	 */
+	public static PartitionedKey of(Object key, CachePartitionable value, int partitionCount) {
+		return new PartitionedKey(key, value.getPartition(partitionCount));
+	}
+
+	public Object getKey() {
+		return key;
+	}
+
+	public int getPartition() {
+		return partition;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if(h == 0) {
+			h = key.hashCode() * 31 + partition;
+			hash = h;
+		}
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj)
+			return true;
+		if(!(obj instanceof PartitionedKey))
+			return false;
+		PartitionedKey other = (PartitionedKey)obj;
+		return partition == other.partition && key.equals(other.key);
+	}
+
+	@Override
+	public String toString() {
+		return key + "@" + partition;
+	}
+}
@@ -0,0 +1,78 @@
+package org.ehcache.decorators;
+
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Parsing helpers for the decorator properties: invalid or missing values are logged and replaced by the default.
+ */
+public class PropertyUtils {
+	private static final Logger log = LoggerFactory.getLogger(PropertyUtils.class);
+
+	private PropertyUtils() {
+	}
+
+	public static int getIntProperty(Properties properties, String name, int defaultValue, int minValue) {
+		String value = properties.getProperty(name);
+		if(null == value)
+			return defaultValue;
+
+		try {
+			int parsed = Integer.parseInt(value.trim());
+			if(parsed < minValue){
+				log.warn(String.format("%s cannot be less than %d...reverting to default: %d", name, minValue, defaultValue));
+				return defaultValue;
+			}
+			return parsed;
+		} catch (NumberFormatException e) {
+			log.warn(String.format("%s value is not valid...reverting to default: %d", name, defaultValue));
+			return defaultValue;
+		}
+	}
+
+	public static long getLongProperty(Properties properties, String name, long defaultValue, long minValue) {
+		String value = properties.getProperty(name);
+		if(null == value)
+			return defaultValue;
+
+		try {
+			long parsed = Long.parseLong(value.trim());
+			if(parsed < minValue){
+				log.warn(String.format("%s cannot be less than %d...reverting to default: %d", name, minValue, defaultValue));
+				return defaultValue;
+			}
+			return parsed;
+		} catch (NumberFormatException e) {
+			log.warn(String.format("%s value is not valid...reverting to default: %d", name, defaultValue));
+			return defaultValue;
+		}
+	}
+
+	public static double getDoubleProperty(Properties properties, String name, double defaultValue, double minValue, double maxValue) {
+		String value = properties.getProperty(name);
+		if(null == value)
+			return defaultValue;
+
+		try {
+			double parsed = Double.parseDouble(value.trim());
+			if(parsed < minValue || parsed > maxValue){
+				log.warn(String.format("%s should be between %s and %s...reverting to default: %s", name, minValue, maxValue, defaultValue));
+				return defaultValue;
+			}
+			return parsed;
+		} catch (NumberFormatException e) {
+			log.warn(String.format("%s value is not valid...reverting to default: %s", name, defaultValue));
+			return defaultValue;
+		}
+	}
+
+	public static boolean getBooleanProperty(Properties properties, String name, boolean defaultValue) {
+		String value = properties.getProperty(name);
+		if(null == value)
+			return defaultValue;
+
+		return Boolean.parseBoolean(value.trim());
+	}
+}
@@ -0,0 +1,89 @@
+package org.ehcache.decorators;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.ehcache.config.InvalidConfigurationException;
+
+/*
+ * Range partitioning of ordered keys, used by the RANGE partition type of CachePartitionExtractor.
+ * The split points are the lower bounds of partitions 1 to n: a key lower than the first split point goes to partition 0,
+ * a key equal to or greater than the last one goes to partition n.
+ * The split points are either all integral numbers (compared with integral number keys), or strings (compared with string keys).
+ */
+public class RangePartitioner implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final String SPLITPOINTSEPARATOR = ";";
+
+	private final long[] numericSplitPoints;
+	private final String[] stringSplitPoints;
+
+	/*
+	 * @param splitPointsValue the split points, in increasing order, separated by ';'
+	 */
+	public RangePartitioner(String splitPointsValue) throws InvalidConfigurationException {
+		if(null == splitPointsValue || splitPointsValue.trim().length() == 0)
+			throw new InvalidConfigurationException("No split points specified");
+
+		String[] splitPoints = splitPointsValue.split(SPLITPOINTSEPARATOR);
+		long[] numbers = new long[splitPoints.length];
+		boolean numeric = true;
+		for(int i = 0; i < splitPoints.length; i++) {
+			splitPoints[i] = splitPoints[i].trim();
+			if(numeric) {
+				try {
+					numbers[i] = Long.parseLong(splitPoints[i]);
+				} catch (NumberFormatException nfe) {
+					numeric = false;
+				}
+			}
+		}
+
+		for(int i = 1; i < splitPoints.length; i++) {
+			boolean increasing = numeric ? numbers[i - 1] < numbers[i] : splitPoints[i - 1].compareTo(splitPoints[i]) < 0;
+			if(!increasing)
+				throw new InvalidConfigurationException("Split points should be strictly increasing: " + splitPointsValue);
+		}
+
+		this.numericSplitPoints = numeric ? numbers : null;
+		this.stringSplitPoints = numeric ? null : splitPoints;
+	}
+
+	public int getPartitionCount() {
+		return ((null != numericSplitPoints) ? numericSplitPoints.length : stringSplitPoints.length) + 1;
+	}
+
+	/*
+	 * @return the partition of the key, or -1 if the key cannot be compared with the split points
+	 */
+	public int partitionOf(Object key) {
+		int index;
+		if(null != numericSplitPoints) {
+			if(!(key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte))
+				return -1;
+			index = Arrays.binarySearch(numericSplitPoints, ((Number)key).longValue());
+		} else {
+			if(!(key instanceof String))
+				return -1;
+			index = Arrays.binarySearch(stringSplitPoints, (String)key);
+		}
+
+		//a key equal to a split point starts its partition
+		return (index >= 0) ? index + 1 : -(index + 1);
+	}
+
+	/*
+	 * @return the property value for the given split points (in increasing order)
+	 */
+	public static String toSplitPointsValue(List<?> splitPoints) {
+		StringBuilder sb = new StringBuilder();
+		for(Object splitPoint : splitPoints) {
+			if(sb.length() > 0)
+				sb.append(SPLITPOINTSEPARATOR);
+			sb.append(splitPoint);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,88 @@
+package org.ehcache.decorators;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.Element;
+
+/*
+ * Re-fetches the entries that are read while close to their local expiry, so that they do not expire between two refresh cycles
+ * and turn the next read into a synchronous fault to the delegated cache.
+ * An entry is due once less than refreshAheadFactor of its time to live is left (e.g. 0.2: during the last 20% of its time to live).
+ * A key is refreshed ahead once at a time, and at most refreshAheadMaxInFlight keys are in flight: the reads beyond that are not refreshed ahead.
+ * Disabled unless refreshAheadFactor is set, and only applies to the entries of the local tier that have a time to live.
+ */
+public class RefreshAhead {
+	public static final String PROPNAME_FACTOR = "refreshAheadFactor";
+	public static final String PROPNAME_MAXINFLIGHT = "refreshAheadMaxInFlight";
+	private static final int MAXINFLIGHTDEFAULT = 4;
+
+	private final double factor;
+	private final int maxInFlight;
+	private final ConcurrentMap<Object, Boolean> inFlight = new ConcurrentHashMap<Object, Boolean>();
+
+	private final AtomicLong refreshAheadCount = new AtomicLong(0L);
+	private final AtomicLong saturatedCount = new AtomicLong(0L);
+
+	public RefreshAhead(Properties properties) {
+		this.factor = PropertyUtils.getDoubleProperty(properties, PROPNAME_FACTOR, 0.0, 0.0, 1.0);
+		this.maxInFlight = PropertyUtils.getIntProperty(properties, PROPNAME_MAXINFLIGHT, MAXINFLIGHTDEFAULT, 1);
+	}
+
+	public boolean isEnabled() {
+		return factor > 0;
+	}
+
+	/*
+	 * @return true if the element has a time to live, and less than refreshAheadFactor of it is left
+	 */
+	public boolean isDue(Element element, long now) {
+		if(element.isEternal() || element.getTimeToLive() <= 0)
+			return false;
+
+		long ttlMillis = element.getTimeToLive() * 1000L;
+		return element.getExpirationTime() - now <= factor * ttlMillis;
+	}
+
+	/*
+	 * @return true if the caller should refresh the key, false if it is already in flight or too many keys are
+	 */
+	public boolean startRefresh(Object key) {
+		if(inFlight.size() >= maxInFlight) {
+			saturatedCount.incrementAndGet();
+			return false;
+		}
+		if(null == inFlight.putIfAbsent(key, Boolean.TRUE)) {
+			refreshAheadCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	public void finishRefresh(Object key) {
+		inFlight.remove(key);
+	}
+
+	public long getRefreshAheadCount() {
+		return refreshAheadCount.get();
+	}
+
+	/*
+	 * @return how many due reads were not refreshed ahead because refreshAheadMaxInFlight keys were already in flight
+	 */
+	public long getSaturatedCount() {
+		return saturatedCount.get();
+	}
+
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RefreshAhead [factor=%.2f, maxInFlight=%d, inFlight=%d, refreshesAhead=%d, saturated=%d]",
+				factor, maxInFlight, getInFlightCount(), getRefreshAheadCount(), getSaturatedCount());
+	}
+}
@@ -0,0 +1,165 @@
+package org.ehcache.decorators;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Detects when the owned partitions do not fit in the local tier, so that the refresh stops re-inserting the entries evicted for space
+ * (which would evict others, put back by the next refresh, and so on).
+ * A local tier bounded in entries is over capacity once a refresh finds more entries than its maxEntriesLocalHeap.
+ * A local tier bounded in bytes is over capacity when the local evictions since the previous refresh exceed refreshEvictionChurnRatio of the entries it refreshed.
+ * The refresh then only replaces the resident entries, the others are admitted when read or hot, and the local tier behaves as a bounded cache over the partitions.
+ * It goes back to refreshing everything once the owned partitions are back under 90% of the capacity (for a capacity in bytes: of the entries
+ * resident when the churn was detected).
+ * Disabled with refreshCapacityAware=false.
+ */
+public class RefreshCapacity implements CacheEventListener {
+	private static final Logger log = LoggerFactory.getLogger(RefreshCapacity.class);
+
+	public static final String PROPNAME_CAPACITYAWARE = "refreshCapacityAware";
+	public static final String PROPNAME_EVICTIONCHURNRATIO = "refreshEvictionChurnRatio";
+	private static final double EVICTIONCHURNRATIODEFAULT = 0.01;
+	private static final double RESUMERATIO = 0.9;
+
+	private final boolean enabled;
+	private final double evictionChurnRatio;
+	private final Ehcache localCache;
+	//capacity of the local tier in entries, 0 if it is bounded in bytes (or not bounded)
+	private final long maxEntries;
+
+	private volatile boolean overCapacity = false;
+	private volatile long effectiveCapacity = 0L;
+	private final AtomicLong evictionCount = new AtomicLong(0L);
+	private final AtomicLong refreshedCount = new AtomicLong(0L);
+	private final AtomicLong skippedCount = new AtomicLong(0L);
+	private final AtomicLong admittedCount = new AtomicLong(0L);
+	private final AtomicLong churnDetectedCount = new AtomicLong(0L);
+	//evictions and refreshed entries as of the previous evaluation
+	private long evictionsEvaluated = 0L;
+	private long refreshedEvaluated = 0L;
+
+	public RefreshCapacity(Properties properties, Ehcache localCache) {
+		this.enabled = PropertyUtils.getBooleanProperty(properties, PROPNAME_CAPACITYAWARE, true);
+		this.evictionChurnRatio = PropertyUtils.getDoubleProperty(properties, PROPNAME_EVICTIONCHURNRATIO, EVICTIONCHURNRATIODEFAULT, 0.0, 1.0);
+		this.localCache = localCache;
+
+		CacheConfiguration config = localCache.getCacheConfiguration();
+		boolean boundedInBytes = config.getMaxBytesLocalHeap() > 0 || config.getMaxBytesLocalOffHeap() > 0 || config.isOverflowToOffHeap();
+		this.maxEntries = boundedInBytes ? 0L : config.getMaxEntriesLocalHeap();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/*
+	 * @return true if the refresh should only replace the entries resident in the local tier
+	 */
+	public boolean isOverCapacity() {
+		return overCapacity;
+	}
+
+	public void recordRefreshed(int refreshed, int skipped) {
+		refreshedCount.addAndGet(refreshed);
+		skippedCount.addAndGet(skipped);
+	}
+
+	public void recordAdmitted(int admitted) {
+		admittedCount.addAndGet(admitted);
+	}
+
+	/*
+	 * Called once a refresh completed: switches in or out of the resident-only refresh
+	 * @param ownedEntries the number of entries found in the owned partitions by their last refresh
+	 */
+	public synchronized void evaluate(long ownedEntries) {
+		long evictions = evictionCount.get() - evictionsEvaluated;
+		long refreshed = refreshedCount.get() - refreshedEvaluated;
+		evictionsEvaluated = evictionCount.get();
+		refreshedEvaluated = refreshedCount.get();
+
+		if(!overCapacity) {
+			//evictions can also come from entries that are not refreshed (e.g. removed from the delegated cache): only used when the capacity in entries is not known
+			boolean fits = (maxEntries > 0) ? ownedEntries <= maxEntries : (evictions == 0 || evictions <= evictionChurnRatio * refreshed);
+			if(fits)
+				return;
+
+			effectiveCapacity = (maxEntries > 0) ? maxEntries : localCache.getSize();
+			overCapacity = true;
+			churnDetectedCount.incrementAndGet();
+			log.warn(String.format("The owned partitions of %s (%d entries) do not fit in its local tier (capacity %d entries, %d evictions over the last %d refreshed entries)"
+					+ " - only refreshing the resident entries", localCache.getName(), ownedEntries, effectiveCapacity, evictions, refreshed));
+		} else if(ownedEntries < RESUMERATIO * effectiveCapacity) {
+			overCapacity = false;
+			log.info(String.format("The owned partitions of %s (%d entries) fit in its local tier again (capacity %d entries) - refreshing all the entries",
+					localCache.getName(), ownedEntries, effectiveCapacity));
+		}
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/*
+	 * @return how many refreshed entries were not put back in the local tier because they were not resident
+	 */
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	/*
+	 * @return how many entries were admitted in the local tier when read or hot while over capacity
+	 */
+	public long getAdmittedCount() {
+		return admittedCount.get();
+	}
+
+	/*
+	 * @return how many times the local tier was found over capacity
+	 */
+	public long getChurnDetectedCount() {
+		return churnDetectedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RefreshCapacity [overCapacity=%s, maxEntries=%d, effectiveCapacity=%d, evictions=%d, refreshed=%d, skipped=%d, admitted=%d, churnDetected=%d]",
+				overCapacity, maxEntries, effectiveCapacity, getEvictionCount(), refreshedCount.get(), getSkippedCount(), getAdmittedCount(), getChurnDetectedCount());
+	}
+
+	public void notifyElementEvicted(Ehcache cache, Element element) {
+		evictionCount.incrementAndGet();
+	}
+
+	public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+	}
+
+	public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+	}
+
+	public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+	}
+
+	public void notifyElementExpired(Ehcache cache, Element element) {
+	}
+
+	public void notifyRemoveAll(Ehcache cache) {
+	}
+
+	public void dispose() {
+	}
+
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		throw new CloneNotSupportedException("RefreshCapacity is bound to a single decorator");
+	}
+}
@@ -0,0 +1,173 @@
+package org.ehcache.decorators;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.ehcache.search.Direction;
+import net.sf.ehcache.search.Query;
+
+/*
+ * Progress of a refresh pass over a set of entries (the owned partitions, or a sub-partition unit), kept across refresh cycles:
+ * a cycle that runs out of its refreshCycleBudgetInMilliSeconds, or fails half-way, stops after its last page and the next cycle resumes from there.
+ * The search results of a clustered cache come in no stable order from one search to the next, so a resumable pass orders them by key:
+ * with refreshResumeMode=KEY (the default), the search resumes after the last key searched, which is exact;
+ * with refreshResumeMode=OFFSET, it resumes at the same position of the ordered results, which skips or repeats keys if entries were added or removed meanwhile.
+ * Both need keys that compare with each other (strings, numbers or dates): otherwise the pass cannot be resumed, so it is refreshed in a single cycle
+ * whatever the cycle budget, and starts over after a failure.
+ * Used by one refresh at a time.
+ */
+public class RefreshCheckpoint {
+	/**
+	 * How a pass resumes where the previous cycle stopped
+	 */
+	public enum ResumeMode {
+		OFFSET, KEY;
+	}
+
+	private final ResumeMode resumeMode;
+	private final Map<Integer, Integer> countsPerPartition = new HashMap<Integer, Integer>();
+	private boolean started = false;
+	private boolean complete = false;
+	private long passStartTime = 0;
+	private int offset = 0;
+	private Object lastKey = null;
+	private int cycleCount = 0;
+	//false once the keys turned out not to compare with each other
+	private boolean resumable = true;
+
+	public RefreshCheckpoint(ResumeMode resumeMode) {
+		this.resumeMode = resumeMode;
+	}
+
+	public ResumeMode getResumeMode() {
+		return resumeMode;
+	}
+
+	/*
+	 * Starts a new pass, unless the previous one is to be resumed
+	 */
+	public void startCycle(long now) {
+		if(!started || !resumable) {
+			//a pass that cannot be resumed starts over
+			started = true;
+			passStartTime = now;
+			restartPass();
+		}
+		cycleCount++;
+	}
+
+	private void restartPass() {
+		complete = false;
+		offset = 0;
+		lastKey = null;
+		countsPerPartition.clear();
+	}
+
+	/*
+	 * Orders and filters the query so that it only returns what is left of the pass
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void resume(Query query) {
+		if(!resumable)
+			return;
+
+		query.addOrderBy(Query.KEY, Direction.ASCENDING);
+		if(resumeMode == ResumeMode.KEY && null != lastKey)
+			query.addCriteria(Query.KEY.gt((Comparable)lastKey));
+	}
+
+	/*
+	 * The search could not be ordered by key (keys of different types): the pass starts over, unordered, and cannot be resumed anymore
+	 */
+	public void notResumable() {
+		resumable = false;
+		restartPass();
+	}
+
+	/*
+	 * @return false if the pass has to be refreshed in a single cycle
+	 */
+	public boolean isResumable() {
+		return resumable;
+	}
+
+	/*
+	 * @return where the search results of this cycle start
+	 */
+	public int getStartOffset() {
+		return (resumeMode == ResumeMode.OFFSET) ? offset : 0;
+	}
+
+	/*
+	 * Records a page handed over to the fetch stage
+	 */
+	public void advance(int pageLength, Object lastKeyOfPage) {
+		//the search orders keys that are not comparable in no particular way
+		if(!(lastKeyOfPage instanceof Comparable))
+			resumable = false;
+		offset += pageLength;
+		lastKey = lastKeyOfPage;
+	}
+
+	/*
+	 * Goes back to a page that could not be refreshed: the next cycle resumes from it
+	 */
+	public void rewind(int pageOffset, Object keyBeforePage) {
+		offset = pageOffset;
+		lastKey = keyBeforePage;
+	}
+
+	public void markComplete() {
+		complete = true;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/*
+	 * Once the pass is complete and recorded: the next cycle starts over
+	 */
+	public void reset() {
+		started = false;
+		cycleCount = 0;
+		restartPass();
+	}
+
+	/*
+	 * @return the number of keys refreshed per partition since the start of the pass (filled when the search includes the partition attribute)
+	 */
+	public Map<Integer, Integer> getCountsPerPartition() {
+		return countsPerPartition;
+	}
+
+	/*
+	 * @return the last key handed over to the fetch stage in this pass, or null
+	 */
+	public Object getLastKey() {
+		return lastKey;
+	}
+
+	public long getPassStartTime() {
+		return passStartTime;
+	}
+
+	/*
+	 * @return the number of keys searched since the start of the pass
+	 */
+	public int getSearchedCount() {
+		return offset;
+	}
+
+	/*
+	 * @return the number of cycles the current pass took so far
+	 */
+	public int getCycleCount() {
+		return cycleCount;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RefreshCheckpoint [mode=%s, resumable=%s, searched=%d, lastKey=%s, cycles=%d]", resumeMode, resumable, offset, lastKey, cycleCount);
+	}
+}
@@ -0,0 +1,70 @@
+package org.ehcache.decorators;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.sf.ehcache.CacheException;
+
+/*
+ * Exposes the on-demand refresh of a partition decorator over JMX, registered as
+ * org.ehcache.decorators:type=CachePartitionDecorator,CacheManager=<cache manager>,name=<cache> unless jmxEnabled=false.
+ * An operation waits at most jmxRefreshTimeoutInMilliSeconds for its refresh, which goes on in the background past that.
+ */
+public class RefreshControl implements RefreshControlMBean {
+	private final CachePartitionDecorator decorator;
+	private final long timeoutMillis;
+
+	public RefreshControl(CachePartitionDecorator decorator, long timeoutMillis) {
+		this.decorator = decorator;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public String refreshKeys(String keys) {
+		List<Object> keysToRefresh = new ArrayList<Object>();
+		if(null != keys) {
+			for(String key : keys.split(",")) {
+				if(key.trim().length() > 0)
+					keysToRefresh.add(key.trim());
+			}
+		}
+		return waitFor(decorator.refreshKeys(keysToRefresh));
+	}
+
+	public String refreshPartition(int partitionId) {
+		try {
+			return waitFor(decorator.refreshPartition(partitionId));
+		} catch (CacheException ce) {
+			return "Failed: " + ce.getMessage();
+		}
+	}
+
+	public String fullResync() {
+		return waitFor(decorator.fullResync());
+	}
+
+	public String getOwnedPartitions() {
+		return decorator.getOwnedPartitions().toString();
+	}
+
+	public String getRefreshPipeline() {
+		return decorator.getRefreshPipeline().toString();
+	}
+
+	//the JMX client may not have the classes of the exceptions: they are returned as text
+	private String waitFor(Future<RefreshResult> refresh) {
+		try {
+			return refresh.get(timeoutMillis, TimeUnit.MILLISECONDS).toString();
+		} catch (TimeoutException te) {
+			return String.format("Still running after %d ms - see getOwnedPartitions for the last refresh of every partition", timeoutMillis);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return "Interrupted while waiting for the refresh";
+		} catch (ExecutionException ee) {
+			return "Failed: " + ee.getCause();
+		}
+	}
+}
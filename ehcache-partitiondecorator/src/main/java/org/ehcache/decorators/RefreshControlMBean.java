@@ -0,0 +1,20 @@
+package org.ehcache.decorators;
+
+/*
+ * JMX operations to make the local tier of a partition decorator catch up with the delegated cache without waiting for the next refresh.
+ * The operations wait for the refresh to complete (for at most jmxRefreshTimeoutInMilliSeconds), and return its outcome (or why it failed).
+ */
+public interface RefreshControlMBean {
+	/*
+	 * @param keys comma-separated list of string keys
+	 */
+	String refreshKeys(String keys);
+
+	String refreshPartition(int partitionId);
+
+	String fullResync();
+
+	String getOwnedPartitions();
+
+	String getRefreshPipeline();
+}
@@ -0,0 +1,198 @@
+package org.ehcache.decorators;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.SearchAttribute;
+import net.sf.ehcache.search.Attribute;
+import net.sf.ehcache.search.attribute.AttributeExtractor;
+import net.sf.ehcache.search.expression.Criteria;
+import net.sf.ehcache.util.ClassLoaderUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Narrows what the refresh copies from the delegated cache:
+ * refreshFilter restricts the refresh to the entries matching extra criteria on other search attributes of the delegated cache, combined with the partition criteria.
+ * It is a list of clauses separated by ';' that must all match, e.g. "status=ACTIVE;priority>=2" (operators =, !=, >, >=, <, <=), with the values typed as
+ * true / false (Boolean), integers (Integer, or Long with an L suffix), decimals (Double), or else strings ('quoted' to force a string, e.g. '42',
+ * or to hold a ';').
+ * refreshProjectionClass names a RefreshProjection applied to the values fetched from the delegated cache before they are stored locally,
+ * and to the values returned by a fault to the delegated cache, so that a get serves the same representation whether it hit locally or not.
+ * The entries refreshed by key (refresh-ahead, hot keys, refreshKeys, revalidation) or written through the decorator that stopped matching the filter
+ * are removed from the local tier; the others are not refreshed anymore, and leave the local tier when they expire: a filter therefore requires
+ * a local tier with a timeToLiveSeconds.
+ */
+public class RefreshFilter {
+	private static final Logger log = LoggerFactory.getLogger(RefreshFilter.class);
+
+	public static final String PROPNAME_FILTER = "refreshFilter";
+	public static final String PROPNAME_PROJECTIONCLASS = "refreshProjectionClass";
+	private static final Pattern CLAUSE = Pattern.compile("\\s*([^!<>=\\s]+)\\s*(!=|>=|<=|=|>|<)\\s*(.*?)\\s*");
+
+	private final List<String[]> clauses = new ArrayList<String[]>();
+	private final RefreshProjection projection;
+
+	//instanciated at init() time, from the search attributes of the delegated cache
+	private Criteria criteria;
+	private Map<String, AttributeExtractor> extractors;
+
+	public RefreshFilter(Properties properties) throws CacheException {
+		String filterValue = properties.getProperty(PROPNAME_FILTER);
+		if(null != filterValue) {
+			for(String clause : splitClauses(filterValue)) {
+				if(clause.trim().length() == 0)
+					continue;
+				Matcher matcher = CLAUSE.matcher(clause);
+				if(!matcher.matches())
+					throw new CacheException("Invalid " + PROPNAME_FILTER + " clause '" + clause + "' - expected <attribute><operator><value>, with one of the operators =, !=, >, >=, <, <=");
+				clauses.add(new String[] { matcher.group(1), matcher.group(2), matcher.group(3) });
+			}
+		}
+
+		String projectionClass = properties.getProperty(PROPNAME_PROJECTIONCLASS);
+		if(null != projectionClass && projectionClass.trim().length() > 0) {
+			Object instance = ClassLoaderUtil.createNewInstance(projectionClass.trim());
+			if(!(instance instanceof RefreshProjection))
+				throw new CacheException(PROPNAME_PROJECTIONCLASS + " " + projectionClass + " should implement " + RefreshProjection.class.getName());
+			this.projection = (RefreshProjection)instance;
+		} else {
+			this.projection = null;
+		}
+	}
+
+	/*
+	 * Splits the filter on the ';' that are not within a quoted value
+	 */
+	private static List<String> splitClauses(String filterValue) throws CacheException {
+		List<String> clauses = new ArrayList<String>();
+		boolean quoted = false;
+		int start = 0;
+		for(int i = 0; i < filterValue.length(); i++) {
+			char c = filterValue.charAt(i);
+			if(c == '\'')
+				quoted = !quoted;
+			else if(c == ';' && !quoted) {
+				clauses.add(filterValue.substring(start, i));
+				start = i + 1;
+			}
+		}
+		if(quoted)
+			throw new CacheException("Invalid " + PROPNAME_FILTER + " '" + filterValue + "' - unterminated quoted value");
+		clauses.add(filterValue.substring(start));
+		return clauses;
+	}
+
+	/*
+	 * Builds the criteria against the search attributes of the delegated cache
+	 */
+	public void init(Ehcache delegatedCache, Ehcache localCache) throws CacheException {
+		if(clauses.isEmpty())
+			return;
+
+		//the entries that stop matching would otherwise stay stale in the local tier forever
+		CacheConfiguration localConfig = localCache.getCacheConfiguration();
+		if(localConfig.isEternal() || localConfig.getTimeToLiveSeconds() <= 0)
+			throw new CacheException(PROPNAME_FILTER + " requires the local cache " + localCache.getName() + " to have a timeToLiveSeconds: the entries that stop matching it are not refreshed anymore, and only leave the local tier when they expire");
+
+		Map<String, AttributeExtractor> clauseExtractors = new HashMap<String, AttributeExtractor>();
+		Criteria filterCriteria = null;
+		for(String[] clause : clauses) {
+			String attributeName = clause[0];
+			SearchAttribute attributeConfig = delegatedCache.getCacheConfiguration().getSearchAttributes().get(attributeName);
+			if(null == attributeConfig)
+				throw new CacheException("The attribute " + attributeName + " of " + PROPNAME_FILTER + " should be a searchable attribute configured on the delegated cache " + delegatedCache.getName());
+			clauseExtractors.put(attributeName, attributeConfig.constructExtractor());
+
+			Attribute<Object> attribute = delegatedCache.getSearchAttribute(attributeName);
+			Criteria clauseCriteria = toCriteria(attribute, clause[1], parseValue(clause[2]));
+			filterCriteria = (null == filterCriteria) ? clauseCriteria : filterCriteria.and(clauseCriteria);
+		}
+		this.extractors = clauseExtractors;
+		this.criteria = filterCriteria;
+	}
+
+	private static Criteria toCriteria(Attribute<Object> attribute, String operator, Object value) {
+		if("=".equals(operator))
+			return attribute.eq(value);
+		if("!=".equals(operator))
+			return attribute.ne(value);
+		if(">".equals(operator))
+			return attribute.gt(value);
+		if(">=".equals(operator))
+			return attribute.ge(value);
+		if("<".equals(operator))
+			return attribute.lt(value);
+		return attribute.le(value);
+	}
+
+	private static Object parseValue(String value) {
+		if(value.length() >= 2 && value.startsWith("'") && value.endsWith("'"))
+			return value.substring(1, value.length() - 1);
+		if("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value))
+			return Boolean.valueOf(value);
+		try {
+			if(value.matches("-?\\d+[lL]"))
+				return Long.valueOf(value.substring(0, value.length() - 1));
+			if(value.matches("-?\\d+"))
+				return Integer.valueOf(value);
+			if(value.matches("-?\\d*\\.\\d+([eE]-?\\d+)?"))
+				return Double.valueOf(value);
+		} catch (NumberFormatException nfe) {
+			//out of range: kept as a string
+		}
+		return value;
+	}
+
+	public boolean isFiltered() {
+		return null != criteria;
+	}
+
+	public boolean hasProjection() {
+		return null != projection;
+	}
+
+	/*
+	 * @return the partition criteria restricted to the entries matching the filter
+	 */
+	public Criteria and(Criteria partitionCriteria) {
+		return (null == criteria) ? partitionCriteria : partitionCriteria.and(criteria);
+	}
+
+	/*
+	 * @return true if the element fetched from the delegated cache matches the filter (or if there is none)
+	 */
+	public boolean matches(Element element) {
+		if(null == criteria)
+			return true;
+		try {
+			return criteria.execute(element, extractors);
+		} catch (RuntimeException re) {
+			if(log.isDebugEnabled())
+				log.debug("Could not evaluate " + PROPNAME_FILTER + " on key " + element.getObjectKey() + " - not keeping it locally", re);
+			return false;
+		}
+	}
+
+	/*
+	 * @return the value to store locally for that value fetched from the delegated cache
+	 */
+	public Object project(Object key, Object value) {
+		return (null == projection) ? value : projection.project(key, value);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RefreshFilter [filter=%s, projection=%s]", (null == criteria) ? "none" : criteria, (null == projection) ? "none" : projection.getClass().getName());
+	}
+}
@@ -0,0 +1,441 @@
+package org.ehcache.decorators;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.Element;
+import net.sf.ehcache.search.Result;
+import net.sf.ehcache.search.Results;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Runs a refresh as three overlapping stages: the search results are read by pages of refreshPageSize keys,
+ * the pages are fetched from the delegated cache by refreshFetchThreads threads, and the fetched batches are applied to the local tier by one thread.
+ * The stages are connected by queues of refreshQueueCapacity batches: a stage that gets ahead blocks until the next one catches up,
+ * so a refresh holds at most a few batches in memory (on top of the search results, which clustered caches page themselves).
+ * A refresh cycle stops handing pages over once it has run for refreshCycleBudgetInMilliSeconds, and the next cycle resumes
+ * from its RefreshCheckpoint (see refreshResumeMode), so the cost of a cycle stays bounded whatever the size of the partitions.
+ */
+public class RefreshPipeline {
+	private static final Logger log = LoggerFactory.getLogger(RefreshPipeline.class);
+
+	public static final String PROPNAME_REFRESHPAGESIZE = "refreshPageSize";
+	public static final String PROPNAME_REFRESHFETCHTHREADS = "refreshFetchThreads";
+	public static final String PROPNAME_REFRESHQUEUECAPACITY = "refreshQueueCapacity";
+	public static final String PROPNAME_REFRESHCYCLEBUDGET = "refreshCycleBudgetInMilliSeconds";
+	public static final String PROPNAME_REFRESHRESUMEMODE = "refreshResumeMode";
+	private static final int REFRESHPAGESIZEDEFAULT = 500;
+	//each fetch thread has a whole page in flight (one bulk get of refreshPageSize keys), where each of the syncPoolSize threads used to fetch a single key:
+	//4 threads already keep 2000 keys in flight per refresh, and up to refreshUnitsInFlight refreshes run at once with sub-partitions
+	private static final int REFRESHFETCHTHREADSDEFAULT = 4;
+	private static final int REFRESHQUEUECAPACITYDEFAULT = 4;
+	//0 means no budget: a cycle goes through all the search results
+	private static final long REFRESHCYCLEBUDGETDEFAULT = 0L;
+
+	//end of stream marker, one per consumer
+	private static final Page NOMOREPAGES = new Page(new ArrayList<Object>(0), 0, null, null);
+	private static final Batch NOMOREBATCHES = new Batch(NOMOREPAGES, new HashMap<Object, Element>(0));
+
+	/**
+	 * What the stages do with the keys: supplied by the decorator
+	 */
+	public interface Stages {
+		/*
+		 * Search stage: called for every search result, in order
+		 * @return the key to refresh
+		 */
+		Object keyOf(Result result);
+
+		/*
+		 * Search stage: called for every search result, in order
+		 * @return the partition to count the result in, or null not to count it
+		 */
+		Integer partitionOf(Result result);
+
+		/*
+		 * Fetch stage: called concurrently for different pages
+		 * @return the elements of the keys (a null element for a key not in the delegated cache anymore), or null to skip the page
+		 */
+		Map<Object, Element> fetch(List<Object> keys) throws Exception;
+
+		/*
+		 * Apply stage: called from a single thread
+		 */
+		void apply(Map<Object, Element> elements);
+	}
+
+	private final int pageSize;
+	private final int fetchThreads;
+	private final int queueCapacity;
+	private final long cycleBudgetMillis;
+	private final RefreshCheckpoint.ResumeMode resumeMode;
+	private final ExecutorService stageService;
+
+	private final AtomicLong pageCount = new AtomicLong(0L);
+	private final AtomicLong failedPageCount = new AtomicLong(0L);
+	private final AtomicLong appliedCount = new AtomicLong(0L);
+	private final AtomicLong yieldCount = new AtomicLong(0L);
+
+	public RefreshPipeline(Properties properties, ExecutorService stageService) {
+		this.pageSize = PropertyUtils.getIntProperty(properties, PROPNAME_REFRESHPAGESIZE, REFRESHPAGESIZEDEFAULT, 1);
+		this.fetchThreads = PropertyUtils.getIntProperty(properties, PROPNAME_REFRESHFETCHTHREADS, REFRESHFETCHTHREADSDEFAULT, 1);
+		this.queueCapacity = PropertyUtils.getIntProperty(properties, PROPNAME_REFRESHQUEUECAPACITY, REFRESHQUEUECAPACITYDEFAULT, 1);
+		this.cycleBudgetMillis = PropertyUtils.getLongProperty(properties, PROPNAME_REFRESHCYCLEBUDGET, REFRESHCYCLEBUDGETDEFAULT, 0L);
+
+		RefreshCheckpoint.ResumeMode parsedMode = RefreshCheckpoint.ResumeMode.KEY;
+		String modeValue = properties.getProperty(PROPNAME_REFRESHRESUMEMODE);
+		if(null != modeValue) {
+			try {
+				parsedMode = RefreshCheckpoint.ResumeMode.valueOf(modeValue.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				log.warn(String.format("%s value is not valid...reverting to default: %s", PROPNAME_REFRESHRESUMEMODE, RefreshCheckpoint.ResumeMode.KEY));
+			}
+		}
+		this.resumeMode = parsedMode;
+		this.stageService = stageService;
+	}
+
+	public RefreshCheckpoint newCheckpoint() {
+		return new RefreshCheckpoint(resumeMode);
+	}
+
+	/*
+	 * Refreshes the search results from the checkpoint on, until they are exhausted (the checkpoint is then complete) or the cycle budget is.
+	 * The search stage runs on the calling thread, which returns once the last page handed over is applied, and all the stages stopped.
+	 * At least one page is refreshed per cycle, so that the pass always progresses; a page that could not be fetched or applied stops the cycle,
+	 * and the checkpoint goes back to it so that the next cycle retries it.
+	 */
+	public void run(Results results, Stages stages, RefreshCheckpoint checkpoint, long cycleStartTime) throws InterruptedException {
+		Cycle cycle = new Cycle(stages, checkpoint);
+
+		Future<?> applyStage = stageService.submit(new ApplyStage(cycle));
+		int startedFetchers = 0;
+		boolean exhausted = false;
+		try {
+			for(; startedFetchers < fetchThreads; startedFetchers++) {
+				stageService.execute(new FetchStage(cycle));
+			}
+
+			int total = results.size();
+			int firstStart = checkpoint.getStartOffset();
+			int start = firstStart;
+			for(; start < total && !cycle.hasFailed(); start += pageSize) {
+				if(start > firstStart && cycleBudgetMillis > 0 && checkpoint.isResumable() && System.currentTimeMillis() - cycleStartTime >= cycleBudgetMillis) {
+					yieldCount.incrementAndGet();
+					break;
+				}
+
+				List<Result> page = results.range(start, Math.min(pageSize, total - start));
+				if(page.isEmpty()) {
+					start = total;
+					break;
+				}
+				List<Object> keys = new ArrayList<Object>(page.size());
+				Map<Integer, Integer> countsPerPartition = new HashMap<Integer, Integer>();
+				for(Result result : page) {
+					keys.add(stages.keyOf(result));
+					Integer partition = stages.partitionOf(result);
+					if(null != partition) {
+						Integer count = countsPerPartition.get(partition);
+						countsPerPartition.put(partition, (null == count) ? 1 : count.intValue() + 1);
+					}
+				}
+				Page handedOver = new Page(keys, checkpoint.getSearchedCount(), checkpoint.getLastKey(), countsPerPartition);
+				checkpoint.advance(keys.size(), keys.get(keys.size() - 1));
+				if(!cycle.handOver(handedOver)) {
+					cycle.failed(handedOver);
+					break;
+				}
+				pageCount.incrementAndGet();
+			}
+			exhausted = start >= total;
+		} finally {
+			//lets the started fetchers drain the queue then stop: the last one to stop stops the apply stage
+			cycle.runningFetchers.addAndGet(startedFetchers - fetchThreads);
+			for(int i = 0; i < startedFetchers; i++) {
+				if(!cycle.handOver(NOMOREPAGES))
+					break;
+			}
+			if(startedFetchers == 0)
+				cycle.stopApplyStage();
+			for(int i = startedFetchers; i < fetchThreads; i++) {
+				cycle.fetchersStopped.countDown();
+			}
+		}
+
+		try {
+			applyStage.get();
+		} catch (ExecutionException ee) {
+			log.warn("The apply stage of the refresh failed", ee.getCause());
+		}
+		//the apply stage may have stopped first (interrupted, or an error): the fetchers then fail their pages
+		cycle.fetchersStopped.await();
+		cycle.failUnapplied();
+
+		cycle.mergeCounts();
+		Page failedPage = cycle.getFirstFailedPage();
+		if(null != failedPage)
+			checkpoint.rewind(failedPage.offset, failedPage.keyBefore);
+		else if(exhausted)
+			checkpoint.markComplete();
+	}
+
+	/*
+	 * Keys handed over from the search stage to the fetch stage, with where they start in the pass
+	 */
+	private static class Page {
+		private final List<Object> keys;
+		private final int offset;
+		private final Object keyBefore;
+		private final Map<Integer, Integer> countsPerPartition;
+
+		private Page(List<Object> keys, int offset, Object keyBefore, Map<Integer, Integer> countsPerPartition) {
+			this.keys = keys;
+			this.offset = offset;
+			this.keyBefore = keyBefore;
+			this.countsPerPartition = countsPerPartition;
+		}
+	}
+
+	/*
+	 * Elements fetched for a page, handed over from the fetch stage to the apply stage
+	 */
+	private static class Batch {
+		private final Page page;
+		private final Map<Object, Element> elements;
+
+		private Batch(Page page, Map<Object, Element> elements) {
+			this.page = page;
+			this.elements = elements;
+		}
+	}
+
+	/*
+	 * The queues and outcome of one refresh cycle
+	 */
+	private class Cycle {
+		private final Stages stages;
+		private final RefreshCheckpoint checkpoint;
+		private final BlockingQueue<Page> fetchQueue = new ArrayBlockingQueue<Page>(queueCapacity);
+		private final BlockingQueue<Batch> applyQueue = new ArrayBlockingQueue<Batch>(queueCapacity);
+		private final AtomicInteger runningFetchers = new AtomicInteger(fetchThreads);
+		private volatile boolean applyStopped = false;
+		private final CountDownLatch fetchersStopped = new CountDownLatch(fetchThreads);
+		private Page firstFailedPage = null;
+		//per partition counts of the pages fetched, by offset: only the pages before the first failed one count, the others are fetched again
+		private final TreeMap<Integer, Map<Integer, Integer>> fetchedCounts = new TreeMap<Integer, Map<Integer, Integer>>();
+
+		private Cycle(Stages stages, RefreshCheckpoint checkpoint) {
+			this.stages = stages;
+			this.checkpoint = checkpoint;
+		}
+
+		private synchronized void fetched(Page page) {
+			if(!page.countsPerPartition.isEmpty())
+				fetchedCounts.put(page.offset, page.countsPerPartition);
+		}
+
+		/*
+		 * Called once all the stages stopped: adds the counts of the pages that will not be fetched again to the pass
+		 */
+		private synchronized void mergeCounts() {
+			Map<Integer, Map<Integer, Integer>> settledCounts = (null == firstFailedPage) ? fetchedCounts : fetchedCounts.headMap(firstFailedPage.offset);
+			Map<Integer, Integer> passCounts = checkpoint.getCountsPerPartition();
+			for(Map<Integer, Integer> pageCounts : settledCounts.values()) {
+				for(Map.Entry<Integer, Integer> pageCount : pageCounts.entrySet()) {
+					Integer count = passCounts.get(pageCount.getKey());
+					passCounts.put(pageCount.getKey(), (null == count) ? pageCount.getValue() : count.intValue() + pageCount.getValue().intValue());
+				}
+			}
+			fetchedCounts.clear();
+		}
+
+		/*
+		 * Hands a page over to the fetch stage
+		 * @return false if no fetcher is left to take it
+		 */
+		private boolean handOver(Page page) throws InterruptedException {
+			while(!fetchQueue.offer(page, 100L, TimeUnit.MILLISECONDS)) {
+				if(runningFetchers.get() <= 0)
+					return false;
+			}
+			return true;
+		}
+
+		/*
+		 * Hands the end of stream to the apply stage, even on an interrupted thread, unless the apply stage already stopped
+		 */
+		private void stopApplyStage() {
+			boolean interrupted = Thread.interrupted();
+			try {
+				while(!applyStopped) {
+					try {
+						if(applyQueue.offer(NOMOREBATCHES, 100L, TimeUnit.MILLISECONDS))
+							return;
+					} catch (InterruptedException ie) {
+						interrupted = true;
+					}
+				}
+			} finally {
+				if(interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+
+		/*
+		 * Hands a batch over to the apply stage
+		 * @return false if the apply stage stopped
+		 */
+		private boolean handOver(Batch batch) throws InterruptedException {
+			while(!applyQueue.offer(batch, 100L, TimeUnit.MILLISECONDS)) {
+				if(applyStopped)
+					return false;
+			}
+			return true;
+		}
+
+		/*
+		 * Called once all the stages stopped: fails the pages of the batches left over by an apply stage that stopped first
+		 */
+		private void failUnapplied() {
+			Batch batch;
+			while(null != (batch = applyQueue.poll())) {
+				if(batch != NOMOREBATCHES)
+					failed(batch.page);
+			}
+		}
+
+		private synchronized void failed(Page page) {
+			if(null == firstFailedPage || page.offset < firstFailedPage.offset)
+				firstFailedPage = page;
+		}
+
+		private synchronized boolean hasFailed() {
+			return null != firstFailedPage;
+		}
+
+		private synchronized Page getFirstFailedPage() {
+			return firstFailedPage;
+		}
+	}
+
+	private class FetchStage implements Runnable {
+		private final Cycle cycle;
+
+		public FetchStage(Cycle cycle) {
+			this.cycle = cycle;
+		}
+
+		public void run() {
+			Page page = null;
+			try {
+				while((page = cycle.fetchQueue.take()) != NOMOREPAGES) {
+					//once a page failed, the pages after it are left for the next cycle
+					if(cycle.hasFailed()) {
+						page = null;
+						continue;
+					}
+
+					Map<Object, Element> elements = null;
+					try {
+						elements = cycle.stages.fetch(page.keys);
+					} catch (Exception e) {
+						log.warn(String.format("Could not fetch a page of %d keys - keeping their local copies", page.keys.size()), e);
+					}
+					if(null == elements) {
+						failedPageCount.incrementAndGet();
+						cycle.failed(page);
+					} else {
+						cycle.fetched(page);
+						if(!cycle.handOver(new Batch(page, elements)))
+							cycle.failed(page);
+					}
+					page = null;
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} finally {
+				//a fetcher stopped before the end of the stream (interrupted, or an error) fails its page, so that the next cycle retries it
+				if(null != page && page != NOMOREPAGES)
+					cycle.failed(page);
+				//the last fetcher to stop stops the apply stage, whatever made it stop
+				if(cycle.runningFetchers.decrementAndGet() == 0)
+					cycle.stopApplyStage();
+				cycle.fetchersStopped.countDown();
+			}
+		}
+	}
+
+	private class ApplyStage implements Runnable {
+		private final Cycle cycle;
+
+		public ApplyStage(Cycle cycle) {
+			this.cycle = cycle;
+		}
+
+		public void run() {
+			try {
+				Batch batch;
+				while((batch = cycle.applyQueue.take()) != NOMOREBATCHES) {
+					try {
+						cycle.stages.apply(batch.elements);
+						appliedCount.addAndGet(batch.elements.size());
+					} catch (Throwable t) {
+						//the next cycle applies that page again
+						log.warn(String.format("Could not apply a batch of %d refreshed entries", batch.elements.size()), t);
+						failedPageCount.incrementAndGet();
+						cycle.failed(batch.page);
+					}
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} finally {
+				cycle.applyStopped = true;
+			}
+		}
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public long getPageCount() {
+		return pageCount.get();
+	}
+
+	public long getFailedPageCount() {
+		return failedPageCount.get();
+	}
+
+	public long getAppliedCount() {
+		return appliedCount.get();
+	}
+
+	/*
+	 * @return how many cycles stopped on their budget, to be resumed by the next one
+	 */
+	public long getYieldCount() {
+		return yieldCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RefreshPipeline [pageSize=%d, fetchThreads=%d, queueCapacity=%d, cycleBudget=%d ms, resumeMode=%s, pages=%d, failedPages=%d, applied=%d, yields=%d]",
+				pageSize, fetchThreads, queueCapacity, cycleBudgetMillis, resumeMode, pageCount.get(), failedPageCount.get(), appliedCount.get(), yieldCount.get());
+	}
+}
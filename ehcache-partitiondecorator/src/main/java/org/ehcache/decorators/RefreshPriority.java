@@ -0,0 +1,147 @@
+package org.ehcache.decorators;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Tracks how often the keys are read through the decorator, so that the hottest keys are refreshed first.
+ * Reads are counted in a frequency sketch (fixed memory, no per-key object), and up to twice refreshHotKeysMax recently read keys are kept as candidates.
+ * When the hot set is refreshed, the candidates are ranked by estimated frequency: the top refreshHotKeysMax are refreshed hottest-first, the others are forgotten.
+ * The hot set is refreshed ahead of each refresh pass, or every refreshHotIntervalInMilliSeconds if set, while the long tail keeps the refresh interval.
+ * The sketch is halved every refreshFrequencyHalfLifeInMilliSeconds, so that the hot set follows the working set as it shifts.
+ * Disabled unless refreshHotKeysMax is set.
+ */
+public class RefreshPriority {
+	public static final String PROPNAME_HOTKEYSMAX = "refreshHotKeysMax";
+	public static final String PROPNAME_HOTINTERVAL = "refreshHotIntervalInMilliSeconds";
+	public static final String PROPNAME_HALFLIFE = "refreshFrequencyHalfLifeInMilliSeconds";
+	private static final long HALFLIFEDEFAULT = 60000L;
+	//the sketch also counts the long tail, so it is sized well above the hot set to keep cold keys from colliding with hot ones
+	private static final int SKETCHMINKEYS = 16384;
+
+	private final int maxHotKeys;
+	private final long hotIntervalMillis;
+	private final long halfLifeMillis;
+	private final FrequencySketch sketch;
+	private final ConcurrentMap<Object, Boolean> candidates = new ConcurrentHashMap<Object, Boolean>();
+	//size of the candidates, not worth a ConcurrentHashMap#size() on every read
+	private final AtomicInteger candidateCount = new AtomicInteger(0);
+
+	private volatile int hotSetSize = 0;
+	private final AtomicLong hotRefreshCount = new AtomicLong(0L);
+	private final AtomicLong hotKeysRefreshedCount = new AtomicLong(0L);
+
+	public RefreshPriority(Properties properties) {
+		this.maxHotKeys = PropertyUtils.getIntProperty(properties, PROPNAME_HOTKEYSMAX, 0, 0);
+		this.hotIntervalMillis = PropertyUtils.getLongProperty(properties, PROPNAME_HOTINTERVAL, 0L, 0L);
+		this.halfLifeMillis = PropertyUtils.getLongProperty(properties, PROPNAME_HALFLIFE, HALFLIFEDEFAULT, 1L);
+		this.sketch = (maxHotKeys > 0) ? new FrequencySketch(Math.max(SKETCHMINKEYS, maxHotKeys * 4)) : null;
+	}
+
+	public boolean isEnabled() {
+		return maxHotKeys > 0;
+	}
+
+	/*
+	 * @return how often the hot set is refreshed, or 0 to refresh it ahead of each refresh pass
+	 */
+	public long getHotIntervalMillis() {
+		return hotIntervalMillis;
+	}
+
+	public long getHalfLifeMillis() {
+		return halfLifeMillis;
+	}
+
+	/*
+	 * Called on every read: counts the access and remembers the key as a candidate while there is room
+	 */
+	public void recordAccess(Object key) {
+		sketch.increment(key);
+		if(candidateCount.get() < 2 * maxHotKeys && !candidates.containsKey(key) && null == candidates.putIfAbsent(key, Boolean.TRUE))
+			candidateCount.incrementAndGet();
+	}
+
+	/*
+	 * Ranks the candidates and keeps the top refreshHotKeysMax (the keys not read since the sketch was last halved down to 0 are dropped)
+	 * @return the hot keys, hottest first
+	 */
+	public List<Object> rankHotKeys() {
+		final Map<Object, Integer> frequencies = new HashMap<Object, Integer>(candidateCount.get() * 2);
+		for(Object key : candidates.keySet()) {
+			int frequency = sketch.frequency(key);
+			if(frequency > 0)
+				frequencies.put(key, frequency);
+			else
+				removeCandidate(key);
+		}
+
+		List<Object> ranked = new ArrayList<Object>(frequencies.keySet());
+		Collections.sort(ranked, new Comparator<Object>() {
+			public int compare(Object k1, Object k2) {
+				return frequencies.get(k2).compareTo(frequencies.get(k1));
+			}
+		});
+
+		//make room for new candidates
+		if(ranked.size() > maxHotKeys) {
+			for(Object key : ranked.subList(maxHotKeys, ranked.size())) {
+				removeCandidate(key);
+			}
+			ranked = new ArrayList<Object>(ranked.subList(0, maxHotKeys));
+		}
+		hotSetSize = ranked.size();
+		return ranked;
+	}
+
+	private void removeCandidate(Object key) {
+		if(null != candidates.remove(key))
+			candidateCount.decrementAndGet();
+	}
+
+	/*
+	 * Ages the counts, so that keys that stopped being read fall out of the hot set
+	 */
+	public void age() {
+		sketch.halve();
+	}
+
+	public void recordHotRefresh(int refreshedKeys) {
+		hotRefreshCount.incrementAndGet();
+		hotKeysRefreshedCount.addAndGet(refreshedKeys);
+	}
+
+	/*
+	 * @return the estimated number of reads of that key, halved every half-life
+	 */
+	public int getFrequency(Object key) {
+		return isEnabled() ? sketch.frequency(key) : 0;
+	}
+
+	public int getHotSetSize() {
+		return hotSetSize;
+	}
+
+	public long getHotRefreshCount() {
+		return hotRefreshCount.get();
+	}
+
+	public long getHotKeysRefreshedCount() {
+		return hotKeysRefreshedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RefreshPriority [maxHotKeys=%d, hotInterval=%d ms, hotSet=%d, candidates=%d, hotRefreshes=%d, hotKeysRefreshed=%d]",
+				maxHotKeys, hotIntervalMillis, hotSetSize, candidateCount.get(), getHotRefreshCount(), getHotKeysRefreshedCount());
+	}
+}
@@ -0,0 +1,13 @@
+package org.ehcache.decorators;
+
+/*
+ * Transforms the values fetched from the delegated cache into the (smaller) representation kept in the local tier and served by get, configured with refreshProjectionClass.
+ * Implementations need a public no-arg constructor, and must be thread-safe.
+ * With partitionType=VALUE, the projected values must still implement CachePartitionable, so that the entries of released partitions can be dropped.
+ */
+public interface RefreshProjection {
+	/*
+	 * @return what to keep locally for that key and value fetched from the delegated cache
+	 */
+	Object project(Object key, Object value);
+}
@@ -0,0 +1,45 @@
+package org.ehcache.decorators;
+
+/*
+ * Outcome of an on-demand refresh: how many entries were refreshed, when it started and how long it took
+ */
+public class RefreshResult {
+	private final String refreshed;
+	private final long entryCount;
+	private final long startTime;
+	private final long durationMillis;
+
+	public RefreshResult(String refreshed, long entryCount, long startTime, long durationMillis) {
+		this.refreshed = refreshed;
+		this.entryCount = entryCount;
+		this.startTime = startTime;
+		this.durationMillis = durationMillis;
+	}
+
+	/*
+	 * @return what was refreshed, e.g. "partitions [0, 4]" or "12 keys"
+	 */
+	public String getRefreshed() {
+		return refreshed;
+	}
+
+	/*
+	 * @return the number of entries found in the delegated cache and refreshed (for keys: including the keys found removed)
+	 */
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Refreshed %d entries of %s in %d ms", entryCount, refreshed, durationMillis);
+	}
+}
@@ -0,0 +1,245 @@
+package org.ehcache.decorators;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.ehcache.search.Attribute;
+import net.sf.ehcache.search.expression.Criteria;
+
+/*
+ * The shards in which the refresh of the owned partitions is split when the delegated cache has a subPartitionId search attribute:
+ * one unit per owned partition and sub-partition, each with its own schedule, entry count and failures,
+ * so that the cost of refreshing a unit does not grow with the partition, and a failed unit does not hold back the others.
+ * The first refresh of the units is spread over the refresh interval; the units of partitions acquired later are due straight away.
+ */
+public class RefreshUnits {
+	private final OwnedPartitions partitions;
+	private final RefreshUnit[] units;
+	//units are claimed round-robin from the cursor, so that a unit is not starved when only a few can be in flight
+	private int cursor = 0;
+
+	public RefreshUnits(OwnedPartitions partitions, int subPartitionCount, long refreshInterval, RefreshPipeline refreshPipeline, RefreshUnits previous) {
+		this.partitions = partitions;
+
+		Map<Long, RefreshUnit> previousUnits = new HashMap<Long, RefreshUnit>();
+		if(null != previous) {
+			for(RefreshUnit unit : previous.units) {
+				previousUnits.put(unit.id(), unit);
+			}
+		}
+
+		int[] partitionIds = partitions.getPartitionIds();
+		long now = System.currentTimeMillis();
+		units = new RefreshUnit[partitionIds.length * subPartitionCount];
+		int i = 0;
+		for(int partitionId : partitionIds) {
+			for(int subPartitionId = 0; subPartitionId < subPartitionCount; subPartitionId++) {
+				RefreshUnit unit = previousUnits.get(RefreshUnit.id(partitionId, subPartitionId));
+				if(null == unit) {
+					long firstRefreshTime = (null == previous) ? now + i * refreshInterval / units.length : now;
+					unit = new RefreshUnit(partitionId, subPartitionId, refreshInterval, firstRefreshTime, refreshPipeline.newCheckpoint());
+				}
+				units[i++] = unit;
+			}
+		}
+	}
+
+	public OwnedPartitions getPartitions() {
+		return partitions;
+	}
+
+	/*
+	 * Marks as in flight the units due at that time, as long as there are less than maxInFlight units in flight
+	 * @return the claimed units, to be refreshed then completed or failed
+	 */
+	public synchronized List<RefreshUnit> claimDueUnits(long now, int maxInFlight) {
+		int inFlight = 0;
+		for(RefreshUnit unit : units) {
+			if(unit.isInFlight())
+				inFlight++;
+		}
+
+		List<RefreshUnit> claimed = new ArrayList<RefreshUnit>();
+		int start = cursor;
+		for(int i = 0; i < units.length && inFlight < maxInFlight; i++) {
+			int index = (start + i) % units.length;
+			if(units[index].claimIfDue(now)) {
+				claimed.add(units[index]);
+				inFlight++;
+				cursor = index + 1;
+			}
+		}
+		return claimed;
+	}
+
+	/*
+	 * @return the number of entries found in that partition, summed over the last refresh of each of its units
+	 */
+	public long getEntryCount(int partitionId) {
+		long count = 0;
+		for(RefreshUnit unit : units) {
+			if(unit.getPartitionId() == partitionId)
+				count += unit.getEntryCount();
+		}
+		return count;
+	}
+
+	/*
+	 * @return the time as of which the whole partition was refreshed, i.e. the oldest refresh of its units (0 if one was never refreshed)
+	 */
+	public long getLastRefreshTime(int partitionId) {
+		long oldest = Long.MAX_VALUE;
+		for(RefreshUnit unit : units) {
+			if(unit.getPartitionId() == partitionId)
+				oldest = Math.min(oldest, unit.getLastRefreshTime());
+		}
+		return (oldest == Long.MAX_VALUE) ? 0L : oldest;
+	}
+
+	public long getFailureCount() {
+		long failures = 0;
+		for(RefreshUnit unit : units) {
+			failures += unit.getFailureCount();
+		}
+		return failures;
+	}
+
+	@Override
+	public String toString() {
+		int inFlight = 0;
+		int failing = 0;
+		for(RefreshUnit unit : units) {
+			if(unit.isInFlight())
+				inFlight++;
+			if(unit.getConsecutiveFailures() > 0)
+				failing++;
+		}
+		return String.format("RefreshUnits [units=%d, inFlight=%d, failing=%d, failures=%d]", units.length, inFlight, failing, getFailureCount());
+	}
+
+	/*
+	 * A partition / sub-partition pair, refreshed on its own schedule
+	 */
+	public static class RefreshUnit {
+		private final int partitionId;
+		private final int subPartitionId;
+		private final long refreshInterval;
+		private final RefreshCheckpoint checkpoint;
+		private boolean inFlight = false;
+		private long nextRefreshTime;
+		private long entryCount = 0;
+		private long lastRefreshTime = 0;
+		private long lastDuration = 0;
+		private int consecutiveFailures = 0;
+		private long failureCount = 0;
+
+		private RefreshUnit(int partitionId, int subPartitionId, long refreshInterval, long firstRefreshTime, RefreshCheckpoint checkpoint) {
+			this.partitionId = partitionId;
+			this.subPartitionId = subPartitionId;
+			this.refreshInterval = refreshInterval;
+			this.nextRefreshTime = firstRefreshTime;
+			this.checkpoint = checkpoint;
+		}
+
+		private static long id(int partitionId, int subPartitionId) {
+			return ((long)partitionId << 32) | (subPartitionId & 0xffffffffL);
+		}
+
+		private long id() {
+			return id(partitionId, subPartitionId);
+		}
+
+		public int getPartitionId() {
+			return partitionId;
+		}
+
+		public int getSubPartitionId() {
+			return subPartitionId;
+		}
+
+		/*
+		 * @return the progress of the current refresh pass of this unit, only used by the refresh holding the claim
+		 */
+		public RefreshCheckpoint getCheckpoint() {
+			return checkpoint;
+		}
+
+		public Criteria toCriteria(Attribute<Integer> partitionAttribute, Attribute<Integer> subPartitionAttribute) {
+			return partitionAttribute.eq(partitionId).and(subPartitionAttribute.eq(subPartitionId));
+		}
+
+		private synchronized boolean claimIfDue(long now) {
+			if(inFlight || nextRefreshTime > now)
+				return false;
+			inFlight = true;
+			return true;
+		}
+
+		/*
+		 * Gives a claimed unit back without refreshing it, e.g. when it could not be scheduled
+		 */
+		public synchronized void release() {
+			inFlight = false;
+		}
+
+		/*
+		 * The next refresh is due one interval after the start of this one
+		 */
+		public synchronized void completed(long entryCount, long startTime) {
+			this.entryCount = entryCount;
+			this.lastRefreshTime = startTime;
+			this.lastDuration = System.currentTimeMillis() - startTime;
+			this.nextRefreshTime = startTime + refreshInterval;
+			this.consecutiveFailures = 0;
+			this.inFlight = false;
+		}
+
+		/*
+		 * The refresh stopped on its cycle budget: the unit stays due, to resume its pass on the next claim
+		 */
+		public synchronized void yielded() {
+			this.inFlight = false;
+		}
+
+		/*
+		 * A failed unit keeps its previous entries and counts, and is retried on the next interval
+		 */
+		public synchronized void failed(long startTime) {
+			this.nextRefreshTime = startTime + refreshInterval;
+			this.consecutiveFailures++;
+			this.failureCount++;
+			this.inFlight = false;
+		}
+
+		public synchronized boolean isInFlight() {
+			return inFlight;
+		}
+
+		public synchronized long getEntryCount() {
+			return entryCount;
+		}
+
+		public synchronized long getLastRefreshTime() {
+			return lastRefreshTime;
+		}
+
+		public synchronized long getLastDuration() {
+			return lastDuration;
+		}
+
+		public synchronized int getConsecutiveFailures() {
+			return consecutiveFailures;
+		}
+
+		public synchronized long getFailureCount() {
+			return failureCount;
+		}
+
+		@Override
+		public String toString() {
+			return partitionId + "/" + subPartitionId;
+		}
+	}
+}
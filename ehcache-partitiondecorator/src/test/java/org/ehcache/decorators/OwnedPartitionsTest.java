@@ -0,0 +1,129 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.search.Attribute;
+import net.sf.ehcache.search.expression.Between;
+import net.sf.ehcache.search.expression.EqualTo;
+import net.sf.ehcache.search.expression.InCollection;
+
+import org.junit.Test;
+
+public class OwnedPartitionsTest {
+
+	@Test
+	public void singleId() {
+		OwnedPartitions owned = new OwnedPartitions("4");
+		assertArrayEquals(new int[] { 4 }, owned.getPartitionIds());
+		assertTrue(owned.contains(4));
+		assertFalse(owned.contains(3));
+	}
+
+	@Test
+	public void listsWithEitherSeparator() {
+		assertArrayEquals(new int[] { 0, 4, 8 }, new OwnedPartitions("0;4;8").getPartitionIds());
+		assertArrayEquals(new int[] { 0, 4, 8 }, new OwnedPartitions("0,4,8").getPartitionIds());
+		assertArrayEquals(new int[] { 0, 4, 8 }, new OwnedPartitions(" 8 ; 0,4 ;").getPartitionIds());
+	}
+
+	@Test
+	public void rangesAndDuplicates() {
+		assertArrayEquals(new int[] { 0, 1, 2, 3 }, new OwnedPartitions("0-3").getPartitionIds());
+		assertArrayEquals(new int[] { 0, 1, 2, 3, 7, 10, 11 }, new OwnedPartitions("7;0-3;10 - 11;2").getPartitionIds());
+		assertArrayEquals(new int[] { 5 }, new OwnedPartitions("5-5").getPartitionIds());
+		assertEquals(7, new OwnedPartitions("7;0-3;10-11;2").size());
+	}
+
+	@Test(expected = CacheException.class)
+	public void emptyRange() {
+		new OwnedPartitions("3-1");
+	}
+
+	@Test(expected = CacheException.class)
+	public void negativeId() {
+		new OwnedPartitions("-1");
+	}
+
+	@Test(expected = CacheException.class)
+	public void invalidToken() {
+		new OwnedPartitions("0;x");
+	}
+
+	@Test(expected = CacheException.class)
+	public void invalidRange() {
+		new OwnedPartitions("0-");
+	}
+
+	@Test(expected = CacheException.class)
+	public void nullValue() {
+		new OwnedPartitions(null);
+	}
+
+	@Test(expected = CacheException.class)
+	public void onlySeparators() {
+		new OwnedPartitions(" ; , ");
+	}
+
+	@Test
+	public void criteria() {
+		Attribute<Integer> partition = new Attribute<Integer>("partition");
+		assertTrue(new OwnedPartitions("4").toCriteria(partition) instanceof EqualTo);
+		assertTrue(new OwnedPartitions("2-5").toCriteria(partition) instanceof Between);
+		assertTrue(new OwnedPartitions("2;4").toCriteria(partition) instanceof InCollection);
+	}
+
+	@Test
+	public void refreshCounts() {
+		OwnedPartitions owned = new OwnedPartitions("0-2");
+		Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		counts.put(0, 10);
+		counts.put(2, 30);
+		counts.put(5, 50);
+		owned.recordRefresh(new int[] { 0, 1, 2, 5 }, counts, 1000L);
+
+		assertEquals(10L, owned.getEntryCount(0));
+		assertEquals(0L, owned.getEntryCount(1));
+		assertEquals(30L, owned.getEntryCount(2));
+		assertEquals(-1L, owned.getEntryCount(5));
+		assertEquals(40L, owned.getTotalEntryCount());
+		assertEquals(1000L, owned.getLastRefreshTime(1));
+		assertEquals(-1L, owned.getLastRefreshTime(5));
+
+		//only the refreshed partitions are updated
+		counts.clear();
+		counts.put(0, 12);
+		owned.recordRefresh(new int[] { 0 }, counts, 2000L);
+		assertEquals(12L, owned.getEntryCount(0));
+		assertEquals(2000L, owned.getLastRefreshTime(0));
+		assertEquals(30L, owned.getEntryCount(2));
+		assertEquals(1000L, owned.getLastRefreshTime(2));
+	}
+
+	@Test
+	public void reassignmentKeepsTheCountsOfKeptPartitions() {
+		OwnedPartitions previous = new OwnedPartitions("0-2");
+		Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		counts.put(0, 10);
+		counts.put(1, 20);
+		counts.put(2, 30);
+		previous.recordRefresh(new int[] { 0, 1, 2 }, counts, 1000L);
+
+		OwnedPartitions owned = new OwnedPartitions(new int[] { 3, 1 }, previous);
+		assertArrayEquals(new int[] { 1, 3 }, owned.getPartitionIds());
+		assertEquals(20L, owned.getEntryCount(1));
+		assertEquals(1000L, owned.getLastRefreshTime(1));
+		assertEquals(0L, owned.getEntryCount(3));
+		assertEquals(0L, owned.getLastRefreshTime(3));
+		assertEquals(-1L, owned.getEntryCount(0));
+		assertEquals(20L, owned.getTotalEntryCount());
+
+		assertTrue(new OwnedPartitions(new int[0], owned).isEmpty());
+	}
+}
@@ -0,0 +1,106 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PartitionHashingTest {
+	private static final long SEED = 0x5bd1e995L;
+	private static final int KEYS = 20000;
+
+	@Test
+	public void partitionsStayWithinBounds() {
+		for(int partitionCount = 1; partitionCount <= 64; partitionCount++) {
+			for(int i = 0; i < 1000; i++) {
+				int partition = PartitionHashing.partitionOf("key" + i, partitionCount, SEED);
+				assertTrue("partition " + partition + " of " + partitionCount, partition >= 0 && partition < partitionCount);
+			}
+		}
+	}
+
+	@Test
+	public void singlePartitionTakesAllKeys() {
+		for(int i = 0; i < 1000; i++) {
+			assertEquals(0, PartitionHashing.partitionOf(Long.valueOf(i), 1, SEED));
+		}
+	}
+
+	@Test
+	public void addingAPartitionOnlyMovesKeysToIt() {
+		for(int partitionCount = 1; partitionCount < 16; partitionCount++) {
+			int moved = 0;
+			for(int i = 0; i < KEYS; i++) {
+				String key = "key" + i;
+				int before = PartitionHashing.partitionOf(key, partitionCount, SEED);
+				int after = PartitionHashing.partitionOf(key, partitionCount + 1, SEED);
+				if(before != after) {
+					assertEquals("key " + key + " moved to an existing partition", partitionCount, after);
+					moved++;
+				}
+			}
+
+			//about 1/(n+1) of the keys move to the new partition
+			double expected = (double)KEYS / (partitionCount + 1);
+			assertTrue(String.format("%d keys moved from %d to %d partitions, expected about %.0f", moved, partitionCount, partitionCount + 1, expected),
+					Math.abs(moved - expected) < 0.1 * expected);
+		}
+	}
+
+	@Test
+	public void keysSpreadEvenly() {
+		int partitionCount = 10;
+		int[] counts = new int[partitionCount];
+		for(int i = 0; i < KEYS; i++) {
+			counts[PartitionHashing.partitionOf(Integer.valueOf(i), partitionCount, SEED)]++;
+		}
+		for(int count : counts) {
+			assertTrue("partition with " + count + " keys out of " + KEYS, Math.abs(count - KEYS / partitionCount) < 0.1 * KEYS / partitionCount);
+		}
+	}
+
+	@Test
+	public void integralKeysHashTheSameWhateverTheirType() {
+		for(int i = -1000; i < 1000; i++) {
+			long expected = PartitionHashing.hash64(Long.valueOf(i), SEED);
+			assertEquals(expected, PartitionHashing.hash64(Integer.valueOf(i), SEED));
+			assertEquals(PartitionHashing.partitionOf(Long.valueOf(i), 7, SEED), PartitionHashing.partitionOf(Integer.valueOf(i), 7, SEED));
+		}
+		assertEquals(PartitionHashing.hash64(Long.valueOf(42), SEED), PartitionHashing.hash64(Short.valueOf((short)42), SEED));
+		assertEquals(PartitionHashing.hash64(Long.valueOf(42), SEED), PartitionHashing.hash64(Byte.valueOf((byte)42), SEED));
+	}
+
+	@Test
+	public void seedChangesThePartitions() {
+		int different = 0;
+		for(int i = 0; i < 1000; i++) {
+			if(PartitionHashing.partitionOf("key" + i, 8, SEED) != PartitionHashing.partitionOf("key" + i, 8, SEED + 1))
+				different++;
+		}
+		assertTrue(different + " keys changed partition with another seed", different > 500);
+	}
+
+	@Test
+	public void hashesOfKnownKeys() {
+		//reference MurmurHash64A of the UTF-16LE chars, the little-endian long, or the bytes
+		assertEquals(4407351403150422992L, PartitionHashing.hash64("key", SEED));
+		assertEquals(-4663294938044969674L, PartitionHashing.hash64("partition-42", SEED));
+		assertEquals(-6103437707085887967L, PartitionHashing.hash64("", SEED));
+		assertEquals(2379492399074591642L, PartitionHashing.hash64(Long.valueOf(42), SEED));
+		assertEquals(4770695880454116487L, PartitionHashing.hash64(Long.valueOf(-1), SEED));
+		assertEquals(-3554532191145006130L, PartitionHashing.hash64(new byte[] { 1, 2, 3 }, SEED));
+		assertEquals(-8361889890781324597L, PartitionHashing.hash64(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, SEED));
+	}
+
+	@Test
+	public void partitionsOfKnownKeys() {
+		assertEquals(839, PartitionHashing.jumpConsistentHash(4407351403150422992L, 1000));
+		assertEquals(9, PartitionHashing.partitionOf("key", 10, SEED));
+		assertEquals(362, PartitionHashing.partitionOf("partition-42", 1000, SEED));
+		assertEquals(5, PartitionHashing.partitionOf(Long.valueOf(42), 10, SEED));
+		assertEquals(301, PartitionHashing.partitionOf(Long.valueOf(42), 1000, SEED));
+		assertEquals(1, PartitionHashing.partitionOf(new byte[] { 1, 2, 3 }, 2, SEED));
+		assertEquals(952, PartitionHashing.partitionOf(new byte[] { 1, 2, 3 }, 1000, SEED));
+		assertEquals(411, PartitionHashing.partitionOf(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, 1000, SEED));
+	}
+}
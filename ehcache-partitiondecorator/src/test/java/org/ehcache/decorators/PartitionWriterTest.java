@@ -0,0 +1,225 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.constructs.EhcacheDecoratorAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PartitionWriterTest {
+	private CacheManager cacheManager;
+	private Cache delegatedCache;
+	private FailingCache failingCache;
+	private ExecutorService flushService;
+
+	@Before
+	public void setUp() {
+		Configuration configuration = new Configuration().name("PartitionWriterTest");
+		configuration.setUpdateCheck(false);
+		cacheManager = new CacheManager(configuration);
+		delegatedCache = new Cache(new CacheConfiguration("delegated", 10000));
+		cacheManager.addCache(delegatedCache);
+		failingCache = new FailingCache(delegatedCache);
+		flushService = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		flushService.shutdownNow();
+		cacheManager.shutdown();
+	}
+
+	/*
+	 * A write-behind writer that only flushes when told to
+	 */
+	private PartitionWriter newWriter(int batchSize, int maxPending) {
+		Properties properties = new Properties();
+		properties.setProperty(PartitionWriter.PROPNAME_WRITEMODE, "write_behind");
+		properties.setProperty(PartitionWriter.PROPNAME_WRITEBEHINDBATCHSIZE, String.valueOf(batchSize));
+		properties.setProperty(PartitionWriter.PROPNAME_WRITEBEHINDMAXPENDING, String.valueOf(maxPending));
+		PartitionWriter writer = new PartitionWriter(properties, flushService);
+		writer.setDelegatedCache(failingCache);
+		return writer;
+	}
+
+	@Test
+	public void writeModes() {
+		assertEquals(PartitionWriter.WriteMode.READ_ONLY, new PartitionWriter(new Properties(), flushService).getWriteMode());
+		assertTrue(newWriter(10, 100).isWriteBehind());
+
+		Properties properties = new Properties();
+		properties.setProperty(PartitionWriter.PROPNAME_WRITEMODE, "sometimes");
+		assertEquals(PartitionWriter.WriteMode.READ_ONLY, new PartitionWriter(properties, flushService).getWriteMode());
+	}
+
+	@Test
+	public void writesOfAKeyAreCoalesced() {
+		PartitionWriter writer = newWriter(100, 1000);
+		writer.put(new Element("a", "1"));
+		writer.put(new Element("a", "2"));
+		writer.put(new Element("a", "3"));
+		writer.put(new Element("b", "1"));
+		writer.remove("b");
+		delegatedCache.put(new Element("c", "1"));
+		writer.remove("c");
+
+		assertEquals(6, writer.getWriteCount());
+		assertEquals(3, writer.getPendingCount());
+		assertTrue(writer.isPending("a"));
+		assertEquals("3", writer.getPendingElement("a").getObjectValue());
+		assertTrue(writer.isPending("b"));
+		assertNull(writer.getPendingElement("b"));
+		assertEquals(3, writer.getPendingKeys().size());
+		assertNull(delegatedCache.get("a"));
+
+		writer.flush();
+		assertEquals(0, writer.getPendingCount());
+		assertFalse(writer.isPending("a"));
+		assertEquals("3", delegatedCache.get("a").getObjectValue());
+		assertNull(delegatedCache.get("b"));
+		assertNull(delegatedCache.get("c"));
+		assertEquals(3, writer.getFlushedCount());
+		//one batch of puts, one of removes
+		assertEquals(2, writer.getBatchCount());
+	}
+
+	@Test
+	public void flushesInBatches() {
+		PartitionWriter writer = newWriter(10, 1000);
+		for(int i = 0; i < 25; i++) {
+			writer.put(new Element(i, i));
+		}
+		writer.flush();
+		assertEquals(25, writer.getFlushedCount());
+		assertEquals(3, writer.getBatchCount());
+		assertEquals(25, delegatedCache.getSize());
+	}
+
+	@Test
+	public void writersFlushThemselvesPastMaxPending() {
+		PartitionWriter writer = newWriter(1000, 5);
+		for(int i = 0; i < 5; i++) {
+			writer.put(new Element(i, i));
+		}
+		assertEquals(0, writer.getPendingCount());
+		assertEquals(5, delegatedCache.getSize());
+	}
+
+	@Test
+	public void failedBatchIsQueuedAgain() {
+		PartitionWriter writer = newWriter(100, 1000);
+		writer.put(new Element("a", "1"));
+		writer.remove("b");
+
+		failingCache.failing = true;
+		writer.flush();
+		assertEquals(2, writer.getFailedFlushCount());
+		assertEquals(0, writer.getFlushedCount());
+		assertEquals(2, writer.getPendingCount());
+		assertTrue(writer.isPending("a"));
+		assertTrue(writer.isPending("b"));
+
+		failingCache.failing = false;
+		writer.flush();
+		assertEquals(2, writer.getFlushedCount());
+		assertEquals(0, writer.getPendingCount());
+		assertEquals("1", delegatedCache.get("a").getObjectValue());
+	}
+
+	@Test
+	public void failedBatchDoesNotOverwriteANewerWrite() {
+		final PartitionWriter writer = newWriter(100, 1000);
+		writer.put(new Element("a", "1"));
+
+		//the key is written again while its batch is being flushed
+		failingCache.failing = true;
+		failingCache.onPutAll = new Runnable() {
+			public void run() {
+				writer.put(new Element("a", "2"));
+			}
+		};
+		writer.flush();
+		assertEquals("2", writer.getPendingElement("a").getObjectValue());
+
+		failingCache.failing = false;
+		failingCache.onPutAll = null;
+		writer.flush();
+		assertEquals("2", delegatedCache.get("a").getObjectValue());
+	}
+
+	@Test
+	public void writeStamps() {
+		PartitionWriter writer = newWriter(100, 1000);
+		//Integer keys 1 and 2 are on different stripes
+		long stamp = writer.getWriteStamp();
+		assertFalse(writer.isWrittenSince(1, stamp));
+
+		writer.recordWrite(1);
+		assertTrue(writer.isWrittenSince(1, stamp));
+		assertFalse(writer.isWrittenSince(2, stamp));
+		assertFalse(writer.isWrittenSince(1, writer.getWriteStamp()));
+	}
+
+	@Test
+	public void flushStampsTheWrittenKeys() {
+		PartitionWriter writer = newWriter(100, 1000);
+		writer.put(new Element(1, "1"));
+		writer.remove(2);
+
+		long stamp = writer.getWriteStamp();
+		failingCache.failing = true;
+		writer.flush();
+		assertFalse(writer.isWrittenSince(1, stamp));
+		assertFalse(writer.isWrittenSince(2, stamp));
+
+		failingCache.failing = false;
+		writer.flush();
+		assertTrue(writer.isWrittenSince(1, stamp));
+		assertTrue(writer.isWrittenSince(2, stamp));
+	}
+
+	/*
+	 * Fails the bulk writes on demand
+	 */
+	private static class FailingCache extends EhcacheDecoratorAdapter {
+		private volatile boolean failing = false;
+		private volatile Runnable onPutAll = null;
+
+		public FailingCache(Cache underlyingCache) {
+			super(underlyingCache);
+		}
+
+		@Override
+		public void putAll(Collection<Element> elements) throws CacheException {
+			if(null != onPutAll)
+				onPutAll.run();
+			if(failing)
+				throw new CacheException("Could not put " + Arrays.toString(elements.toArray()));
+			super.putAll(elements);
+		}
+
+		@Override
+		public void removeAll(Collection<?> keys) throws IllegalStateException {
+			if(failing)
+				throw new CacheException("Could not remove " + keys);
+			super.removeAll(keys);
+		}
+	}
+}
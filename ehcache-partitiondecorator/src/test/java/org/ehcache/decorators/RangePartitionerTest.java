@@ -0,0 +1,122 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import net.sf.ehcache.config.InvalidConfigurationException;
+
+import org.junit.Test;
+
+public class RangePartitionerTest {
+
+	@Test
+	public void numericBoundaries() {
+		RangePartitioner partitioner = new RangePartitioner("10;20;30");
+		assertEquals(4, partitioner.getPartitionCount());
+
+		assertEquals(0, partitioner.partitionOf(Long.MIN_VALUE));
+		assertEquals(0, partitioner.partitionOf(9L));
+		assertEquals(1, partitioner.partitionOf(10L));
+		assertEquals(1, partitioner.partitionOf(19L));
+		assertEquals(2, partitioner.partitionOf(20L));
+		assertEquals(2, partitioner.partitionOf(29L));
+		assertEquals(3, partitioner.partitionOf(30L));
+		assertEquals(3, partitioner.partitionOf(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void integralKeysOfAnyType() {
+		RangePartitioner partitioner = new RangePartitioner("10;20;30");
+		assertEquals(1, partitioner.partitionOf(Integer.valueOf(10)));
+		assertEquals(2, partitioner.partitionOf(Short.valueOf((short)25)));
+		assertEquals(0, partitioner.partitionOf(Byte.valueOf((byte)-1)));
+	}
+
+	@Test
+	public void negativeSplitPoints() {
+		RangePartitioner partitioner = new RangePartitioner(" -100 ; 0 ");
+		assertEquals(0, partitioner.partitionOf(-101L));
+		assertEquals(1, partitioner.partitionOf(-100L));
+		assertEquals(1, partitioner.partitionOf(-1L));
+		assertEquals(2, partitioner.partitionOf(0L));
+	}
+
+	@Test
+	public void stringBoundaries() {
+		RangePartitioner partitioner = new RangePartitioner("g;n;t");
+		assertEquals(4, partitioner.getPartitionCount());
+
+		assertEquals(0, partitioner.partitionOf(""));
+		assertEquals(0, partitioner.partitionOf("apple"));
+		assertEquals(1, partitioner.partitionOf("g"));
+		assertEquals(1, partitioner.partitionOf("melon"));
+		assertEquals(2, partitioner.partitionOf("n"));
+		assertEquals(3, partitioner.partitionOf("t"));
+		assertEquals(3, partitioner.partitionOf("zucchini"));
+	}
+
+	@Test
+	public void singleSplitPoint() {
+		RangePartitioner partitioner = new RangePartitioner("100");
+		assertEquals(2, partitioner.getPartitionCount());
+		assertEquals(0, partitioner.partitionOf(99L));
+		assertEquals(1, partitioner.partitionOf(100L));
+	}
+
+	@Test
+	public void nonComparableKeys() {
+		RangePartitioner numeric = new RangePartitioner("10;20");
+		assertEquals(-1, numeric.partitionOf("15"));
+		assertEquals(-1, numeric.partitionOf(15.0d));
+		assertEquals(-1, numeric.partitionOf(null));
+
+		RangePartitioner strings = new RangePartitioner("g;n");
+		assertEquals(-1, strings.partitionOf(15L));
+		assertEquals(-1, strings.partitionOf(new Object()));
+		assertEquals(-1, strings.partitionOf(null));
+	}
+
+	@Test
+	public void mixedSplitPointsAreStrings() {
+		//one non numeric split point makes them all strings
+		RangePartitioner partitioner = new RangePartitioner("10;abc");
+		assertEquals(-1, partitioner.partitionOf(15L));
+		assertEquals(1, partitioner.partitionOf("15"));
+	}
+
+	@Test(expected = InvalidConfigurationException.class)
+	public void noSplitPoints() {
+		new RangePartitioner(" ");
+	}
+
+	@Test(expected = InvalidConfigurationException.class)
+	public void nullSplitPoints() {
+		new RangePartitioner(null);
+	}
+
+	@Test(expected = InvalidConfigurationException.class)
+	public void decreasingSplitPoints() {
+		new RangePartitioner("10;30;20");
+	}
+
+	@Test(expected = InvalidConfigurationException.class)
+	public void duplicateSplitPoints() {
+		new RangePartitioner("g;g");
+	}
+
+	@Test
+	public void numericOrderIsNotStringOrder() {
+		//"9" > "10" as strings, but not as numbers
+		RangePartitioner partitioner = new RangePartitioner("9;10");
+		assertEquals(1, partitioner.partitionOf(9L));
+		assertEquals(2, partitioner.partitionOf(10L));
+	}
+
+	@Test
+	public void splitPointsValueRoundTrip() {
+		String value = RangePartitioner.toSplitPointsValue(Arrays.asList(10L, 20L, 30L));
+		assertEquals("10;20;30", value);
+		assertEquals(4, new RangePartitioner(value).getPartitionCount());
+	}
+}
@@ -0,0 +1,114 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.config.MemoryUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RefreshCapacityTest {
+	private CacheManager cacheManager;
+
+	@Before
+	public void setUp() {
+		Configuration configuration = new Configuration().name("RefreshCapacityTest");
+		configuration.setUpdateCheck(false);
+		cacheManager = new CacheManager(configuration);
+	}
+
+	@After
+	public void tearDown() {
+		cacheManager.shutdown();
+	}
+
+	private void evict(RefreshCapacity capacity, Cache localCache, int evictions) {
+		for(int i = 0; i < evictions; i++) {
+			capacity.notifyElementEvicted(localCache, new Element(i, i));
+		}
+	}
+
+	@Test
+	public void capacityInEntries() {
+		Cache localCache = new Cache(new CacheConfiguration("entries", 100));
+		cacheManager.addCache(localCache);
+		RefreshCapacity capacity = new RefreshCapacity(new Properties(), localCache);
+		assertTrue(capacity.isEnabled());
+
+		capacity.evaluate(100L);
+		assertFalse(capacity.isOverCapacity());
+		capacity.evaluate(150L);
+		assertTrue(capacity.isOverCapacity());
+		assertEquals(1L, capacity.getChurnDetectedCount());
+
+		//back under 90% of the capacity
+		capacity.evaluate(95L);
+		assertTrue(capacity.isOverCapacity());
+		capacity.evaluate(80L);
+		assertFalse(capacity.isOverCapacity());
+	}
+
+	@Test
+	public void capacityInBytes() {
+		Cache localCache = new Cache(new CacheConfiguration("bytes", 0).maxBytesLocalHeap(1, MemoryUnit.MEGABYTES));
+		cacheManager.addCache(localCache);
+		for(int i = 0; i < 50; i++) {
+			localCache.put(new Element(i, i));
+		}
+		RefreshCapacity capacity = new RefreshCapacity(new Properties(), localCache);
+
+		//evictions within the churn ratio of the refreshed entries
+		capacity.recordRefreshed(1000, 0);
+		evict(capacity, localCache, 10);
+		capacity.evaluate(1000L);
+		assertFalse(capacity.isOverCapacity());
+
+		capacity.recordRefreshed(1000, 0);
+		evict(capacity, localCache, 100);
+		capacity.evaluate(1000L);
+		assertTrue(capacity.isOverCapacity());
+
+		//the capacity is the number of entries resident when the churn was detected
+		capacity.evaluate(46L);
+		assertTrue(capacity.isOverCapacity());
+		capacity.evaluate(40L);
+		assertFalse(capacity.isOverCapacity());
+	}
+
+	@Test
+	public void countsOnlyTheEvictionsSinceThePreviousEvaluation() {
+		Cache localCache = new Cache(new CacheConfiguration("bytes", 0).maxBytesLocalHeap(1, MemoryUnit.MEGABYTES));
+		cacheManager.addCache(localCache);
+		RefreshCapacity capacity = new RefreshCapacity(new Properties(), localCache);
+
+		capacity.recordRefreshed(1000, 0);
+		evict(capacity, localCache, 8);
+		capacity.evaluate(1000L);
+		assertFalse(capacity.isOverCapacity());
+
+		capacity.recordRefreshed(500, 0);
+		evict(capacity, localCache, 5);
+		capacity.evaluate(1000L);
+		assertFalse(capacity.isOverCapacity());
+		assertEquals(13L, capacity.getEvictionCount());
+	}
+
+	@Test
+	public void disabled() {
+		Properties properties = new Properties();
+		properties.setProperty(RefreshCapacity.PROPNAME_CAPACITYAWARE, "false");
+		Cache localCache = new Cache(new CacheConfiguration("disabled", 100));
+		cacheManager.addCache(localCache);
+		assertFalse(new RefreshCapacity(properties, localCache).isEnabled());
+	}
+}
@@ -0,0 +1,136 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.Properties;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.config.SearchAttribute;
+import net.sf.ehcache.config.Searchable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RefreshFilterTest {
+	private CacheManager cacheManager;
+	private Cache delegatedCache;
+	private Cache localCache;
+
+	@Before
+	public void setUp() {
+		Configuration configuration = new Configuration().name("RefreshFilterTest");
+		configuration.setUpdateCheck(false);
+		cacheManager = new CacheManager(configuration);
+
+		Searchable searchable = new Searchable();
+		searchable.addSearchAttribute(new SearchAttribute().name("status").expression("value.getStatus()"));
+		searchable.addSearchAttribute(new SearchAttribute().name("priority").expression("value.getPriority()"));
+		CacheConfiguration delegatedConfig = new CacheConfiguration("delegated", 1000);
+		delegatedConfig.addSearchable(searchable);
+		delegatedCache = new Cache(delegatedConfig);
+		cacheManager.addCache(delegatedCache);
+
+		localCache = new Cache(new CacheConfiguration("local", 1000).timeToLiveSeconds(60));
+		cacheManager.addCache(localCache);
+	}
+
+	@After
+	public void tearDown() {
+		cacheManager.shutdown();
+	}
+
+	private RefreshFilter newFilter(String filterValue) {
+		Properties properties = new Properties();
+		properties.setProperty(RefreshFilter.PROPNAME_FILTER, filterValue);
+		RefreshFilter filter = new RefreshFilter(properties);
+		filter.init(delegatedCache, localCache);
+		return filter;
+	}
+
+	private static Element item(String status, int priority) {
+		return new Element(status + priority, new Item(status, priority));
+	}
+
+	@Test
+	public void noFilter() {
+		RefreshFilter filter = new RefreshFilter(new Properties());
+		filter.init(delegatedCache, localCache);
+		assertFalse(filter.isFiltered());
+		assertTrue(filter.matches(item("ACTIVE", 0)));
+	}
+
+	@Test
+	public void allClausesMatch() {
+		RefreshFilter filter = newFilter("status=ACTIVE; priority>=2");
+		assertTrue(filter.isFiltered());
+		assertTrue(filter.matches(item("ACTIVE", 2)));
+		assertFalse(filter.matches(item("ACTIVE", 1)));
+		assertFalse(filter.matches(item("DELETED", 3)));
+	}
+
+	@Test
+	public void quotedValuesAreStrings() {
+		RefreshFilter filter = newFilter("status='42'");
+		assertTrue(filter.matches(item("42", 0)));
+		assertFalse(filter.matches(item("43", 0)));
+	}
+
+	@Test
+	public void quotedValuesMayHoldSeparators() {
+		RefreshFilter filter = newFilter("status='a;b';priority!=0");
+		assertTrue(filter.matches(item("a;b", 1)));
+		assertFalse(filter.matches(item("a", 1)));
+		assertFalse(filter.matches(item("a;b", 0)));
+	}
+
+	@Test(expected = CacheException.class)
+	public void unterminatedQuote() {
+		newFilter("status='a;priority=1");
+	}
+
+	@Test(expected = CacheException.class)
+	public void invalidClause() {
+		newFilter("status");
+	}
+
+	@Test(expected = CacheException.class)
+	public void unknownAttribute() {
+		newFilter("color=red");
+	}
+
+	@Test(expected = CacheException.class)
+	public void localTierWithoutTimeToLive() {
+		Properties properties = new Properties();
+		properties.setProperty(RefreshFilter.PROPNAME_FILTER, "status=ACTIVE");
+		Cache eternal = new Cache(new CacheConfiguration("eternal", 1000).eternal(true));
+		cacheManager.addCache(eternal);
+		new RefreshFilter(properties).init(delegatedCache, eternal);
+	}
+
+	public static class Item implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String status;
+		private final int priority;
+
+		public Item(String status, int priority) {
+			this.status = status;
+			this.priority = priority;
+		}
+
+		public String getStatus() {
+			return status;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+	}
+}
@@ -0,0 +1,515 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.sf.ehcache.Element;
+import net.sf.ehcache.search.Attribute;
+import net.sf.ehcache.search.Direction;
+import net.sf.ehcache.search.Query;
+import net.sf.ehcache.search.Result;
+import net.sf.ehcache.search.Results;
+import net.sf.ehcache.search.aggregator.Aggregator;
+import net.sf.ehcache.search.expression.Criteria;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RefreshPipelineTest {
+	private static final int KEYS = 1000;
+	private static final int PAGESIZE = 100;
+
+	private ExecutorService stageService;
+	private RefreshPipeline pipeline;
+	//errors that killed a stage thread, rather than going to the default handler
+	private final List<Throwable> uncaught = Collections.synchronizedList(new ArrayList<Throwable>());
+
+	@Before
+	public void setUp() {
+		Properties properties = new Properties();
+		properties.setProperty(RefreshPipeline.PROPNAME_REFRESHPAGESIZE, String.valueOf(PAGESIZE));
+		stageService = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r);
+				thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+					public void uncaughtException(Thread t, Throwable e) {
+						uncaught.add(e);
+					}
+				});
+				return thread;
+			}
+		});
+		pipeline = new RefreshPipeline(properties, stageService);
+	}
+
+	@After
+	public void tearDown() {
+		stageService.shutdownNow();
+	}
+
+	@Test
+	public void fullPassCountsEachKeyOnce() throws Exception {
+		RefreshCheckpoint checkpoint = pipeline.newCheckpoint();
+		TestStages stages = new TestStages();
+
+		checkpoint.startCycle(System.currentTimeMillis());
+		pipeline.run(new TestResults(KEYS), stages, checkpoint, System.currentTimeMillis());
+
+		assertTrue(checkpoint.isComplete());
+		assertEquals(KEYS, checkpoint.getSearchedCount());
+		assertEquals(KEYS, stages.applied.size());
+		assertEquals(KEYS / PAGESIZE, pipeline.getPageCount());
+		assertEquals(Integer.valueOf(KEYS), checkpoint.getCountsPerPartition().get(0));
+	}
+
+	@Test
+	public void uncountedResults() throws Exception {
+		RefreshCheckpoint checkpoint = pipeline.newCheckpoint();
+		TestStages stages = new TestStages();
+		stages.counted = false;
+
+		checkpoint.startCycle(System.currentTimeMillis());
+		pipeline.run(new TestResults(KEYS), stages, checkpoint, System.currentTimeMillis());
+
+		assertTrue(checkpoint.isComplete());
+		assertEquals(KEYS, stages.applied.size());
+		assertTrue(checkpoint.getCountsPerPartition().isEmpty());
+	}
+
+	@Test
+	public void failedPageRewindsTheCheckpoint() throws Exception {
+		RefreshCheckpoint checkpoint = pipeline.newCheckpoint();
+		TestStages stages = new TestStages();
+		stages.skippedPageKey = 300;
+
+		checkpoint.startCycle(System.currentTimeMillis());
+		pipeline.run(new TestResults(KEYS), stages, checkpoint, System.currentTimeMillis());
+
+		//the pages after the failed one may have been applied, but they are searched and counted again by the next cycle
+		assertFalse(checkpoint.isComplete());
+		assertEquals(300, checkpoint.getSearchedCount());
+		assertEquals(Integer.valueOf(299), checkpoint.getLastKey());
+		assertEquals(Integer.valueOf(300), checkpoint.getCountsPerPartition().get(0));
+
+		stages.skippedPageKey = -1;
+		checkpoint.startCycle(System.currentTimeMillis());
+		pipeline.run(new TestResults((Integer)checkpoint.getLastKey() + 1, KEYS), stages, checkpoint, System.currentTimeMillis());
+
+		assertTrue(checkpoint.isComplete());
+		assertEquals(2, checkpoint.getCycleCount());
+		assertEquals(KEYS, checkpoint.getSearchedCount());
+		assertEquals(Integer.valueOf(KEYS), checkpoint.getCountsPerPartition().get(0));
+	}
+
+	@Test(timeout = 10000)
+	public void fetchErrorDoesNotHang() throws Exception {
+		RefreshCheckpoint checkpoint = pipeline.newCheckpoint();
+		TestStages stages = new TestStages();
+		stages.error = true;
+
+		checkpoint.startCycle(System.currentTimeMillis());
+		pipeline.run(new TestResults(KEYS), stages, checkpoint, System.currentTimeMillis());
+
+		assertFalse(checkpoint.isComplete());
+		assertEquals(0, checkpoint.getSearchedCount());
+		assertNull(checkpoint.getLastKey());
+		assertTrue(checkpoint.getCountsPerPartition().isEmpty());
+	}
+
+	@Test(timeout = 10000)
+	public void failedApplyRewindsTheCheckpoint() throws Exception {
+		RefreshCheckpoint checkpoint = pipeline.newCheckpoint();
+		TestStages stages = new TestStages();
+		stages.failedApplyKey = 300;
+
+		checkpoint.startCycle(System.currentTimeMillis());
+		pipeline.run(new TestResults(KEYS), stages, checkpoint, System.currentTimeMillis());
+
+		assertFalse(checkpoint.isComplete());
+		assertEquals(1, pipeline.getFailedPageCount());
+		assertEquals(300, checkpoint.getSearchedCount());
+		assertEquals(Integer.valueOf(299), checkpoint.getLastKey());
+		assertFalse(stages.applied.contains(300));
+	}
+
+	@Test(timeout = 10000)
+	public void applyErrorDoesNotHang() throws Exception {
+		RefreshCheckpoint checkpoint = pipeline.newCheckpoint();
+		TestStages stages = new TestStages();
+		stages.failedApplyKey = 0;
+		stages.applyError = true;
+
+		checkpoint.startCycle(System.currentTimeMillis());
+		pipeline.run(new TestResults(KEYS), stages, checkpoint, System.currentTimeMillis());
+
+		assertFalse(checkpoint.isComplete());
+		assertEquals(0, checkpoint.getSearchedCount());
+		assertNull(checkpoint.getLastKey());
+		assertEquals(1, pipeline.getFailedPageCount());
+		assertFalse(stages.applied.contains(0));
+		assertTrue(uncaught.isEmpty());
+	}
+
+	@Test
+	public void emptyResults() throws Exception {
+		RefreshCheckpoint checkpoint = pipeline.newCheckpoint();
+		TestStages stages = new TestStages();
+
+		checkpoint.startCycle(System.currentTimeMillis());
+		pipeline.run(new TestResults(0), stages, checkpoint, System.currentTimeMillis());
+
+		assertTrue(checkpoint.isComplete());
+		assertTrue(stages.applied.isEmpty());
+	}
+
+	@Test
+	public void checkpointResumesByOffset() {
+		RefreshCheckpoint checkpoint = new RefreshCheckpoint(RefreshCheckpoint.ResumeMode.OFFSET);
+		checkpoint.startCycle(1000L);
+		checkpoint.advance(100, 99);
+		checkpoint.advance(100, 199);
+		assertEquals(200, checkpoint.getStartOffset());
+		assertEquals(Integer.valueOf(199), checkpoint.getLastKey());
+
+		checkpoint.rewind(100, 99);
+		assertEquals(100, checkpoint.getStartOffset());
+		assertEquals(100, checkpoint.getSearchedCount());
+		assertEquals(Integer.valueOf(99), checkpoint.getLastKey());
+
+		//resuming keeps the pass going
+		checkpoint.startCycle(2000L);
+		assertEquals(1000L, checkpoint.getPassStartTime());
+		assertEquals(2, checkpoint.getCycleCount());
+		assertEquals(100, checkpoint.getStartOffset());
+	}
+
+	@Test
+	public void checkpointResumesByKey() {
+		RefreshCheckpoint checkpoint = new RefreshCheckpoint(RefreshCheckpoint.ResumeMode.KEY);
+		checkpoint.startCycle(1000L);
+		checkpoint.advance(100, "k099");
+
+		//the query itself resumes after the last key: its results start at 0
+		assertEquals(0, checkpoint.getStartOffset());
+		assertEquals(100, checkpoint.getSearchedCount());
+		assertEquals("k099", checkpoint.getLastKey());
+	}
+
+	@Test
+	public void checkpointStartsOverOnceReset() {
+		RefreshCheckpoint checkpoint = new RefreshCheckpoint(RefreshCheckpoint.ResumeMode.OFFSET);
+		checkpoint.startCycle(1000L);
+		checkpoint.advance(100, 99);
+		checkpoint.getCountsPerPartition().put(0, 100);
+		checkpoint.markComplete();
+		assertTrue(checkpoint.isComplete());
+
+		checkpoint.reset();
+		assertFalse(checkpoint.isComplete());
+		assertEquals(0, checkpoint.getStartOffset());
+		assertNull(checkpoint.getLastKey());
+		assertEquals(0, checkpoint.getCycleCount());
+		assertTrue(checkpoint.getCountsPerPartition().isEmpty());
+
+		checkpoint.startCycle(2000L);
+		assertEquals(2000L, checkpoint.getPassStartTime());
+		assertEquals(1, checkpoint.getCycleCount());
+	}
+
+	@Test
+	public void resumesByKeyByDefault() {
+		assertEquals(RefreshCheckpoint.ResumeMode.KEY, pipeline.newCheckpoint().getResumeMode());
+	}
+
+	@Test
+	public void passOfComparableKeysYields() throws Exception {
+		RefreshPipeline budgeted = newBudgetedPipeline();
+		RefreshCheckpoint checkpoint = budgeted.newCheckpoint();
+		TestStages stages = new TestStages();
+		stages.fetchMillis = 20L;
+
+		long cycleStartTime = System.currentTimeMillis();
+		checkpoint.startCycle(cycleStartTime);
+		budgeted.run(new TestResults(KEYS), stages, checkpoint, cycleStartTime);
+
+		assertTrue(checkpoint.isResumable());
+		assertFalse(checkpoint.isComplete());
+		assertEquals(1, budgeted.getYieldCount());
+	}
+
+	@Test
+	public void passOfKeysThatDoNotCompareRunsInOneCycle() throws Exception {
+		RefreshPipeline budgeted = newBudgetedPipeline();
+		RefreshCheckpoint checkpoint = budgeted.newCheckpoint();
+		TestStages stages = new TestStages();
+		stages.fetchMillis = 20L;
+		stages.comparableKeys = false;
+
+		long cycleStartTime = System.currentTimeMillis();
+		checkpoint.startCycle(cycleStartTime);
+		budgeted.run(new TestResults(KEYS), stages, checkpoint, cycleStartTime);
+
+		assertFalse(checkpoint.isResumable());
+		assertTrue(checkpoint.isComplete());
+		assertEquals(0, budgeted.getYieldCount());
+		assertEquals(KEYS, stages.applied.size());
+	}
+
+	private RefreshPipeline newBudgetedPipeline() {
+		Properties properties = new Properties();
+		properties.setProperty(RefreshPipeline.PROPNAME_REFRESHPAGESIZE, String.valueOf(PAGESIZE));
+		properties.setProperty(RefreshPipeline.PROPNAME_REFRESHFETCHTHREADS, "1");
+		properties.setProperty(RefreshPipeline.PROPNAME_REFRESHQUEUECAPACITY, "1");
+		properties.setProperty(RefreshPipeline.PROPNAME_REFRESHCYCLEBUDGET, "1");
+		return new RefreshPipeline(properties, stageService);
+	}
+
+	@Test
+	public void checkpointOfKeysThatDoNotCompareStartsOver() {
+		RefreshCheckpoint checkpoint = new RefreshCheckpoint(RefreshCheckpoint.ResumeMode.KEY);
+		checkpoint.startCycle(1000L);
+		checkpoint.advance(100, new Object());
+		checkpoint.getCountsPerPartition().put(0, 100);
+		assertFalse(checkpoint.isResumable());
+
+		//the search of that pass is not ordered anymore
+		TestQuery query = new TestQuery();
+		checkpoint.resume(query);
+		assertEquals(0, query.orderings);
+
+		checkpoint.startCycle(2000L);
+		assertEquals(0, checkpoint.getSearchedCount());
+		assertNull(checkpoint.getLastKey());
+		assertTrue(checkpoint.getCountsPerPartition().isEmpty());
+		assertEquals(2000L, checkpoint.getPassStartTime());
+	}
+
+	@Test
+	public void checkpointOrdersTheSearchInBothModes() {
+		TestQuery query = new TestQuery();
+		new RefreshCheckpoint(RefreshCheckpoint.ResumeMode.OFFSET).resume(query);
+		assertEquals(1, query.orderings);
+		assertEquals(0, query.criteria);
+
+		RefreshCheckpoint checkpoint = new RefreshCheckpoint(RefreshCheckpoint.ResumeMode.KEY);
+		checkpoint.startCycle(1000L);
+		checkpoint.advance(100, "k099");
+		query = new TestQuery();
+		checkpoint.resume(query);
+		assertEquals(1, query.orderings);
+		assertEquals(1, query.criteria);
+	}
+
+	@Test
+	public void checkpointNotResumableAfterAFailedOrdering() {
+		RefreshCheckpoint checkpoint = new RefreshCheckpoint(RefreshCheckpoint.ResumeMode.KEY);
+		checkpoint.startCycle(1000L);
+		checkpoint.advance(100, "k099");
+		checkpoint.notResumable();
+		assertFalse(checkpoint.isResumable());
+		assertEquals(0, checkpoint.getSearchedCount());
+		assertNull(checkpoint.getLastKey());
+	}
+
+	/*
+	 * Integer keys from 0, all in partition 0
+	 */
+	private static class TestStages implements RefreshPipeline.Stages {
+		private volatile boolean counted = true;
+		private volatile boolean error = false;
+		private volatile int skippedPageKey = -1;
+		private volatile int failedApplyKey = -1;
+		private volatile boolean applyError = false;
+		private volatile long fetchMillis = 0L;
+		private volatile boolean comparableKeys = true;
+		private final List<Object> applied = Collections.synchronizedList(new ArrayList<Object>());
+
+		public Object keyOf(Result result) {
+			return comparableKeys ? result.getKey() : new UncomparableKey(result.getKey());
+		}
+
+		public Integer partitionOf(Result result) {
+			return counted ? Integer.valueOf(0) : null;
+		}
+
+		public Map<Object, Element> fetch(List<Object> keys) throws Exception {
+			if(error)
+				throw new Error("fetch failed");
+			if(fetchMillis > 0)
+				Thread.sleep(fetchMillis);
+			if(keys.get(0).equals(skippedPageKey)) {
+				//lets the next pages go through first
+				Thread.sleep(200L);
+				return null;
+			}
+
+			Map<Object, Element> elements = new LinkedHashMap<Object, Element>();
+			for(Object key : keys) {
+				elements.put(key, new Element(key, key));
+			}
+			return elements;
+		}
+
+		public void apply(Map<Object, Element> elements) {
+			if(elements.containsKey(failedApplyKey)) {
+				if(applyError)
+					throw new AssertionError("apply failed");
+				throw new IllegalStateException("apply failed");
+			}
+			applied.addAll(elements.keySet());
+		}
+	}
+
+	private static class TestResults implements Results {
+		private final List<Result> results = new ArrayList<Result>();
+
+		private TestResults(int size) {
+			this(0, size);
+		}
+
+		/*
+		 * The results of a search resumed after a key
+		 */
+		private TestResults(int from, int to) {
+			for(int i = from; i < to; i++) {
+				results.add(new TestResult(i));
+			}
+		}
+
+		public void discard() {
+		}
+
+		public List<Result> all() {
+			return results;
+		}
+
+		public List<Result> range(int start, int count) {
+			return results.subList(start, Math.min(results.size(), start + count));
+		}
+
+		public int size() {
+			return results.size();
+		}
+
+		public boolean hasKeys() {
+			return true;
+		}
+
+		public boolean hasValues() {
+			return false;
+		}
+
+		public boolean hasAttributes() {
+			return false;
+		}
+
+		public boolean hasAggregators() {
+			return false;
+		}
+	}
+
+	private static class TestResult implements Result {
+		private final Object key;
+
+		private TestResult(Object key) {
+			this.key = key;
+		}
+
+		public Object getKey() {
+			return key;
+		}
+
+		public Object getValue() {
+			return null;
+		}
+
+		public <T> T getAttribute(Attribute<T> attribute) {
+			return null;
+		}
+
+		public List<Object> getAggregatorResults() {
+			return null;
+		}
+	}
+
+	private static class UncomparableKey {
+		private final Object key;
+
+		private UncomparableKey(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof UncomparableKey) && key.equals(((UncomparableKey)obj).key);
+		}
+	}
+
+	/*
+	 * Counts what the checkpoint adds to the search
+	 */
+	private static class TestQuery implements Query {
+		private int orderings = 0;
+		private int criteria = 0;
+
+		public Query includeKeys() {
+			return this;
+		}
+
+		public Query includeValues() {
+			return this;
+		}
+
+		public Query includeAttribute(Attribute<?>... attributes) {
+			return this;
+		}
+
+		public Query includeAggregator(Aggregator... aggregators) {
+			return this;
+		}
+
+		public Query addOrderBy(Attribute<?> attribute, Direction direction) {
+			orderings++;
+			return this;
+		}
+
+		public Query addGroupBy(Attribute<?>... attributes) {
+			return this;
+		}
+
+		public Query maxResults(int maxResults) {
+			return this;
+		}
+
+		public Query addCriteria(Criteria addedCriteria) {
+			criteria++;
+			return this;
+		}
+
+		public Results execute() {
+			throw new UnsupportedOperationException();
+		}
+
+		public Query end() {
+			return this;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package org.ehcache.decorators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RefreshUnitsTest {
+	private static final long INTERVAL = 1000L;
+
+	private ExecutorService stageService;
+	private RefreshPipeline pipeline;
+
+	@Before
+	public void setUp() {
+		stageService = Executors.newCachedThreadPool();
+		pipeline = new RefreshPipeline(new Properties(), stageService);
+	}
+
+	@After
+	public void tearDown() {
+		stageService.shutdownNow();
+	}
+
+	@Test
+	public void firstRefreshesAreSpreadOverTheInterval() {
+		RefreshUnits units = new RefreshUnits(new OwnedPartitions("0;1"), 2, INTERVAL, pipeline, null);
+		long start = System.currentTimeMillis();
+
+		//4 units, due every quarter of the interval
+		assertEquals(1, units.claimDueUnits(start, 10).size());
+		assertEquals(3, units.claimDueUnits(start + INTERVAL, 10).size());
+		assertTrue(units.claimDueUnits(start + INTERVAL, 10).isEmpty());
+	}
+
+	@Test
+	public void claimsAtMostMaxInFlight() {
+		long later = System.currentTimeMillis() + INTERVAL;
+		RefreshUnits units = new RefreshUnits(new OwnedPartitions("0-3"), 1, INTERVAL, pipeline, null);
+
+		List<RefreshUnits.RefreshUnit> claimed = units.claimDueUnits(later, 2);
+		assertEquals(2, claimed.size());
+		assertTrue(units.claimDueUnits(later, 2).isEmpty());
+
+		claimed.get(0).release();
+		assertEquals(1, units.claimDueUnits(later, 2).size());
+	}
+
+	@Test
+	public void claimsRoundRobin() {
+		long later = System.currentTimeMillis() + INTERVAL;
+		RefreshUnits units = new RefreshUnits(new OwnedPartitions("0-3"), 1, INTERVAL, pipeline, null);
+
+		//units given back right away are not claimed again before the others
+		Set<Integer> claimedPartitions = new HashSet<Integer>();
+		for(int i = 0; i < 4; i++) {
+			RefreshUnits.RefreshUnit unit = units.claimDueUnits(later, 1).get(0);
+			claimedPartitions.add(unit.getPartitionId());
+			unit.yielded();
+		}
+		assertEquals(4, claimedPartitions.size());
+	}
+
+	@Test
+	public void completedUnitIsDueOneIntervalAfterItsStart() {
+		long later = System.currentTimeMillis() + INTERVAL;
+		RefreshUnits units = new RefreshUnits(new OwnedPartitions("0"), 2, INTERVAL, pipeline, null);
+		List<RefreshUnits.RefreshUnit> claimed = units.claimDueUnits(later, 10);
+		assertEquals(2, claimed.size());
+
+		claimed.get(0).completed(10L, later);
+		claimed.get(1).completed(20L, later + 5L);
+		assertEquals(30L, units.getEntryCount(0));
+		assertEquals(later, units.getLastRefreshTime(0));
+
+		assertTrue(units.claimDueUnits(later + INTERVAL - 1, 10).isEmpty());
+		assertEquals(1, units.claimDueUnits(later + INTERVAL, 10).size());
+	}
+
+	@Test
+	public void failedUnitKeepsItsCountsAndIsRetriedNextInterval() {
+		long later = System.currentTimeMillis() + INTERVAL;
+		RefreshUnits units = new RefreshUnits(new OwnedPartitions("0"), 1, INTERVAL, pipeline, null);
+		RefreshUnits.RefreshUnit unit = units.claimDueUnits(later, 1).get(0);
+		unit.completed(10L, later);
+
+		assertSame(unit, units.claimDueUnits(later + INTERVAL, 1).get(0));
+		unit.failed(later + INTERVAL);
+		assertFalse(unit.isInFlight());
+		assertEquals(10L, units.getEntryCount(0));
+		assertEquals(1, unit.getConsecutiveFailures());
+		assertEquals(1L, units.getFailureCount());
+
+		assertTrue(units.claimDueUnits(later + 2 * INTERVAL - 1, 1).isEmpty());
+		units.claimDueUnits(later + 2 * INTERVAL, 1).get(0).completed(12L, later + 2 * INTERVAL);
+		assertEquals(0, unit.getConsecutiveFailures());
+		assertEquals(12L, units.getEntryCount(0));
+	}
+
+	@Test
+	public void neverRefreshedPartition() {
+		RefreshUnits units = new RefreshUnits(new OwnedPartitions("0"), 2, INTERVAL, pipeline, null);
+		assertEquals(0L, units.getLastRefreshTime(0));
+		assertEquals(0L, units.getLastRefreshTime(5));
+		assertEquals(0L, units.getEntryCount(0));
+	}
+
+	@Test
+	public void reassignmentKeepsTheUnitsOfKeptPartitions() {
+		long later = System.currentTimeMillis() + INTERVAL;
+		RefreshUnits previous = new RefreshUnits(new OwnedPartitions("0;1"), 1, INTERVAL, pipeline, null);
+		for(RefreshUnits.RefreshUnit unit : previous.claimDueUnits(later, 10)) {
+			unit.completed(10L * (unit.getPartitionId() + 1), later);
+		}
+
+		RefreshUnits units = new RefreshUnits(new OwnedPartitions("1;2"), 1, INTERVAL, pipeline, previous);
+		assertEquals(20L, units.getEntryCount(1));
+		assertEquals(0L, units.getEntryCount(0));
+		//the acquired partition is due straight away, the kept one on its schedule
+		List<RefreshUnits.RefreshUnit> due = units.claimDueUnits(System.currentTimeMillis(), 10);
+		assertEquals(1, due.size());
+		assertEquals(2, due.get(0).getPartitionId());
+	}
+}